@@ -1,8 +1,24 @@
 package cn.pfcraft.server;
 
+import cn.pfcraft.server.chunkio.ChunkLoadStats;
+import cn.pfcraft.server.chunkio.RegionPrefetcher;
+import cn.pfcraft.server.chunkio.ChunkSaveStats;
+import cn.pfcraft.server.entity.CreatureCounts;
+import cn.pfcraft.server.network.TrafficShaper;
 import net.minecraft.command.CommandBase;
+import net.minecraft.entity.Entity;
+import net.minecraft.entity.EntityTracker;
+import net.minecraft.entity.EnumCreatureType;
+import net.minecraft.entity.player.EntityPlayerMP;
 import net.minecraft.server.MinecraftServer;
+import net.minecraft.util.ClassInheritanceMultiMap;
 import net.minecraft.world.WorldServer;
+import net.minecraft.world.chunk.Chunk;
+import net.minecraft.world.chunk.storage.AnvilChunkLoader;
+import net.minecraft.world.chunk.storage.RegionFileCache;
+import net.minecraft.world.gen.ChunkProviderServer;
+import net.minecraft.world.storage.ThreadedFileIOBase;
+import net.minecraftforge.common.chunkio.ChunkIOExecutor;
 import org.bukkit.ChatColor;
 import org.bukkit.Location;
 import org.bukkit.command.Command;
@@ -12,23 +28,29 @@ import org.bukkit.craftbukkit.CraftServer;
 import java.io.File;
 import java.time.LocalDateTime;
 import java.time.format.DateTimeFormatter;
+import java.util.ArrayList;
 import java.util.Collections;
+import java.util.Comparator;
+import java.util.HashMap;
 import java.util.List;
 import java.util.Locale;
+import java.util.Map;
 
 public class PFSCommand extends Command {
 
     public PFSCommand(String name) {
         super(name);
         this.description = "PFServer related commands";
-        this.usageMessage = "/pfserver [heap | reload]";
+        this.usageMessage = "/pfserver [heap | reload | io | tracker | network [player] | mobcounts]";
         this.setPermission("bukkit.command.pfserver");
     }
 
     @Override
     public List<String> tabComplete(CommandSender sender, String alias, String[] args, Location location) throws IllegalArgumentException {
         if (args.length <= 1)
-            return CommandBase.getListMatchingLast(args, "heap", "reload");
+            return CommandBase.getListMatchingLast(args, "heap", "reload", "io", "tracker", "network", "mobcounts");
+        if (args.length == 2 && args[0].equalsIgnoreCase("network"))
+            return CommandBase.getListMatchingLast(args, MinecraftServer.getServerInst().getOnlinePlayerNames());
 
         return Collections.emptyList();
     }
@@ -49,6 +71,18 @@ public class PFSCommand extends Command {
             case "reload":
                 doReload(sender);
                 break;
+            case "io":
+                showChunkIO(sender);
+                break;
+            case "tracker":
+                showEntityTracker(sender);
+                break;
+            case "network":
+                showNetwork(sender, args.length > 1 ? args[1] : null);
+                break;
+            case "mobcounts":
+                checkCreatureCounts(sender);
+                break;
             default:
                 sender.sendMessage(ChatColor.RED + "Usage: " + usageMessage);
                 return false;
@@ -68,6 +102,138 @@ public class PFSCommand extends Command {
         }
     }
 
+    private void showChunkIO(CommandSender sender) {
+        ThreadedFileIOBase io = ThreadedFileIOBase.getThreadedIOInstance();
+        sender.sendMessage(ChatColor.GOLD + "Chunk save workers: " + ChatColor.GREEN + io.getWorkerCount()
+                + ChatColor.GOLD + " Queued writers: " + ChatColor.GREEN + io.getQueueDepth()
+                + ChatColor.GOLD + " Open region files: " + ChatColor.GREEN + RegionFileCache.getOpenRegionCount() + "/" + PFSConfig.regionFileCacheSize);
+        ChunkLoadStats loadStats = ChunkIOExecutor.getStats();
+        double[] latency = loadStats.getLatencyPercentilesMillis(0.5D, 0.95D, 0.99D);
+        sender.sendMessage(ChatColor.GOLD + "Chunk loads: " + ChatColor.GREEN + ChunkIOExecutor.getQueueDepth() + ChatColor.GOLD + " queued, "
+                + ChatColor.GREEN + ChunkIOExecutor.getActiveCount() + ChatColor.GOLD + " loading, "
+                + ChatColor.GREEN + loadStats.getLoadedChunks() + ChatColor.GOLD + " loaded, "
+                + ChatColor.GREEN + loadStats.getCancelledChunks() + ChatColor.GOLD + " cancelled, latency p50 "
+                + ChatColor.GREEN + String.format("%.1f", latency[0]) + ChatColor.GOLD + "ms p95 "
+                + ChatColor.GREEN + String.format("%.1f", latency[1]) + ChatColor.GOLD + "ms p99 "
+                + ChatColor.GREEN + String.format("%.1f", latency[2]) + ChatColor.GOLD + "ms");
+        if (RegionPrefetcher.isEnabled()) {
+            long hits = RegionPrefetcher.getHits();
+            long lookups = hits + RegionPrefetcher.getMisses();
+            sender.sendMessage(ChatColor.GOLD + "Prefetch: " + ChatColor.GREEN + RegionPrefetcher.getPrefetchedChunks() + ChatColor.GOLD + " read ahead, hit rate "
+                    + ChatColor.GREEN + String.format("%.1f", lookups == 0 ? 0D : hits * 100D / lookups) + ChatColor.GOLD + "% ("
+                    + ChatColor.GREEN + hits + ChatColor.GOLD + "/" + ChatColor.GREEN + lookups + ChatColor.GOLD + "), "
+                    + ChatColor.GREEN + RegionPrefetcher.getUnusedChunks() + ChatColor.GOLD + " evicted unused, cache "
+                    + ChatColor.GREEN + RegionPrefetcher.getCachedChunks() + ChatColor.GOLD + " chunks "
+                    + ChatColor.GREEN + String.format("%.1f", RegionPrefetcher.getCachedBytes() / 1048576D) + ChatColor.GOLD + "/" + PFSConfig.prefetchCacheSize + " MiB");
+        }
+        for (WorldServer world : MinecraftServer.getServerInst().worlds) {
+            if (!(world.getChunkProvider().chunkLoader instanceof AnvilChunkLoader)) {
+                continue;
+            }
+            AnvilChunkLoader loader = (AnvilChunkLoader) world.getChunkProvider().chunkLoader;
+            ChunkSaveStats stats = loader.saveStats;
+            sender.sendMessage(ChatColor.GOLD + world.getWorldInfo().getWorldName() + ": "
+                    + ChatColor.GREEN + loader.getPendingSaveCount() + ChatColor.GOLD + " pending in "
+                    + ChatColor.GREEN + loader.getPendingRegionCount() + ChatColor.GOLD + " regions, "
+                    + ChatColor.GREEN + stats.getSavedChunks() + ChatColor.GOLD + " saved, "
+                    + ChatColor.GREEN + String.format("%.1f", stats.sampleBytesPerSecond() / 1024D) + ChatColor.GOLD + " KiB/s, latency avg "
+                    + ChatColor.GREEN + String.format("%.1f", stats.getAverageLatencyMillis()) + ChatColor.GOLD + "ms max "
+                    + ChatColor.GREEN + String.format("%.1f", stats.getMaxLatencyMillis()) + ChatColor.GOLD + "ms");
+            if (PFSConfig.incrementalAutosave) {
+                ChunkProviderServer provider = world.getChunkProvider();
+                int total = provider.getIncrementalSaveTotal();
+                sender.sendMessage(ChatColor.GOLD + "  Autosave: " + ChatColor.GREEN + (total - provider.getIncrementalSaveBacklog()) + "/" + total
+                        + ChatColor.GOLD + " chunks of the last pass, " + ChatColor.GREEN + provider.getIncrementalSaveBacklog() + ChatColor.GOLD + " left");
+            }
+        }
+    }
+
+    private void showEntityTracker(CommandSender sender) {
+        for (WorldServer world : MinecraftServer.getServerInst().worlds) {
+            EntityTracker tracker = world.getEntityTracker();
+            sender.sendMessage(ChatColor.GOLD + world.getWorldInfo().getWorldName() + ": "
+                    + ChatColor.GREEN + tracker.getEntryCount() + ChatColor.GOLD + " entities, "
+                    + ChatColor.GREEN + world.playerEntities.size() + ChatColor.GOLD + " players, "
+                    + ChatColor.GREEN + String.format("%.2f", tracker.getAverageTickMillis()) + ChatColor.GOLD + "ms and "
+                    + ChatColor.GREEN + String.format("%.0f", tracker.getAverageVisibilityChecks()) + ChatColor.GOLD + " visibility checks per tick"
+                    + (tracker.isSpatiallyIndexed() ? "" : ChatColor.RED + " (not indexed)"));
+        }
+    }
+
+    private void showNetwork(CommandSender sender, String name) {
+        MinecraftServer server = MinecraftServer.getServerInst();
+        if (name != null) {
+            EntityPlayerMP player = server.getPlayerList().getPlayerByUsername(name);
+            TrafficShaper shaper = player == null ? null : TrafficShaper.get(player.connection.netManager);
+            if (shaper == null) {
+                sender.sendMessage(ChatColor.RED + "No shaped connection for " + name);
+                return;
+            }
+            showConnection(sender, player, shaper);
+            for (TrafficShaper.Lane lane : TrafficShaper.Lane.values()) {
+                sender.sendMessage(ChatColor.GOLD + "  " + lane.name().toLowerCase(Locale.ROOT) + ": "
+                        + ChatColor.GREEN + shaper.getLanePackets(lane) + ChatColor.GOLD + " packets, "
+                        + ChatColor.GREEN + (shaper.getLaneBytes(lane) >> 10) + ChatColor.GOLD + " KiB");
+            }
+            return;
+        }
+
+        // Most backed up connections first, by a snapshot as the event loops keep writing
+        Map<EntityPlayerMP, Long> pending = new HashMap<>();
+        for (EntityPlayerMP player : server.getPlayerList().getPlayers()) {
+            TrafficShaper shaper = TrafficShaper.get(player.connection.netManager);
+            if (shaper != null) {
+                pending.put(player, shaper.getPendingBytes());
+            }
+        }
+        List<EntityPlayerMP> players = new ArrayList<>(pending.keySet());
+        players.sort(Comparator.comparing(pending::get, Comparator.reverseOrder()));
+        sender.sendMessage(ChatColor.GOLD + "Byte budget: " + ChatColor.GREEN + (PFSConfig.playerByteBudget > 0 ? (PFSConfig.playerByteBudget >> 10) + " KiB/s" : "unlimited")
+                + ChatColor.GOLD + ", adaptive chunk sending " + ChatColor.GREEN + (PFSConfig.adaptiveChunkSending ? "on" : "off"));
+        for (int i = 0; i < players.size() && i < 10; ++i) {
+            showConnection(sender, players.get(i), TrafficShaper.get(players.get(i).connection.netManager));
+        }
+        if (players.size() > 10) {
+            sender.sendMessage(ChatColor.GOLD + "and " + (players.size() - 10) + " more");
+        }
+    }
+
+    private void showConnection(CommandSender sender, EntityPlayerMP player, TrafficShaper shaper) {
+        sender.sendMessage(ChatColor.GOLD + player.getName() + ": "
+                + ChatColor.GREEN + player.ping + ChatColor.GOLD + "ms, "
+                + ChatColor.GREEN + String.format("%.1f", shaper.getThroughput() / 1024D) + ChatColor.GOLD + " KiB/s, "
+                + ChatColor.GREEN + (shaper.getPendingBytes() >> 10) + ChatColor.GOLD + " KiB and "
+                + ChatColor.GREEN + shaper.getHeldPackets() + ChatColor.GOLD + " packets waiting, "
+                + ChatColor.GREEN + player.getServerWorld().getPlayerChunkMap().getQueuedChunks(player) + ChatColor.GOLD + " chunks queued");
+    }
+
+    private void checkCreatureCounts(CommandSender sender) {
+        for (WorldServer world : MinecraftServer.getServerInst().worlds) {
+            CreatureCounts worldScan = CreatureCounts.scan(world.loadedEntityList);
+            CreatureCounts chunkCounts = new CreatureCounts();
+            CreatureCounts chunkScan = new CreatureCounts();
+            for (Chunk chunk : world.getChunkProvider().getLoadedChunks()) {
+                chunkCounts.addAll(chunk.creatureCounts);
+                for (ClassInheritanceMultiMap<Entity> entities : chunk.getEntityLists()) {
+                    chunkScan.addAll(CreatureCounts.scan(entities));
+                }
+            }
+            sender.sendMessage(ChatColor.GOLD + world.getWorldInfo().getWorldName() + ": "
+                    + ChatColor.GREEN + world.getEntitySpawner().getSpawnedEntities() + ChatColor.GOLD + " spawned in "
+                    + ChatColor.GREEN + world.getEntitySpawner().getSpawnAttempts() + ChatColor.GOLD + " attempts, "
+                    + (world.pfserverConfig.perPlayerMobCaps ? "per player" : "per world") + " caps; world / scanned, chunks / scanned");
+            for (EnumCreatureType type : EnumCreatureType.values()) {
+                sender.sendMessage(ChatColor.GOLD + "  " + type.name().toLowerCase(Locale.ROOT) + ": "
+                        + countColor(world.creatureCounts.get(type), worldScan.get(type)) + world.creatureCounts.get(type) + ChatColor.GOLD + " / " + worldScan.get(type) + ", "
+                        + countColor(chunkCounts.get(type), chunkScan.get(type)) + chunkCounts.get(type) + ChatColor.GOLD + " / " + chunkScan.get(type));
+            }
+        }
+    }
+
+    private static ChatColor countColor(int counted, int scanned) {
+        return counted == scanned ? ChatColor.GREEN : ChatColor.RED;
+    }
+
     private void doReload(CommandSender sender) {
         Command.broadcastCommandMessage(sender, ChatColor.RED + "Please note that this command is not supported and may cause issues.");
         Command.broadcastCommandMessage(sender, ChatColor.RED + "If you encounter any issues please use the /stop command to restart your server.");
@@ -13,6 +13,7 @@ import java.lang.reflect.Method;
 import java.lang.reflect.Modifier;
 import java.util.HashMap;
 import java.util.List;
+import java.util.Locale;
 import java.util.Map;
 import java.util.concurrent.TimeUnit;
 import java.util.regex.Pattern;
@@ -151,4 +152,122 @@ public class PFSConfig {
         config.addDefault(path, def);
         return config.getString(path, config.getString(path));
     }
+
+    // Worker threads are only created once, changing this requires a restart
+    public static int chunkSaveThreads = 2;
+    public static int chunkSaveDelay = 0;
+    private static void chunkSave() {
+        chunkSaveThreads = Math.max(1, getInt("chunk-io.save-threads", Math.max(1, Math.min(4, Runtime.getRuntime().availableProcessors() / 2))));
+        chunkSaveDelay = Math.max(0, getInt("chunk-io.save-delay", chunkSaveDelay));
+    }
+
+    public static int regionFileCacheSize = 256;
+    private static void regionFileCache() {
+        regionFileCacheSize = Math.max(16, getInt("chunk-io.region-file-cache-size", regionFileCacheSize));
+    }
+
+    // Autosave only queues the chunks, which are then saved a few per tick
+    public static boolean incrementalAutosave = false;
+    public static int incrementalAutosaveChunks = 24;
+    public static double incrementalAutosaveMillis = 5.0D;
+    private static void incrementalAutosave() {
+        incrementalAutosave = getBoolean("autosave.incremental", incrementalAutosave);
+        incrementalAutosaveChunks = Math.max(0, getInt("autosave.chunks-per-tick", incrementalAutosaveChunks));
+        incrementalAutosaveMillis = Math.max(0D, getDouble("autosave.max-millis-per-tick", incrementalAutosaveMillis));
+        if (incrementalAutosaveChunks == 0 && incrementalAutosaveMillis == 0D) {
+            incrementalAutosaveChunks = 24;
+        }
+    }
+
+    // Megabytes of region data read ahead of moving players, 0 disables the prefetching
+    public static int prefetchCacheSize = 32;
+    private static void regionPrefetch() {
+        prefetchCacheSize = Math.max(0, getInt("chunk-io.prefetch-cache-size", prefetchCacheSize));
+    }
+
+    // Play packets queued on their connection and handled after the server tasks (queue size 0 = as server tasks, packets per tick 0 = all)
+    public static int inboundQueueSize = 4096;
+    public static int inboundPacketsPerTick = 0;
+    public static String inboundOverflowAction = "kick";
+    private static void inboundPackets() {
+        inboundQueueSize = Math.max(0, getInt("network.inbound-queue-size", inboundQueueSize));
+        inboundPacketsPerTick = Math.max(0, getInt("network.inbound-packets-per-tick", inboundPacketsPerTick));
+        inboundOverflowAction = getString("network.inbound-overflow-action", inboundOverflowAction).toLowerCase(Locale.ROOT);
+        if (!inboundOverflowAction.equals("kick") && !inboundOverflowAction.equals("drop")) {
+            PFServer.LOGGER.warn("Unknown network.inbound-overflow-action {}, using kick", inboundOverflowAction);
+            inboundOverflowAction = "kick";
+        }
+    }
+
+    // Packets sent by the main thread are flushed once per tick, or early once this many bytes wait (0 = never early)
+    public static boolean batchOutboundPackets = true;
+    public static int outboundFlushThreshold = 32768;
+    private static void outboundPackets() {
+        batchOutboundPackets = getBoolean("network.batch-outbound", batchOutboundPackets);
+        outboundFlushThreshold = Math.max(0, getInt("network.flush-threshold", outboundFlushThreshold));
+    }
+
+    // Packets of at least offload-size bytes are compressed on their own threads when threads is above 0, requires a restart
+    public static int compressionLevel = -1;
+    public static int compressionThreads = 0;
+    public static int compressionOffloadSize = 32768;
+    private static void networkCompression() {
+        compressionLevel = Math.max(-1, Math.min(9, getInt("network.compression-level", compressionLevel)));
+        compressionThreads = Math.max(0, getInt("network.compression-threads", compressionThreads));
+        compressionOffloadSize = Math.max(0, getInt("network.compression-offload-size", compressionOffloadSize));
+    }
+
+    // Ticks a full chunk packet is reused for players starting to watch the chunk, unless its blocks, light or tile entities change first
+    public static int chunkPacketCacheTicks = 20;
+    private static void chunkPacketCache() {
+        chunkPacketCacheTicks = Math.max(0, getInt("network.chunk-packet-cache-ticks", chunkPacketCacheTicks));
+    }
+
+    // Entity trackers only check entries against the players near them, requires a restart
+    public static boolean trackerSpatialIndex = true;
+    private static void entityTracker() {
+        trackerSpatialIndex = getBoolean("entity-tracker.spatial-index", trackerSpatialIndex);
+    }
+
+    // Changed sections are sent as block lists or section data, whichever is smaller, and unchanged tile entity updates are skipped
+    public static boolean sectionDeltaUpdates = true;
+    private static void chunkUpdates() {
+        sectionDeltaUpdates = getBoolean("network.section-delta-updates", sectionDeltaUpdates);
+    }
+
+    // Bytes per second each player connection may send (0 = unlimited), and chunks sent only as fast as the link takes them
+    public static int playerByteBudget = 0;
+    public static boolean adaptiveChunkSending = true;
+    public static int chunksPerTick = 32;
+    public static int chunkBacklogBytes = 65536;
+    private static void trafficShaping() {
+        playerByteBudget = Math.max(0, getInt("network.player-byte-budget", playerByteBudget));
+        adaptiveChunkSending = getBoolean("network.adaptive-chunk-sending", adaptiveChunkSending);
+        chunksPerTick = Math.max(1, getInt("network.chunks-per-tick", chunksPerTick));
+        chunkBacklogBytes = Math.max(0, getInt("network.chunk-backlog-bytes", chunkBacklogBytes));
+    }
+
+    // Entities in a chunk section from which box queries go through a grid of 4 block cells (0 = never)
+    public static int entityGridThreshold = 32;
+    private static void entityGrid() {
+        entityGridThreshold = Math.max(0, getInt("entity-grid-threshold", entityGridThreshold));
+    }
+
+    // Worlds with dynamic activation shrink their activation ranges down to a share of them while ticks take longer than the target
+    public static double activationTargetTickMillis = 45.0D;
+    public static double activationMinScale = 0.5D;
+    public static int activationMaxWakeInterval = 20;
+    private static void dynamicActivation() {
+        activationTargetTickMillis = Math.max(1.0D, getDouble("activation-range.target-tick-millis", activationTargetTickMillis));
+        activationMinScale = Math.max(0.0D, Math.min(1.0D, getDouble("activation-range.min-scale", activationMinScale)));
+        activationMaxWakeInterval = Math.max(1, getInt("activation-range.max-wake-interval", activationMaxWakeInterval));
+    }
+
+    // Mobs select goals on ticks spread by entity id, and nearest non-player target searches are reused for a few ticks (0 = never)
+    public static boolean staggerGoalSelection = true;
+    public static int targetSearchCacheTicks = 10;
+    private static void entityAI() {
+        staggerGoalSelection = getBoolean("ai.stagger-goal-selection", staggerGoalSelection);
+        targetSearchCacheTicks = Math.max(0, getInt("ai.target-search-cache-ticks", targetSearchCacheTicks));
+    }
 }
@@ -1,9 +1,12 @@
 package cn.pfcraft.server;
 
+import cn.pfcraft.server.chunkio.RegionCodec;
+import cn.pfcraft.server.chunkio.RegionCodecs;
 import org.bukkit.configuration.file.YamlConfiguration;
 import org.spigotmc.SpigotWorldConfig;
 
 import java.util.List;
+import java.util.zip.Deflater;
 
 public class PFSWorldConfig {
 
@@ -59,4 +62,41 @@ public class PFSWorldConfig {
         config.addDefault("world-settings.default." + path, def);
         return config.getString("world-settings." + worldName + "."+  path, config.getString("world-settings.default." + path));
     }
+
+    public RegionCodec chunkCompression = RegionCodecs.ZLIB;
+    public int chunkCompressionLevel = Deflater.DEFAULT_COMPRESSION;
+    private void chunkCompression() {
+        String name = getString("chunk-compression.codec", RegionCodecs.ZLIB.getName());
+        chunkCompression = RegionCodecs.byName(name);
+        if (chunkCompression == null) {
+            PFServer.LOGGER.warn("Unknown chunk compression " + name + ", valid values are " + RegionCodecs.getNames() + ", defaulting to zlib");
+            chunkCompression = RegionCodecs.ZLIB;
+        }
+        chunkCompressionLevel = Math.max(-1, Math.min(9, getInt("chunk-compression.level", Deflater.DEFAULT_COMPRESSION)));
+        PFServer.LOGGER.info("Chunk Compression: " + chunkCompression.getName() + (chunkCompression == RegionCodecs.ZLIB ? " Level: " + chunkCompressionLevel : ""));
+    }
+
+    public int maxTickUpdates = 65536;
+    private void maxTickUpdates() {
+        maxTickUpdates = Math.max(0, getInt("max-tick-updates", 65536));
+        PFServer.LOGGER.info("Max Scheduled Block Ticks Per Tick: " + (maxTickUpdates == 0 ? "unlimited" : maxTickUpdates));
+    }
+
+    public boolean asyncChunkSerialization = true;
+    private void asyncChunkSerialization() {
+        asyncChunkSerialization = getBoolean("async-chunk-serialization", true);
+        PFServer.LOGGER.info("Async Chunk Serialization: " + asyncChunkSerialization);
+    }
+
+    public boolean perPlayerMobCaps = false;
+    private void perPlayerMobCaps() {
+        perPlayerMobCaps = getBoolean("spawning.per-player-mob-caps", false);
+        PFServer.LOGGER.info("Per Player Mob Caps: " + perPlayerMobCaps);
+    }
+
+    public boolean dynamicActivation = false;
+    private void dynamicActivation() {
+        dynamicActivation = getBoolean("activation-range.dynamic", false);
+        PFServer.LOGGER.info("Dynamic Activation Range: " + dynamicActivation);
+    }
 }
@@ -0,0 +1,210 @@
+package cn.pfcraft.server.chunkio;
+
+import net.minecraft.nbt.CompressedStreamTools;
+import net.minecraft.nbt.NBTTagCompound;
+
+import javax.annotation.Nullable;
+import java.io.ByteArrayOutputStream;
+import java.io.DataOutputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.nio.ByteBuffer;
+import java.util.zip.Deflater;
+import java.util.zip.Inflater;
+
+/**
+ * Per thread scratch space for reading and writing region file chunks. The zlib contexts and byte arrays are reused
+ * for every chunk a thread handles instead of being allocated for each load or save.
+ * <p>
+ * The buffers are heap arrays: Java 8's Inflater and Deflater only accept arrays, so direct buffers would just add
+ * another copy.
+ */
+public class ChunkBuffers {
+    private static final int DEFAULT_SIZE = 64 * 1024;
+    // Don't hold on to the buffers of an unusually large chunk
+    private static final int MAX_RETAINED_SIZE = 1024 * 1024;
+    private static final ThreadLocal<ChunkBuffers> BUFFERS = ThreadLocal.withInitial(ChunkBuffers::new);
+
+    private final Inflater inflater = new Inflater();
+    private final Deflater[] deflaters = new Deflater[Deflater.BEST_COMPRESSION + 1];
+    private final ByteBuffer header = ByteBuffer.allocate(5);
+    private final ExposedByteArrayOutputStream nbtBytes = new ExposedByteArrayOutputStream();
+    private final DataOutputStream nbtOutput = new DataOutputStream(nbtBytes);
+    private final CompressedOutputStream compressedOutput = new CompressedOutputStream();
+    private byte[] compressed = new byte[DEFAULT_SIZE];
+    private byte[] uncompressed = new byte[DEFAULT_SIZE];
+
+    public static ChunkBuffers get() {
+        return BUFFERS.get();
+    }
+
+    /**
+     * Reused buffer for the length and compression type in front of a chunk.
+     */
+    public ByteBuffer header() {
+        header.clear();
+        return header;
+    }
+
+    /**
+     * Reused buffer of at least the given size for a chunk exactly as it is stored in the region file.
+     */
+    public ByteBuffer compressed(int length) {
+        if (compressed.length < length) {
+            compressed = new byte[Math.max(length, compressed.length * 2)];
+        }
+        ByteBuffer buffer = ByteBuffer.wrap(compressed);
+        buffer.limit(length);
+        return buffer;
+    }
+
+    public byte[] compressedArray() {
+        return compressed;
+    }
+
+    /**
+     * Grows the compressed array to at least the given size, keeping the first {@code used} bytes.
+     */
+    public byte[] growCompressed(int used, int length) {
+        if (compressed.length < length) {
+            byte[] grown = new byte[Math.max(length, compressed.length * 2)];
+            System.arraycopy(compressed, 0, grown, 0, used);
+            compressed = grown;
+        }
+        return compressed;
+    }
+
+    /**
+     * Grows the uncompressed array to at least the given size, keeping the first {@code used} bytes.
+     */
+    public byte[] growUncompressed(int used, int length) {
+        if (uncompressed.length < length) {
+            byte[] grown = new byte[Math.max(length, uncompressed.length * 2)];
+            System.arraycopy(uncompressed, 0, grown, 0, used);
+            uncompressed = grown;
+        }
+        return uncompressed;
+    }
+
+    public byte[] uncompressedArray() {
+        return uncompressed;
+    }
+
+    /**
+     * Stream writing into the compressed array from its start, for codecs that only come as streams.
+     */
+    public OutputStream compressedOutput() {
+        compressedOutput.length = 0;
+        return compressedOutput;
+    }
+
+    public int compressedOutputLength() {
+        return compressedOutput.length;
+    }
+
+    /**
+     * Drains the stream into the uncompressed array.
+     */
+    public ByteBuffer readUncompressed(InputStream input) throws IOException {
+        int size = 0;
+        try {
+            while (true) {
+                growUncompressed(size, size + 1);
+                int read = input.read(uncompressed, size, uncompressed.length - size);
+                if (read < 0) {
+                    break;
+                }
+                size += read;
+            }
+        } finally {
+            input.close();
+        }
+        return ByteBuffer.wrap(uncompressed, 0, size);
+    }
+
+    public Inflater inflater() {
+        inflater.reset();
+        return inflater;
+    }
+
+    public Deflater deflater(int level) {
+        int index = level < 0 ? 6 : Math.min(level, Deflater.BEST_COMPRESSION);
+        Deflater deflater = deflaters[index];
+        if (deflater == null) {
+            deflater = deflaters[index] = new Deflater(index);
+        }
+        deflater.reset();
+        return deflater;
+    }
+
+    /**
+     * Reads a chunk from its stored form, the first byte of the buffer being the compression type.
+     */
+    @Nullable
+    public NBTTagCompound readCompound(ByteBuffer stored) throws IOException {
+        RegionCodec codec = RegionCodecs.byId(stored.get(0));
+        if (codec == null) {
+            return null;
+        }
+        try {
+            return CompressedStreamTools.read(codec.decompress(this, stored.array(), stored.arrayOffset() + 1, stored.limit() - 1));
+        } finally {
+            trim();
+        }
+    }
+
+    /**
+     * Compresses the compound into {@link #compressedArray()} and returns the compressed length.
+     */
+    public int writeCompound(NBTTagCompound compound, RegionCodec codec, int level) throws IOException {
+        nbtBytes.reset();
+        CompressedStreamTools.write(compound, nbtOutput);
+        int length = codec.compress(this, nbtBytes.buffer(), nbtBytes.size(), level);
+        nbtBytes.trim();
+        return length;
+    }
+
+    /**
+     * Must be called once the compressed array returned by {@link #compressedArray()} is no longer used.
+     */
+    public void trim() {
+        if (compressed.length > MAX_RETAINED_SIZE) {
+            compressed = new byte[DEFAULT_SIZE];
+        }
+        if (uncompressed.length > MAX_RETAINED_SIZE) {
+            uncompressed = new byte[DEFAULT_SIZE];
+        }
+    }
+
+    private static class ExposedByteArrayOutputStream extends ByteArrayOutputStream {
+        private ExposedByteArrayOutputStream() {
+            super(DEFAULT_SIZE);
+        }
+
+        private byte[] buffer() {
+            return buf;
+        }
+
+        private void trim() {
+            if (buf.length > MAX_RETAINED_SIZE) {
+                buf = new byte[DEFAULT_SIZE];
+            }
+        }
+    }
+
+    private class CompressedOutputStream extends OutputStream {
+        private int length;
+
+        @Override
+        public void write(int b) {
+            growCompressed(length, length + 1)[length++] = (byte) b;
+        }
+
+        @Override
+        public void write(byte[] b, int off, int len) {
+            System.arraycopy(b, off, growCompressed(length, length + len), length, len);
+            length += len;
+        }
+    }
+}
@@ -0,0 +1,61 @@
+package cn.pfcraft.server.chunkio;
+
+import java.util.Arrays;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.LongAdder;
+
+/**
+ * Async chunk load counters, with the latency of the most recent loads kept for percentiles. Written by the chunk
+ * load threads and read by /pfserver io.
+ */
+public class ChunkLoadStats {
+    private static final int SAMPLES = 1024;
+
+    private final LongAdder loadedChunks = new LongAdder();
+    private final LongAdder cancelledChunks = new LongAdder();
+    private final long[] latencyNanos = new long[SAMPLES];
+    private int sampleCount;
+    private int nextSample;
+
+    /**
+     * @param latency time from the load being queued until the chunk data was read
+     */
+    public void recordLoad(long latency) {
+        loadedChunks.increment();
+        synchronized (latencyNanos) {
+            latencyNanos[nextSample] = latency;
+            nextSample = (nextSample + 1) % SAMPLES;
+            sampleCount = Math.min(sampleCount + 1, SAMPLES);
+        }
+    }
+
+    public void recordCancel() {
+        cancelledChunks.increment();
+    }
+
+    public long getLoadedChunks() {
+        return loadedChunks.sum();
+    }
+
+    public long getCancelledChunks() {
+        return cancelledChunks.sum();
+    }
+
+    /**
+     * Latency percentiles over the most recent loads, in the order of the given fractions.
+     */
+    public double[] getLatencyPercentilesMillis(double... fractions) {
+        long[] sorted;
+        synchronized (latencyNanos) {
+            sorted = Arrays.copyOf(latencyNanos, sampleCount);
+        }
+        Arrays.sort(sorted);
+
+        double[] result = new double[fractions.length];
+        for (int i = 0; i < fractions.length && sorted.length > 0; i++) {
+            int index = (int) Math.min(sorted.length - 1, Math.max(0, Math.ceil(fractions[i] * sorted.length) - 1));
+            result[i] = sorted[index] / (double) TimeUnit.MILLISECONDS.toNanos(1);
+        }
+        return result;
+    }
+}
@@ -0,0 +1,65 @@
+package cn.pfcraft.server.chunkio;
+
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.LongAdder;
+
+/**
+ * Save counters of a single chunk loader, written by the file IO workers and read by /pfserver io.
+ */
+public class ChunkSaveStats {
+    private final LongAdder savedChunks = new LongAdder();
+    private final LongAdder savedBytes = new LongAdder();
+    private final LongAdder latencyNanos = new LongAdder();
+    private volatile long maxLatencyNanos;
+    private long sampleBytes;
+    private long sampleTime = System.nanoTime();
+
+    public void record(int bytes, long latency) {
+        savedChunks.increment();
+        savedBytes.add(bytes);
+        latencyNanos.add(latency);
+        if (latency > maxLatencyNanos) {
+            maxLatencyNanos = latency;
+        }
+    }
+
+    public long getSavedChunks() {
+        return savedChunks.sum();
+    }
+
+    public long getSavedBytes() {
+        return savedBytes.sum();
+    }
+
+    public double getAverageLatencyMillis() {
+        long chunks = savedChunks.sum();
+        return chunks == 0 ? 0D : latencyNanos.sum() / (double) chunks / TimeUnit.MILLISECONDS.toNanos(1);
+    }
+
+    public double getMaxLatencyMillis() {
+        return maxLatencyNanos / (double) TimeUnit.MILLISECONDS.toNanos(1);
+    }
+
+    /**
+     * Bytes written per second since the previous call.
+     */
+    public synchronized double sampleBytesPerSecond() {
+        long now = System.nanoTime();
+        long bytes = savedBytes.sum();
+        double rate = (bytes - sampleBytes) / ((now - sampleTime) / (double) TimeUnit.SECONDS.toNanos(1));
+        sampleBytes = bytes;
+        sampleTime = now;
+        return rate;
+    }
+
+    public void reset() {
+        savedChunks.reset();
+        savedBytes.reset();
+        latencyNanos.reset();
+        maxLatencyNanos = 0;
+        synchronized (this) {
+            sampleBytes = 0;
+            sampleTime = System.nanoTime();
+        }
+    }
+}
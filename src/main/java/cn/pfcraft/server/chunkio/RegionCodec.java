@@ -0,0 +1,26 @@
+package cn.pfcraft.server.chunkio;
+
+import java.io.IOException;
+import java.nio.ByteBuffer;
+
+/**
+ * Compression of a chunk inside a region file, identified by the type byte stored in front of every chunk.
+ */
+public interface RegionCodec {
+
+    int getId();
+
+    String getName();
+
+    /**
+     * Compresses the serialized chunk into {@link ChunkBuffers#compressedArray()}.
+     *
+     * @return the compressed length
+     */
+    int compress(ChunkBuffers buffers, byte[] input, int length, int level) throws IOException;
+
+    /**
+     * Decompresses a stored chunk. The result may point into the buffers and is only valid until they are used again.
+     */
+    ByteBuffer decompress(ChunkBuffers buffers, byte[] input, int offset, int length) throws IOException;
+}
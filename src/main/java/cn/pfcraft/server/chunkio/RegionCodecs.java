@@ -0,0 +1,190 @@
+package cn.pfcraft.server.chunkio;
+
+import net.jpountz.lz4.LZ4BlockInputStream;
+import net.jpountz.lz4.LZ4BlockOutputStream;
+import net.jpountz.lz4.LZ4Factory;
+import net.jpountz.xxhash.XXHashFactory;
+
+import javax.annotation.Nullable;
+import java.io.ByteArrayInputStream;
+import java.io.IOException;
+import java.io.OutputStream;
+import java.nio.ByteBuffer;
+import java.util.Collection;
+import java.util.Collections;
+import java.util.Locale;
+import java.util.Map;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.zip.DataFormatException;
+import java.util.zip.Deflater;
+import java.util.zip.GZIPInputStream;
+import java.util.zip.GZIPOutputStream;
+import java.util.zip.Inflater;
+
+/**
+ * Registry of the region file compression types. Every registered codec can be read back regardless of the codec
+ * a world is configured to write with.
+ */
+public class RegionCodecs {
+    private static final Map<Integer, RegionCodec> BY_ID = new ConcurrentHashMap<>();
+    private static final Map<String, RegionCodec> BY_NAME = new ConcurrentHashMap<>();
+
+    public static final RegionCodec GZIP = register(new GZipCodec());
+    public static final RegionCodec ZLIB = register(new ZlibCodec());
+    public static final RegionCodec NONE = register(new NoneCodec());
+    public static final RegionCodec LZ4 = register(new Lz4Codec());
+
+    public static RegionCodec register(RegionCodec codec) {
+        if (BY_ID.putIfAbsent(codec.getId(), codec) != null) {
+            throw new IllegalArgumentException("Duplicate region codec id " + codec.getId());
+        }
+        BY_NAME.put(codec.getName().toLowerCase(Locale.ENGLISH), codec);
+        return codec;
+    }
+
+    @Nullable
+    public static RegionCodec byId(int id) {
+        return BY_ID.get(id);
+    }
+
+    @Nullable
+    public static RegionCodec byName(String name) {
+        return BY_NAME.get(name.toLowerCase(Locale.ENGLISH));
+    }
+
+    public static Collection<String> getNames() {
+        return Collections.unmodifiableCollection(BY_NAME.keySet());
+    }
+
+    private static class GZipCodec implements RegionCodec {
+        @Override
+        public int getId() {
+            return 1;
+        }
+
+        @Override
+        public String getName() {
+            return "gzip";
+        }
+
+        @Override
+        public int compress(ChunkBuffers buffers, byte[] input, int length, int level) throws IOException {
+            OutputStream output = new GZIPOutputStream(buffers.compressedOutput());
+            output.write(input, 0, length);
+            output.close();
+            return buffers.compressedOutputLength();
+        }
+
+        @Override
+        public ByteBuffer decompress(ChunkBuffers buffers, byte[] input, int offset, int length) throws IOException {
+            return buffers.readUncompressed(new GZIPInputStream(new ByteArrayInputStream(input, offset, length)));
+        }
+    }
+
+    /**
+     * The vanilla format, with a configurable level.
+     */
+    private static class ZlibCodec implements RegionCodec {
+        @Override
+        public int getId() {
+            return 2;
+        }
+
+        @Override
+        public String getName() {
+            return "zlib";
+        }
+
+        @Override
+        public int compress(ChunkBuffers buffers, byte[] input, int length, int level) {
+            Deflater deflater = buffers.deflater(level);
+            deflater.setInput(input, 0, length);
+            deflater.finish();
+            int size = 0;
+            while (!deflater.finished()) {
+                byte[] output = buffers.growCompressed(size, size + 1);
+                size += deflater.deflate(output, size, output.length - size);
+            }
+            return size;
+        }
+
+        @Override
+        public ByteBuffer decompress(ChunkBuffers buffers, byte[] input, int offset, int length) throws IOException {
+            Inflater inflater = buffers.inflater();
+            inflater.setInput(input, offset, length);
+            int size = 0;
+            try {
+                while (!inflater.finished()) {
+                    byte[] output = buffers.growUncompressed(size, size + 1);
+                    int inflated = inflater.inflate(output, size, output.length - size);
+                    if (inflated == 0 && (inflater.needsInput() || inflater.needsDictionary())) {
+                        throw new IOException("Truncated chunk data");
+                    }
+                    size += inflated;
+                }
+            } catch (DataFormatException e) {
+                throw new IOException(e);
+            }
+            return ByteBuffer.wrap(buffers.uncompressedArray(), 0, size);
+        }
+    }
+
+    private static class NoneCodec implements RegionCodec {
+        @Override
+        public int getId() {
+            return 3;
+        }
+
+        @Override
+        public String getName() {
+            return "none";
+        }
+
+        @Override
+        public int compress(ChunkBuffers buffers, byte[] input, int length, int level) {
+            System.arraycopy(input, 0, buffers.growCompressed(0, length), 0, length);
+            return length;
+        }
+
+        @Override
+        public ByteBuffer decompress(ChunkBuffers buffers, byte[] input, int offset, int length) {
+            return ByteBuffer.wrap(input, offset, length);
+        }
+    }
+
+    /**
+     * LZ4 block stream, laid out the same way as the type 4 chunks of newer vanilla versions.
+     * The pure Java implementations are used so nothing native has to be loaded through the launch class loader.
+     */
+    private static class Lz4Codec implements RegionCodec {
+        private static final int BLOCK_SIZE = 64 * 1024;
+        private static final int CHECKSUM_SEED = 0x9747b28c;
+
+        @Override
+        public int getId() {
+            return 4;
+        }
+
+        @Override
+        public String getName() {
+            return "lz4";
+        }
+
+        @Override
+        public int compress(ChunkBuffers buffers, byte[] input, int length, int level) throws IOException {
+            OutputStream output = new LZ4BlockOutputStream(buffers.compressedOutput(), BLOCK_SIZE,
+                    LZ4Factory.fastestJavaInstance().fastCompressor(),
+                    XXHashFactory.fastestJavaInstance().newStreamingHash32(CHECKSUM_SEED).asChecksum(), false);
+            output.write(input, 0, length);
+            output.close();
+            return buffers.compressedOutputLength();
+        }
+
+        @Override
+        public ByteBuffer decompress(ChunkBuffers buffers, byte[] input, int offset, int length) throws IOException {
+            return buffers.readUncompressed(new LZ4BlockInputStream(new ByteArrayInputStream(input, offset, length),
+                    LZ4Factory.fastestJavaInstance().fastDecompressor(),
+                    XXHashFactory.fastestJavaInstance().newStreamingHash32(CHECKSUM_SEED).asChecksum()));
+        }
+    }
+}
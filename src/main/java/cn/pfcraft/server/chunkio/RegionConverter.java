@@ -0,0 +1,170 @@
+package cn.pfcraft.server.chunkio;
+
+import java.io.ByteArrayOutputStream;
+import java.io.DataOutputStream;
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.Paths;
+import java.nio.file.StandardCopyOption;
+import java.util.List;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.stream.Collectors;
+import java.util.stream.Stream;
+import java.util.zip.Deflater;
+
+/**
+ * Offline tool re-encoding every region file of a world with another codec, one region file per thread.
+ * The server must be stopped while it runs:
+ * <pre>java -cp PFServer-server.jar cn.pfcraft.server.chunkio.RegionConverter &lt;world folder&gt; &lt;codec&gt; [level] [threads]</pre>
+ */
+public class RegionConverter {
+    private static final int SECTOR_SIZE = 4096;
+    private static final int HEADER_SIZE = 2 * SECTOR_SIZE;
+
+    private final RegionCodec codec;
+    private final int level;
+    private final AtomicInteger convertedChunks = new AtomicInteger();
+    private final AtomicInteger keptChunks = new AtomicInteger();
+    private final AtomicLong bytesBefore = new AtomicLong();
+    private final AtomicLong bytesAfter = new AtomicLong();
+
+    public RegionConverter(RegionCodec codec, int level) {
+        this.codec = codec;
+        this.level = level;
+    }
+
+    public static void main(String[] args) throws Exception {
+        if (args.length < 2) {
+            System.out.println("Usage: RegionConverter <world folder> <" + String.join("|", RegionCodecs.getNames()) + "> [level] [threads]");
+            System.out.println("Only run this while the server is stopped.");
+            System.exit(1);
+        }
+
+        RegionCodec codec = RegionCodecs.byName(args[1]);
+        if (codec == null) {
+            System.out.println("Unknown codec " + args[1] + ", valid values are " + RegionCodecs.getNames());
+            System.exit(1);
+        }
+        int level = args.length > 2 ? Integer.parseInt(args[2]) : Deflater.DEFAULT_COMPRESSION;
+        int threads = args.length > 3 ? Integer.parseInt(args[3]) : Runtime.getRuntime().availableProcessors();
+
+        List<Path> regions;
+        try (Stream<Path> files = Files.walk(Paths.get(args[0]))) {
+            regions = files.filter(path -> path.getFileName().toString().endsWith(".mca")
+                    && path.getParent() != null && path.getParent().getFileName().toString().equals("region"))
+                    .collect(Collectors.toList());
+        }
+
+        RegionConverter converter = new RegionConverter(codec, level);
+        ExecutorService executor = Executors.newFixedThreadPool(Math.max(1, threads));
+        long start = System.currentTimeMillis();
+        try {
+            List<Future<?>> futures = regions.stream().map(path -> executor.submit(() -> {
+                try {
+                    converter.convert(path);
+                } catch (IOException e) {
+                    System.out.println("Failed to convert " + path + ": " + e);
+                }
+            })).collect(Collectors.toList());
+
+            for (int i = 0; i < futures.size(); i++) {
+                futures.get(i).get();
+                if ((i + 1) % 100 == 0 || i + 1 == futures.size()) {
+                    System.out.println("Converted " + (i + 1) + "/" + futures.size() + " region files");
+                }
+            }
+        } finally {
+            executor.shutdown();
+        }
+
+        System.out.println(String.format("Done in %.1fs: %d chunks re-encoded as %s, %d kept as they were, %.1f MiB -> %.1f MiB",
+                (System.currentTimeMillis() - start) / 1000D, converter.convertedChunks.get(), codec.getName(), converter.keptChunks.get(),
+                converter.bytesBefore.get() / 1048576D, converter.bytesAfter.get() / 1048576D));
+    }
+
+    /**
+     * Rewrites a single region file, replacing it only once the new one is complete.
+     */
+    public void convert(Path path) throws IOException {
+        ByteBuffer input = ByteBuffer.wrap(Files.readAllBytes(path));
+        if (input.capacity() < HEADER_SIZE) {
+            return;
+        }
+
+        ChunkBuffers buffers = ChunkBuffers.get();
+        ByteArrayOutputStream bytes = new ByteArrayOutputStream(input.capacity());
+        DataOutputStream output = new DataOutputStream(bytes);
+        int[] offsets = new int[1024];
+        output.write(new byte[HEADER_SIZE]);
+        int sector = 2;
+
+        for (int i = 0; i < 1024; i++) {
+            int offset = input.getInt(i * 4);
+            int start = (offset >> 8) * SECTOR_SIZE;
+            if (offset == 0 || start + 5 > input.capacity()) {
+                continue;
+            }
+            int length = input.getInt(start);
+            if (length <= 0 || length > (offset & 255) * SECTOR_SIZE || start + 4 + length > input.capacity()) {
+                continue;
+            }
+
+            byte type = input.get(start + 4);
+            RegionCodec from = RegionCodecs.byId(type);
+            byte[] data = input.array();
+            int dataOffset = start + 5;
+            int dataLength = length - 1;
+            try {
+                if (from != null) {
+                    ByteBuffer nbt = from.decompress(buffers, input.array(), dataOffset, dataLength);
+                    byte[] uncompressed = new byte[nbt.remaining()];
+                    nbt.get(uncompressed);
+                    int compressedLength = codec.compress(buffers, uncompressed, uncompressed.length, level);
+                    if ((compressedLength + 5) / SECTOR_SIZE + 1 < 256) {
+                        type = (byte) codec.getId();
+                        data = buffers.compressedArray();
+                        dataOffset = 0;
+                        dataLength = compressedLength;
+                    }
+                }
+            } catch (IOException e) {
+                System.out.println("Keeping unreadable chunk " + i + " of " + path + " as it is: " + e);
+            }
+
+            if (type == codec.getId()) {
+                convertedChunks.incrementAndGet();
+            } else {
+                keptChunks.incrementAndGet();
+            }
+            int sectors = (dataLength + 5) / SECTOR_SIZE + 1;
+            offsets[i] = sector << 8 | sectors;
+            output.writeInt(dataLength + 1);
+            output.writeByte(type);
+            output.write(data, dataOffset, dataLength);
+            output.write(new byte[sectors * SECTOR_SIZE - dataLength - 5]);
+            sector += sectors;
+            buffers.trim();
+        }
+
+        output.close();
+        byte[] result = bytes.toByteArray();
+        ByteBuffer header = ByteBuffer.wrap(result);
+        for (int i = 0; i < 1024; i++) {
+            header.putInt(i * 4, offsets[i]);
+            // Timestamps stay as they were
+            header.putInt(SECTOR_SIZE + i * 4, input.getInt(SECTOR_SIZE + i * 4));
+        }
+
+        Path temp = path.resolveSibling(path.getFileName() + ".tmp");
+        Files.write(temp, result);
+        Files.move(temp, path, StandardCopyOption.REPLACE_EXISTING, StandardCopyOption.ATOMIC_MOVE);
+        bytesBefore.addAndGet(input.capacity());
+        bytesAfter.addAndGet(result.length);
+    }
+}
@@ -0,0 +1,363 @@
+package cn.pfcraft.server.chunkio;
+
+import cn.pfcraft.server.PFSConfig;
+import cn.pfcraft.server.PFServer;
+import it.unimi.dsi.fastutil.longs.Long2ObjectMap;
+import it.unimi.dsi.fastutil.longs.Long2ObjectOpenHashMap;
+import it.unimi.dsi.fastutil.longs.LongArrayList;
+import it.unimi.dsi.fastutil.longs.LongLinkedOpenHashSet;
+import it.unimi.dsi.fastutil.longs.LongList;
+import net.minecraft.entity.player.EntityPlayer;
+import net.minecraft.util.math.ChunkPos;
+import net.minecraft.world.WorldServer;
+import net.minecraft.world.chunk.storage.AnvilChunkLoader;
+import net.minecraft.world.chunk.storage.RegionFile;
+import net.minecraft.world.chunk.storage.RegionFileCache;
+import net.minecraft.world.gen.ChunkProviderServer;
+
+import javax.annotation.Nullable;
+import java.io.File;
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Iterator;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.WeakHashMap;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.atomic.AtomicBoolean;
+import java.util.concurrent.atomic.LongAdder;
+
+/**
+ * Reads the stored chunks players are heading towards before they are requested, so the chunk load threads find
+ * them in memory instead of waiting on the disk.
+ * <p>
+ * Every few ticks the position of each moving player is extrapolated from how far they moved since the last pass, and
+ * the chunks in view distance of that position that aren't loaded yet are read by a single prefetch thread. Reads
+ * are grouped by region file and sorted by sector so the disk sees them in file order. The compressed payloads are
+ * kept in a cache bounded by {@link PFSConfig#prefetchCacheSize} and are taken out by the first load of the chunk.
+ * Region files are only opened while the region file cache has room, so prefetching never closes one in use.
+ * <p>
+ * Entries are keyed by region file instance and only read, stored, taken and invalidated while holding the region
+ * file lock, so a payload can't outlive a write of the same chunk.
+ */
+public class RegionPrefetcher {
+    private static final int INTERVAL = 10;
+    private static final int LOOKAHEAD_TICKS = 40;
+    private static final double MIN_SPEED = 0.05D;
+    private static final int MAX_CHUNKS_PER_PASS = 256;
+
+    private static final Map<Key, byte[]> cache = new LinkedHashMap<>(256, 0.75F, true);
+    private static long cachedBytes;
+    private static final Map<EntityPlayer, double[]> lastPositions = new WeakHashMap<>();
+    private static final AtomicBoolean reading = new AtomicBoolean();
+    private static final ExecutorService executor = Executors.newSingleThreadExecutor(r -> {
+        Thread thread = new Thread(r, "Region Prefetch Thread");
+        thread.setDaemon(true);
+        thread.setPriority(Thread.MIN_PRIORITY);
+        return thread;
+    });
+    private static int ticks;
+
+    private static final LongAdder prefetched = new LongAdder();
+    private static final LongAdder hits = new LongAdder();
+    private static final LongAdder misses = new LongAdder();
+    private static final LongAdder unused = new LongAdder();
+
+    public static boolean isEnabled() {
+        return PFSConfig.prefetchCacheSize > 0;
+    }
+
+    /**
+     * Called every tick from the main thread.
+     */
+    public static void tick(List<WorldServer> worlds) {
+        if (++ticks % INTERVAL != 0) {
+            return;
+        }
+        if (!isEnabled()) {
+            if (cachedBytes > 0) {
+                clear();
+            }
+            return;
+        }
+        // Still busy with the previous pass, the players will have moved on by the time this one is read
+        if (reading.get()) {
+            return;
+        }
+
+        List<Request> requests = new ArrayList<>();
+        int budget = MAX_CHUNKS_PER_PASS;
+        for (WorldServer world : worlds) {
+            ChunkProviderServer provider = world.getChunkProvider();
+            if (budget > 0 && provider.chunkLoader instanceof AnvilChunkLoader && !world.playerEntities.isEmpty()) {
+                LongList chunks = predict(world, budget);
+                if (!chunks.isEmpty()) {
+                    requests.add(new Request(((AnvilChunkLoader) provider.chunkLoader).chunkSaveLocation, chunks));
+                    budget -= chunks.size();
+                }
+            }
+        }
+
+        if (!requests.isEmpty()) {
+            reading.set(true);
+            executor.execute(() -> {
+                try {
+                    for (Request request : requests) {
+                        read(request);
+                    }
+                } finally {
+                    reading.set(false);
+                }
+            });
+        }
+    }
+
+    private static LongList predict(WorldServer world, int budget) {
+        LongLinkedOpenHashSet chunks = new LongLinkedOpenHashSet();
+        int radius = world.getPlayerChunkMap().getViewRadius();
+        ChunkProviderServer provider = world.getChunkProvider();
+
+        for (EntityPlayer player : world.playerEntities) {
+            double[] last = lastPositions.get(player);
+            lastPositions.put(player, new double[] {player.posX, player.posZ});
+            if (last == null) {
+                continue;
+            }
+
+            double velocityX = (player.posX - last[0]) / INTERVAL;
+            double velocityZ = (player.posZ - last[1]) / INTERVAL;
+            if (velocityX * velocityX + velocityZ * velocityZ < MIN_SPEED * MIN_SPEED) {
+                continue;
+            }
+
+            int chunkX = (int) Math.floor(player.posX) >> 4;
+            int chunkZ = (int) Math.floor(player.posZ) >> 4;
+            int predictedX = (int) Math.floor(player.posX + velocityX * LOOKAHEAD_TICKS) >> 4;
+            int predictedZ = (int) Math.floor(player.posZ + velocityZ * LOOKAHEAD_TICKS) >> 4;
+
+            for (int x = predictedX - radius; x <= predictedX + radius; x++) {
+                for (int z = predictedZ - radius; z <= predictedZ + radius; z++) {
+                    // Already within view, the chunk map has it loaded or queued
+                    if (Math.abs(x - chunkX) <= radius && Math.abs(z - chunkZ) <= radius) {
+                        continue;
+                    }
+                    if (provider.getLoadedChunk(x, z) == null) {
+                        chunks.add(ChunkPos.asLong(x, z));
+                        if (chunks.size() >= budget) {
+                            return new LongArrayList(chunks);
+                        }
+                    }
+                }
+            }
+        }
+        return new LongArrayList(chunks);
+    }
+
+    private static void read(Request request) {
+        Long2ObjectMap<LongList> byRegion = new Long2ObjectOpenHashMap<>();
+        for (int i = 0; i < request.chunks.size(); i++) {
+            long chunk = request.chunks.getLong(i);
+            long region = ChunkPos.asLong((int) chunk >> 5, (int) (chunk >> 32) >> 5);
+            LongList list = byRegion.get(region);
+            if (list == null) {
+                list = new LongArrayList();
+                byRegion.put(region, list);
+            }
+            list.add(chunk);
+        }
+
+        ChunkBuffers buffers = ChunkBuffers.get();
+        for (LongList chunks : byRegion.values()) {
+            long first = chunks.getLong(0);
+            RegionFile region = RegionFileCache.getRegionFileForPrefetch(request.directory, (int) first, (int) (first >> 32));
+            if (region == null) {
+                continue;
+            }
+
+            // Sector first and index in the region last, so sorting the keys sorts the reads by their place in the file
+            long[] reads = new long[chunks.size()];
+            int count = 0;
+            for (int i = 0; i < chunks.size(); i++) {
+                int x = (int) chunks.getLong(i) & 31;
+                int z = (int) (chunks.getLong(i) >> 32) & 31;
+                int sector = region.getSectorOffset(x, z);
+                if (sector != 0) {
+                    reads[count++] = (long) sector << 10 | (x + z * 32);
+                }
+            }
+            Arrays.sort(reads, 0, count);
+
+            for (int i = 0; i < count; i++) {
+                int x = (int) reads[i] & 31;
+                int z = (int) (reads[i] >> 5) & 31;
+                try {
+                    synchronized (region) {
+                        if (region.isClosed()) {
+                            break;
+                        }
+                        Key key = new Key(region, x, z);
+                        synchronized (cache) {
+                            if (cache.containsKey(key)) {
+                                continue;
+                            }
+                        }
+                        ByteBuffer data = region.readChunkData(x, z, buffers);
+                        if (data != null) {
+                            byte[] bytes = new byte[data.limit()];
+                            System.arraycopy(data.array(), data.arrayOffset(), bytes, 0, bytes.length);
+                            put(key, bytes);
+                            prefetched.increment();
+                        }
+                    }
+                } catch (IOException e) {
+                    PFServer.LOGGER.warn("Failed to prefetch chunk {},{} of {}", x, z, request.directory, e);
+                } finally {
+                    buffers.trim();
+                }
+            }
+        }
+    }
+
+    private static void put(Key key, byte[] bytes) {
+        long limit = PFSConfig.prefetchCacheSize * 1024L * 1024L;
+        synchronized (cache) {
+            byte[] previous = cache.put(key, bytes);
+            cachedBytes += bytes.length - (previous == null ? 0 : previous.length);
+            Iterator<byte[]> iterator = cache.values().iterator();
+            while (cachedBytes > limit && iterator.hasNext()) {
+                cachedBytes -= iterator.next().length;
+                iterator.remove();
+                unused.increment();
+            }
+        }
+    }
+
+    /**
+     * Takes the prefetched payload of a chunk, the first byte being its compression type. Must be called while
+     * holding the region file lock.
+     */
+    @Nullable
+    public static ByteBuffer take(RegionFile region, int x, int z) {
+        if (!isEnabled()) {
+            return null;
+        }
+        byte[] bytes;
+        synchronized (cache) {
+            bytes = cache.remove(new Key(region, x, z));
+            if (bytes != null) {
+                cachedBytes -= bytes.length;
+            }
+        }
+        if (bytes == null) {
+            misses.increment();
+            return null;
+        }
+        hits.increment();
+        return ByteBuffer.wrap(bytes);
+    }
+
+    /**
+     * Drops the payload of a chunk being written. Must be called while holding the region file lock.
+     */
+    public static void invalidate(RegionFile region, int x, int z) {
+        synchronized (cache) {
+            if (cachedBytes == 0) {
+                return;
+            }
+            byte[] bytes = cache.remove(new Key(region, x, z));
+            if (bytes != null) {
+                cachedBytes -= bytes.length;
+            }
+        }
+    }
+
+    /**
+     * Drops everything prefetched from a region file that is being closed.
+     */
+    public static void invalidate(RegionFile region) {
+        synchronized (cache) {
+            Iterator<Map.Entry<Key, byte[]>> iterator = cache.entrySet().iterator();
+            while (cachedBytes > 0 && iterator.hasNext()) {
+                Map.Entry<Key, byte[]> entry = iterator.next();
+                if (entry.getKey().region == region) {
+                    cachedBytes -= entry.getValue().length;
+                    iterator.remove();
+                    unused.increment();
+                }
+            }
+        }
+    }
+
+    public static void clear() {
+        synchronized (cache) {
+            cache.clear();
+            cachedBytes = 0;
+        }
+    }
+
+    public static long getPrefetchedChunks() {
+        return prefetched.sum();
+    }
+
+    public static long getHits() {
+        return hits.sum();
+    }
+
+    public static long getMisses() {
+        return misses.sum();
+    }
+
+    public static long getUnusedChunks() {
+        return unused.sum();
+    }
+
+    public static int getCachedChunks() {
+        synchronized (cache) {
+            return cache.size();
+        }
+    }
+
+    public static long getCachedBytes() {
+        synchronized (cache) {
+            return cachedBytes;
+        }
+    }
+
+    private static class Request {
+        private final File directory;
+        private final LongList chunks;
+
+        private Request(File directory, LongList chunks) {
+            this.directory = directory;
+            this.chunks = chunks;
+        }
+    }
+
+    private static class Key {
+        private final RegionFile region;
+        private final int index;
+
+        private Key(RegionFile region, int x, int z) {
+            this.region = region;
+            this.index = x + z * 32;
+        }
+
+        @Override
+        public boolean equals(Object object) {
+            if (!(object instanceof Key)) {
+                return false;
+            }
+            Key other = (Key) object;
+            return region == other.region && index == other.index;
+        }
+
+        @Override
+        public int hashCode() {
+            return System.identityHashCode(region) * 31 + index;
+        }
+    }
+}
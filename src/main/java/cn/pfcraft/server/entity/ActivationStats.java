@@ -0,0 +1,76 @@
+package cn.pfcraft.server.entity;
+
+import net.minecraft.entity.Entity;
+
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Queue;
+import java.util.concurrent.ConcurrentLinkedQueue;
+
+/**
+ * Entity ticks run and skipped by the activation range since timings were last reset, by entity type. Counted on the
+ * server thread, read without synchronization.
+ */
+public class ActivationStats {
+    private static final Queue<Counts> ALL = new ConcurrentLinkedQueue<>();
+    private static final ClassValue<Counts> COUNTS = new ClassValue<Counts>() {
+        @Override
+        protected Counts computeValue(Class<?> type) {
+            Counts counts = new Counts(type.getSimpleName());
+            ALL.add(counts);
+            return counts;
+        }
+    };
+
+    public static void record(Entity entity, boolean active) {
+        Counts counts = COUNTS.get(entity.getClass());
+        if (active) {
+            ++counts.active;
+        } else {
+            ++counts.inactive;
+        }
+    }
+
+    /**
+     * The types that ticked or were skipped, most counted first.
+     */
+    public static List<Counts> getCounts() {
+        List<Counts> list = new ArrayList<>();
+        for (Counts counts : ALL) {
+            if (counts.active + counts.inactive > 0) {
+                list.add(counts);
+            }
+        }
+        list.sort((a, b) -> Long.compare(b.active + b.inactive, a.active + a.inactive));
+        return list;
+    }
+
+    public static void reset() {
+        for (Counts counts : ALL) {
+            counts.active = 0;
+            counts.inactive = 0;
+        }
+    }
+
+    public static class Counts {
+        private final String name;
+        private long active;
+        private long inactive;
+
+        private Counts(String name) {
+            this.name = name;
+        }
+
+        public String getName() {
+            return name;
+        }
+
+        public long getActive() {
+            return active;
+        }
+
+        public long getInactive() {
+            return inactive;
+        }
+    }
+}
@@ -0,0 +1,127 @@
+package cn.pfcraft.server.entity;
+
+import net.minecraft.entity.Entity;
+import net.minecraft.entity.EntityLiving;
+import net.minecraft.entity.EnumCreatureType;
+import net.minecraft.world.World;
+import net.minecraft.world.chunk.Chunk;
+
+import java.util.Arrays;
+
+/**
+ * Live counts of the entities towards each creature type's spawn cap, kept by worlds and chunks as entities are added
+ * and removed instead of scanning their entity lists.
+ * <p>
+ * An entity counts towards the types whose creature class it is an instance of, unless it is a mob that could despawn
+ * but was made persistent. The types an entity was counted as are recorded on it, so taking it out removes exactly what
+ * putting it in added even if its persistence changed in between, and {@link #update} moves it when it does.
+ */
+public class CreatureCounts {
+    // Recorded on entities that aren't counted
+    public static final int NOT_COUNTED = -1;
+
+    private static final ClassValue<Integer> CLASS_MASKS = new ClassValue<Integer>() {
+        @Override
+        protected Integer computeValue(Class<?> type) {
+            int mask = 0;
+            for (EnumCreatureType creatureType : EnumCreatureType.values()) {
+                if (creatureType.ordinal() < Integer.SIZE && creatureType.getCreatureClass().isAssignableFrom(type)) {
+                    mask |= 1 << creatureType.ordinal();
+                }
+            }
+            return mask;
+        }
+    };
+
+    private int[] counts = new int[EnumCreatureType.values().length];
+
+    /**
+     * The creature types the entity counts towards, as a mask of their ordinals.
+     */
+    public static int getMask(Entity entity) {
+        if (entity instanceof EntityLiving) {
+            EntityLiving living = (EntityLiving) entity;
+            if (living.canDespawn() && living.isNoDespawnRequired()) {
+                return 0;
+            }
+        }
+        return CLASS_MASKS.get(entity.getClass());
+    }
+
+    /**
+     * Counts the entity, and returns the mask to record on it.
+     */
+    public int add(Entity entity, int recorded) {
+        if (recorded != NOT_COUNTED) {
+            adjust(recorded, -1);
+        }
+        int mask = getMask(entity);
+        adjust(mask, 1);
+        return mask;
+    }
+
+    /**
+     * Takes back what was recorded on the entity, and returns {@link #NOT_COUNTED} to record on it.
+     */
+    public int remove(int recorded) {
+        if (recorded != NOT_COUNTED) {
+            adjust(recorded, -1);
+        }
+        return NOT_COUNTED;
+    }
+
+    /**
+     * Counts the entities from scratch, to check the live counts against.
+     */
+    public static CreatureCounts scan(Iterable<? extends Entity> entities) {
+        CreatureCounts counts = new CreatureCounts();
+        for (Entity entity : entities) {
+            counts.adjust(getMask(entity), 1);
+        }
+        return counts;
+    }
+
+    public void addAll(CreatureCounts other) {
+        for (EnumCreatureType type : EnumCreatureType.values()) {
+            int count = other.get(type);
+            if (count != 0 && type.ordinal() < Integer.SIZE) {
+                adjust(1 << type.ordinal(), count);
+            }
+        }
+    }
+
+    public int get(EnumCreatureType type) {
+        return type.ordinal() < counts.length ? counts[type.ordinal()] : 0;
+    }
+
+    private void adjust(int mask, int delta) {
+        while (mask != 0) {
+            int ordinal = Integer.numberOfTrailingZeros(mask);
+            if (ordinal >= counts.length) {
+                // Mods add creature types while loading
+                counts = Arrays.copyOf(counts, EnumCreatureType.values().length);
+            }
+            counts[ordinal] += delta;
+            mask &= mask - 1;
+        }
+    }
+
+    /**
+     * Recounts the entity in its world and chunk after its persistence changed.
+     */
+    public static void update(Entity entity) {
+        World world = entity.world;
+        if (world == null) {
+            return;
+        }
+        if (entity.worldCreatureMask != NOT_COUNTED) {
+            entity.worldCreatureMask = world.creatureCounts.add(entity, entity.worldCreatureMask);
+        }
+        if (entity.chunkCreatureMask != NOT_COUNTED && entity.addedToChunk) {
+            Chunk chunk = world.getChunkProvider().getLoadedChunk(entity.chunkCoordX, entity.chunkCoordZ);
+            if (chunk != null) {
+                entity.chunkCreatureMask = chunk.creatureCounts.add(entity, entity.chunkCreatureMask);
+            }
+        }
+    }
+}
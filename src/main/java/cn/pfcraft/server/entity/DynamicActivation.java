@@ -0,0 +1,235 @@
+package cn.pfcraft.server.entity;
+
+import cn.pfcraft.server.PFSConfig;
+import it.unimi.dsi.fastutil.longs.Long2ObjectOpenHashMap;
+import net.minecraft.entity.Entity;
+import net.minecraft.entity.EntityLiving;
+import net.minecraft.entity.EnumCreatureType;
+import net.minecraft.entity.MultiPartEntityPart;
+import net.minecraft.entity.boss.EntityWither;
+import net.minecraft.entity.effect.EntityWeatherEffect;
+import net.minecraft.entity.item.EntityEnderCrystal;
+import net.minecraft.entity.item.EntityFallingBlock;
+import net.minecraft.entity.item.EntityFireworkRocket;
+import net.minecraft.entity.item.EntityTNTPrimed;
+import net.minecraft.entity.player.EntityPlayer;
+import net.minecraft.entity.projectile.EntityFireball;
+import net.minecraft.entity.projectile.EntityThrowable;
+import net.minecraft.server.MinecraftServer;
+import net.minecraft.util.math.ChunkPos;
+import net.minecraft.util.math.MathHelper;
+import net.minecraft.world.World;
+import net.minecraft.world.chunk.Chunk;
+import org.spigotmc.ActivationRange;
+import org.spigotmc.SpigotWorldConfig;
+
+import java.util.ArrayList;
+import java.util.List;
+
+/**
+ * Second generation of the Spigot entity activation range, used by worlds with activation-range.dynamic on.
+ * <p>
+ * Instead of being active inside fixed boxes around players, each entity gets a score when it is about to tick: its
+ * distance to the nearest player against the activation range of its group, with moving, pathing and swimming entities
+ * counting as closer. Entities scoring within range tick. The others sleep and wake on a schedule, sooner the closer
+ * they are, and stay active for a while if they wake up busy, as the Spigot immunity checks have it. All ranges shrink
+ * together while the server runs behind its tick time target, and grow back once it catches up.
+ */
+public class DynamicActivation {
+    private static final ClassValue<Boolean> ALWAYS_ACTIVE = new ClassValue<Boolean>() {
+        @Override
+        protected Boolean computeValue(Class<?> type) {
+            // The types Spigot excludes from activation range checks
+            if (EntityPlayer.class.isAssignableFrom(type) || EntityThrowable.class.isAssignableFrom(type)
+                    || MultiPartEntityPart.class.isAssignableFrom(type) || EntityWither.class.isAssignableFrom(type)
+                    || EntityFireball.class.isAssignableFrom(type) || EntityFallingBlock.class.isAssignableFrom(type)
+                    || EntityWeatherEffect.class.isAssignableFrom(type) || EntityTNTPrimed.class.isAssignableFrom(type)
+                    || EntityEnderCrystal.class.isAssignableFrom(type) || EntityFireworkRocket.class.isAssignableFrom(type)) {
+                return true;
+            }
+            if (type.getSuperclass() == Entity.class) {
+                for (EnumCreatureType creatureType : EnumCreatureType.values()) {
+                    if (creatureType.getCreatureClass().isAssignableFrom(type)) {
+                        return false;
+                    }
+                }
+                return true;
+            }
+            return false;
+        }
+    };
+    // How far beyond its range an entity sleeps for each tick between wake-ups
+    private static final double WAKE_DISTANCE_PER_TICK = 0.1D;
+    // How long an entity waking up busy stays active
+    private static final int BUSY_TICKS = 20;
+    private static final double PLAYER_LOOKUP_RANGES = 3.0D;
+    private static final EntityPlayer[] NO_PLAYERS = new EntityPlayer[0];
+
+    // Shared by all worlds, the tick time is the server's
+    private static double scale = 1.0D;
+    private static double averageTickMillis;
+    private static int sampledTick = Integer.MIN_VALUE;
+
+    private final World world;
+    // Players near each chunk with entities ticking this tick
+    private final Long2ObjectOpenHashMap<EntityPlayer[]> nearbyPlayers = new Long2ObjectOpenHashMap<>();
+    private final List<EntityPlayer> nearby = new ArrayList<>();
+    private double monsterRange;
+    private double animalRange;
+    private double miscRange;
+    private double lookupRange;
+
+    public DynamicActivation(World world) {
+        this.world = world;
+    }
+
+    /**
+     * Called before the world ticks its entities.
+     */
+    public void startTick() {
+        updateScale();
+        SpigotWorldConfig config = world.spigotConfig;
+        // Capped like the Spigot ranges, so active entities stay in chunks players keep loaded
+        int maxRange = (config.viewDistance << 4) - 8;
+        monsterRange = Math.min(maxRange, config.monsterActivationRange * scale);
+        animalRange = Math.min(maxRange, config.animalActivationRange * scale);
+        miscRange = Math.min(maxRange, config.miscActivationRange * scale);
+        lookupRange = Math.max(monsterRange, Math.max(animalRange, miscRange)) * PLAYER_LOOKUP_RANGES;
+        nearbyPlayers.clear();
+
+        for (EntityPlayer player : world.playerEntities) {
+            player.activatedTick = MinecraftServer.currentTick;
+        }
+    }
+
+    public boolean isActive(Entity entity) {
+        // Never safe to skip fireworks or entities not yet added to chunk
+        if (!entity.addedToChunk || entity instanceof EntityFireworkRocket) {
+            return true;
+        }
+        // Make sure not on edge of unloaded chunk, whatever else would keep the entity active
+        Chunk chunk = world.getChunkIfLoaded(MathHelper.floor(entity.posX) >> 4, MathHelper.floor(entity.posZ) >> 4);
+        if (chunk == null || !chunk.areNeighborsLoaded(1)) {
+            return false;
+        }
+        if (ALWAYS_ACTIVE.get(entity.getClass())) {
+            return true;
+        }
+        double range;
+        switch (entity.activationType) {
+            case 1:
+                range = world.spigotConfig.monsterActivationRange == 0 ? -1.0D : monsterRange;
+                break;
+            case 2:
+                range = world.spigotConfig.animalActivationRange == 0 ? -1.0D : animalRange;
+                break;
+            default:
+                range = world.spigotConfig.miscActivationRange == 0 ? -1.0D : miscRange;
+        }
+        int currentTick = MinecraftServer.currentTick;
+        if (range < 0.0D || entity.activatedTick >= currentTick) {
+            return true;
+        }
+
+        double score = getDistance(entity) * getWeight(entity) / Math.max(1.0D, range);
+        if (score <= 1.0D) {
+            return true;
+        }
+        int interval = MathHelper.clamp((int) Math.ceil((score - 1.0D) / WAKE_DISTANCE_PER_TICK), 1, PFSConfig.activationMaxWakeInterval);
+        if (entity.activationWakeTick < currentTick - PFSConfig.activationMaxWakeInterval) {
+            // Just fell asleep, spread the first wake-up so entities leaving range together don't wake together
+            entity.activationWakeTick = currentTick + 1 + (entity.getEntityId() & Integer.MAX_VALUE) % interval;
+            return false;
+        }
+        if (currentTick >= entity.activationWakeTick) {
+            entity.activationWakeTick = currentTick + interval;
+            if (ActivationRange.checkEntityImmunities(entity)) {
+                entity.activatedTick = currentTick + BUSY_TICKS;
+            }
+            return true;
+        }
+        return false;
+    }
+
+    /**
+     * Horizontal distance to the nearest player, or infinity when there is none within a few ranges.
+     */
+    private double getDistance(Entity entity) {
+        int chunkX = MathHelper.floor(entity.posX) >> 4;
+        int chunkZ = MathHelper.floor(entity.posZ) >> 4;
+        long key = ChunkPos.asLong(chunkX, chunkZ);
+        EntityPlayer[] players = nearbyPlayers.get(key);
+        if (players == null) {
+            nearby.clear();
+            double minX = (chunkX << 4) - lookupRange;
+            double maxX = (chunkX << 4) + 16 + lookupRange;
+            double minZ = (chunkZ << 4) - lookupRange;
+            double maxZ = (chunkZ << 4) + 16 + lookupRange;
+            for (EntityPlayer player : world.playerEntities) {
+                if (player.posX >= minX && player.posX <= maxX && player.posZ >= minZ && player.posZ <= maxZ) {
+                    nearby.add(player);
+                }
+            }
+            players = nearby.isEmpty() ? NO_PLAYERS : nearby.toArray(new EntityPlayer[0]);
+            nearbyPlayers.put(key, players);
+        }
+
+        double min = Double.POSITIVE_INFINITY;
+        for (EntityPlayer player : players) {
+            double dx = player.posX - entity.posX;
+            double dz = player.posZ - entity.posZ;
+            min = Math.min(min, dx * dx + dz * dz);
+        }
+        return Math.sqrt(min);
+    }
+
+    /**
+     * Moving, pathing and swimming entities count as closer than they are, as skipping their ticks shows the most.
+     */
+    private static double getWeight(Entity entity) {
+        double weight = 1.0D;
+        if (entity.motionX * entity.motionX + entity.motionZ * entity.motionZ > 1.0E-4D || !entity.onGround) {
+            weight *= 0.5D;
+        }
+        if (entity instanceof EntityLiving && !((EntityLiving) entity).getNavigator().noPath()) {
+            weight *= 0.5D;
+        }
+        if (entity.isInWater()) {
+            weight *= 0.5D;
+        }
+        return weight;
+    }
+
+    /**
+     * Moves the share of the configured ranges in use towards what keeps ticks within the target time.
+     */
+    private static void updateScale() {
+        int tick = MinecraftServer.currentTick;
+        if (tick == sampledTick) {
+            return;
+        }
+        sampledTick = tick;
+        MinecraftServer server = MinecraftServer.getServerInst();
+        if (server == null) {
+            return;
+        }
+        double last = server.tickTimeArray[(server.getTickCounter() + 99) % 100] / 1.0E6D;
+        averageTickMillis = averageTickMillis * 0.95D + last * 0.05D;
+        if (averageTickMillis > PFSConfig.activationTargetTickMillis) {
+            scale = Math.max(PFSConfig.activationMinScale, scale - 0.01D);
+        } else if (averageTickMillis < PFSConfig.activationTargetTickMillis * 0.9D) {
+            scale = Math.min(1.0D, scale + 0.002D);
+        }
+    }
+
+    /**
+     * The share of the configured activation ranges currently in use.
+     */
+    public static double getScale() {
+        return scale;
+    }
+
+    public static double getAverageTickMillis() {
+        return averageTickMillis;
+    }
+}
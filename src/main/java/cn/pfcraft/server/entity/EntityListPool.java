@@ -0,0 +1,31 @@
+package cn.pfcraft.server.entity;
+
+import net.minecraft.entity.Entity;
+
+import java.util.ArrayDeque;
+import java.util.ArrayList;
+import java.util.List;
+
+/**
+ * Lists for the entity box queries run every tick, reused instead of allocated per query. A list taken is released in a
+ * finally block once done with, and must not be kept. Queries can run inside each other, each gets its own list.
+ */
+public class EntityListPool {
+    // Lists filled past this are left to the garbage collector instead of holding on to their array
+    private static final int MAX_KEPT_SIZE = 1024;
+    private static final ThreadLocal<ArrayDeque<ArrayList<Entity>>> POOL = ThreadLocal.withInitial(ArrayDeque::new);
+
+    @SuppressWarnings("unchecked")
+    public static <T extends Entity> List<T> take() {
+        ArrayList<Entity> list = POOL.get().poll();
+        return (List<T>) (list == null ? new ArrayList<>() : list);
+    }
+
+    @SuppressWarnings("unchecked")
+    public static void release(List<? extends Entity> list) {
+        if (list.size() <= MAX_KEPT_SIZE) {
+            list.clear();
+            POOL.get().push((ArrayList<Entity>) list);
+        }
+    }
+}
@@ -0,0 +1,113 @@
+package cn.pfcraft.server.entity;
+
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Queue;
+import java.util.concurrent.ConcurrentLinkedQueue;
+
+/**
+ * Time spent in each type of AI goal since timings were last reset, to find the goals, often from mods, that are
+ * expensive to select or to run. Only measured while timings are on, on the server thread.
+ */
+public class GoalTimings {
+    private static final Queue<Timing> ALL = new ConcurrentLinkedQueue<>();
+    private static final ClassValue<Timing> TIMINGS = new ClassValue<Timing>() {
+        @Override
+        protected Timing computeValue(Class<?> type) {
+            Timing timing = new Timing(type.getName());
+            ALL.add(timing);
+            return timing;
+        }
+    };
+    private static volatile boolean enabled;
+
+    public static boolean isEnabled() {
+        return enabled;
+    }
+
+    public static void setEnabled(boolean enabled) {
+        GoalTimings.enabled = enabled;
+    }
+
+    /**
+     * Time deciding whether the goal should start or go on.
+     */
+    public static void recordSelect(Object goal, long nanos) {
+        Timing timing = TIMINGS.get(goal.getClass());
+        ++timing.selects;
+        timing.selectNanos += nanos;
+    }
+
+    /**
+     * Time running the goal.
+     */
+    public static void recordTick(Object goal, long nanos) {
+        Timing timing = TIMINGS.get(goal.getClass());
+        ++timing.ticks;
+        timing.tickNanos += nanos;
+    }
+
+    /**
+     * The goals that took the most time, most first.
+     */
+    public static List<Timing> getTop(int limit) {
+        List<Timing> list = new ArrayList<>();
+        for (Timing timing : ALL) {
+            if (timing.selects + timing.ticks > 0) {
+                list.add(timing.copy());
+            }
+        }
+        list.sort((a, b) -> Long.compare(b.selectNanos + b.tickNanos, a.selectNanos + a.tickNanos));
+        return list.subList(0, Math.min(limit, list.size()));
+    }
+
+    public static void reset() {
+        for (Timing timing : ALL) {
+            timing.selects = 0;
+            timing.selectNanos = 0;
+            timing.ticks = 0;
+            timing.tickNanos = 0;
+        }
+    }
+
+    public static class Timing {
+        private final String name;
+        private long selects;
+        private long selectNanos;
+        private long ticks;
+        private long tickNanos;
+
+        private Timing(String name) {
+            this.name = name;
+        }
+
+        private Timing copy() {
+            Timing copy = new Timing(name);
+            copy.selects = selects;
+            copy.selectNanos = selectNanos;
+            copy.ticks = ticks;
+            copy.tickNanos = tickNanos;
+            return copy;
+        }
+
+        public String getName() {
+            return name;
+        }
+
+        public long getSelects() {
+            return selects;
+        }
+
+        public long getSelectNanos() {
+            return selectNanos;
+        }
+
+        public long getTicks() {
+            return ticks;
+        }
+
+        public long getTickNanos() {
+            return tickNanos;
+        }
+    }
+}
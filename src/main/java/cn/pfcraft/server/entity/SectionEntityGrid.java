@@ -0,0 +1,186 @@
+package cn.pfcraft.server.entity;
+
+import com.google.common.base.Predicate;
+import net.minecraft.entity.Entity;
+import net.minecraft.util.math.AxisAlignedBB;
+import net.minecraft.util.math.MathHelper;
+import net.minecraft.world.World;
+
+import java.util.ArrayList;
+import java.util.List;
+
+/**
+ * The entities of a crowded chunk section by 4 block cells, so box queries only test the entities in the cells the box
+ * can reach instead of every entity in the section.
+ * <p>
+ * An entity is filed under the cell of the centre of its box, and the grid keeps how far any box has reached from its
+ * centre. Queries look that far around the queried box, plus {@link World#MAX_ENTITY_RADIUS} for the boxes moved since
+ * they were filed, by pistons or other entities. Centres outside the section are filed under the nearest edge cell, so
+ * the entities chunks keep a little after they moved out are still found. The world files an entity again after its
+ * update, like it moves it between chunks, and when it is set to a new position.
+ */
+public class SectionEntityGrid {
+    public static final int NO_CELL = -1;
+    private static final int CELL_SHIFT = 2;
+    private static final int CELLS = 4;
+
+    private final double baseX;
+    private final double baseY;
+    private final double baseZ;
+    @SuppressWarnings("unchecked")
+    private final List<Entity>[] cells = new List[CELLS * CELLS * CELLS];
+    // How far boxes reached from their centre, only grows
+    private double extentXZ;
+    private double extentY;
+
+    public SectionEntityGrid(int chunkX, int section, int chunkZ) {
+        this.baseX = chunkX << 4;
+        this.baseY = section << 4;
+        this.baseZ = chunkZ << 4;
+    }
+
+    /**
+     * Files the entity, and returns the cell to record on it.
+     */
+    public int add(Entity entity) {
+        int cell = cellOf(entity);
+        List<Entity> list = cells[cell];
+        if (list == null) {
+            cells[cell] = list = new ArrayList<>(4);
+        }
+        list.add(entity);
+        grow(entity);
+        return cell;
+    }
+
+    public void remove(Entity entity, int cell) {
+        if (cell >= 0 && cells[cell] != null) {
+            cells[cell].remove(entity);
+        }
+    }
+
+    /**
+     * Files the entity under its current position, and returns the cell to record on it.
+     */
+    public int move(Entity entity, int cell) {
+        int current = cellOf(entity);
+        if (current != cell) {
+            remove(entity, cell);
+            return add(entity);
+        }
+        grow(entity);
+        return cell;
+    }
+
+    public int cellOf(Entity entity) {
+        AxisAlignedBB box = entity.getEntityBoundingBox();
+        return cell((box.minX + box.maxX) * 0.5D - baseX) << 4 | cell((box.minY + box.maxY) * 0.5D - baseY) << 2 | cell((box.minZ + box.maxZ) * 0.5D - baseZ);
+    }
+
+    /**
+     * Entities in the cells a box query could find something in, to pick between the grid and a section list.
+     */
+    public int getCandidates(AxisAlignedBB aabb) {
+        int count = 0;
+        double padXZ = extentXZ + World.MAX_ENTITY_RADIUS;
+        double padY = extentY + World.MAX_ENTITY_RADIUS;
+        int minX = cell(aabb.minX - padXZ - baseX);
+        int maxX = cell(aabb.maxX + padXZ - baseX);
+        int minY = cell(aabb.minY - padY - baseY);
+        int maxY = cell(aabb.maxY + padY - baseY);
+        int minZ = cell(aabb.minZ - padXZ - baseZ);
+        int maxZ = cell(aabb.maxZ + padXZ - baseZ);
+        for (int x = minX; x <= maxX; ++x) {
+            for (int y = minY; y <= maxY; ++y) {
+                for (int z = minZ; z <= maxZ; ++z) {
+                    List<Entity> list = cells[x << 4 | y << 2 | z];
+                    if (list != null) {
+                        count += list.size();
+                    }
+                }
+            }
+        }
+        return count;
+    }
+
+    /**
+     * Same as {@link net.minecraft.world.chunk.Chunk#getEntitiesWithinAABBForEntity} for this section.
+     */
+    public void getEntities(Entity except, AxisAlignedBB aabb, List<Entity> listToFill, Predicate<? super Entity> filter) {
+        double padXZ = extentXZ + World.MAX_ENTITY_RADIUS;
+        double padY = extentY + World.MAX_ENTITY_RADIUS;
+        int minX = cell(aabb.minX - padXZ - baseX);
+        int maxX = cell(aabb.maxX + padXZ - baseX);
+        int minY = cell(aabb.minY - padY - baseY);
+        int maxY = cell(aabb.maxY + padY - baseY);
+        int minZ = cell(aabb.minZ - padXZ - baseZ);
+        int maxZ = cell(aabb.maxZ + padXZ - baseZ);
+        for (int x = minX; x <= maxX; ++x) {
+            for (int y = minY; y <= maxY; ++y) {
+                for (int z = minZ; z <= maxZ; ++z) {
+                    List<Entity> list = cells[x << 4 | y << 2 | z];
+                    if (list == null) {
+                        continue;
+                    }
+                    for (int i = 0; i < list.size(); ++i) {
+                        Entity entity = list.get(i);
+                        if (entity.getEntityBoundingBox().intersects(aabb) && entity != except) {
+                            if (filter == null || filter.apply(entity)) {
+                                listToFill.add(entity);
+                            }
+                            Entity[] parts = entity.getParts();
+                            if (parts != null) {
+                                for (Entity part : parts) {
+                                    if (part != except && part.getEntityBoundingBox().intersects(aabb) && (filter == null || filter.apply(part))) {
+                                        listToFill.add(part);
+                                    }
+                                }
+                            }
+                        }
+                    }
+                }
+            }
+        }
+    }
+
+    /**
+     * Same as {@link net.minecraft.world.chunk.Chunk#getEntitiesOfTypeWithinAABB} for this section.
+     */
+    @SuppressWarnings("unchecked")
+    public <T extends Entity> void getEntitiesOfType(Class<? extends T> entityClass, AxisAlignedBB aabb, List<T> listToFill, Predicate<? super T> filter) {
+        double padXZ = extentXZ + World.MAX_ENTITY_RADIUS;
+        double padY = extentY + World.MAX_ENTITY_RADIUS;
+        int minX = cell(aabb.minX - padXZ - baseX);
+        int maxX = cell(aabb.maxX + padXZ - baseX);
+        int minY = cell(aabb.minY - padY - baseY);
+        int maxY = cell(aabb.maxY + padY - baseY);
+        int minZ = cell(aabb.minZ - padXZ - baseZ);
+        int maxZ = cell(aabb.maxZ + padXZ - baseZ);
+        for (int x = minX; x <= maxX; ++x) {
+            for (int y = minY; y <= maxY; ++y) {
+                for (int z = minZ; z <= maxZ; ++z) {
+                    List<Entity> list = cells[x << 4 | y << 2 | z];
+                    if (list == null) {
+                        continue;
+                    }
+                    for (int i = 0; i < list.size(); ++i) {
+                        Entity entity = list.get(i);
+                        if (entityClass.isInstance(entity) && entity.getEntityBoundingBox().intersects(aabb) && (filter == null || filter.apply((T) entity))) {
+                            listToFill.add((T) entity);
+                        }
+                    }
+                }
+            }
+        }
+    }
+
+    private void grow(Entity entity) {
+        AxisAlignedBB box = entity.getEntityBoundingBox();
+        extentXZ = Math.max(extentXZ, Math.max(box.maxX - box.minX, box.maxZ - box.minZ) * 0.5D);
+        extentY = Math.max(extentY, (box.maxY - box.minY) * 0.5D);
+    }
+
+    private static int cell(double offset) {
+        return MathHelper.clamp(MathHelper.floor(offset) >> CELL_SHIFT, 0, CELLS - 1);
+    }
+}
@@ -0,0 +1,115 @@
+package cn.pfcraft.server.entity;
+
+import it.unimi.dsi.fastutil.longs.Long2IntOpenHashMap;
+import net.minecraft.entity.player.EntityPlayer;
+import net.minecraft.util.math.ChunkPos;
+import net.minecraft.util.math.MathHelper;
+
+import java.util.HashMap;
+import java.util.Iterator;
+import java.util.List;
+import java.util.Map;
+
+/**
+ * The chunks within mob spawn range of the players of a world, kept up to date as players cross chunk borders instead
+ * of being collected again every spawn cycle.
+ * <p>
+ * Every chunk within range of a player is covered and counts towards the spawn caps. The chunks closer to a player
+ * than the edge of its range are the spawn candidates, as in vanilla. Both are counted per player, so a chunk stays
+ * until the last player it is near to leaves. Spectators have no range.
+ */
+public class SpawnChunkIndex {
+    private final Long2IntOpenHashMap covered = new Long2IntOpenHashMap();
+    private final Long2IntOpenHashMap candidates = new Long2IntOpenHashMap();
+    private final Map<EntityPlayer, Area> areas = new HashMap<>();
+    private int radius = -1;
+    private int generation;
+
+    public void update(List<EntityPlayer> players, int radius) {
+        if (radius != this.radius) {
+            clear();
+            this.radius = radius;
+        }
+        ++generation;
+        for (int i = 0; i < players.size(); ++i) {
+            EntityPlayer player = players.get(i);
+            if (player.isSpectator()) {
+                continue;
+            }
+            int x = MathHelper.floor(player.posX / 16.0D);
+            int z = MathHelper.floor(player.posZ / 16.0D);
+            Area area = areas.get(player);
+            if (area == null) {
+                areas.put(player, area = new Area(x, z));
+                add(x, z, 1);
+            } else if (area.x != x || area.z != z) {
+                add(area.x, area.z, -1);
+                area.x = x;
+                area.z = z;
+                add(x, z, 1);
+            }
+            area.generation = generation;
+        }
+        // Players that left or became spectators
+        for (Iterator<Area> iterator = areas.values().iterator(); iterator.hasNext(); ) {
+            Area area = iterator.next();
+            if (area.generation != generation) {
+                add(area.x, area.z, -1);
+                iterator.remove();
+            }
+        }
+    }
+
+    public void clear() {
+        covered.clear();
+        candidates.clear();
+        areas.clear();
+    }
+
+    /**
+     * Chunks within range of any player.
+     */
+    public int getCoveredChunks() {
+        return covered.size();
+    }
+
+    /**
+     * A copy of the candidate chunks, as {@link ChunkPos#asLong} keys.
+     */
+    public long[] getCandidates() {
+        return candidates.keySet().toLongArray();
+    }
+
+    public boolean isCandidate(long chunk) {
+        return candidates.containsKey(chunk);
+    }
+
+    private void add(int x, int z, int delta) {
+        for (int dx = -radius; dx <= radius; ++dx) {
+            for (int dz = -radius; dz <= radius; ++dz) {
+                long chunk = ChunkPos.asLong(x + dx, z + dz);
+                adjust(covered, chunk, delta);
+                if (dx != -radius && dx != radius && dz != -radius && dz != radius) {
+                    adjust(candidates, chunk, delta);
+                }
+            }
+        }
+    }
+
+    private static void adjust(Long2IntOpenHashMap map, long chunk, int delta) {
+        if (map.addTo(chunk, delta) + delta <= 0) {
+            map.remove(chunk);
+        }
+    }
+
+    private static class Area {
+        private int x;
+        private int z;
+        private int generation;
+
+        private Area(int x, int z) {
+            this.x = x;
+            this.z = z;
+        }
+    }
+}
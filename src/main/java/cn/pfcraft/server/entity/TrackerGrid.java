@@ -0,0 +1,241 @@
+package cn.pfcraft.server.entity;
+
+import it.unimi.dsi.fastutil.longs.Long2ObjectOpenHashMap;
+import it.unimi.dsi.fastutil.objects.Object2LongOpenHashMap;
+import it.unimi.dsi.fastutil.objects.ObjectArrayList;
+import it.unimi.dsi.fastutil.objects.ObjectOpenHashSet;
+import net.minecraft.entity.EntityTrackerEntry;
+import net.minecraft.entity.player.EntityPlayer;
+import net.minecraft.entity.player.EntityPlayerMP;
+import net.minecraft.util.math.ChunkPos;
+import net.minecraft.util.math.MathHelper;
+
+import java.util.ArrayList;
+import java.util.Collection;
+import java.util.Collections;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+
+/**
+ * Entries and players of an entity tracker by chunk column, so an entry is only checked against the players within
+ * its tracking range and a player against the entries it could see, instead of every entry against every player.
+ * <p>
+ * Visibility only depends on the horizontal distance, so the grid has no vertical sections. Entries are filed under
+ * the position last sent to clients, which is what visibility is tested against, and moved when the tracker sends a
+ * new one. Players are filed under their own position and moved at the start of each tracker tick. The entries each
+ * player is tracked by are kept as well, so the ones that have to drop a player that moved away are found without a
+ * scan.
+ */
+public class TrackerGrid {
+    private final Long2ObjectOpenHashMap<Set<EntityTrackerEntry>> entries = new Long2ObjectOpenHashMap<>();
+    private final Object2LongOpenHashMap<EntityTrackerEntry> entryCells = new Object2LongOpenHashMap<>();
+    private final Long2ObjectOpenHashMap<List<EntityPlayerMP>> players = new Long2ObjectOpenHashMap<>();
+    private final Object2LongOpenHashMap<EntityPlayerMP> playerCells = new Object2LongOpenHashMap<>();
+    private final Map<EntityPlayerMP, Set<EntityTrackerEntry>> trackedBy = new HashMap<>();
+    // Largest tracking range of any entry, how far around a player entries are looked up
+    private int maxRange;
+
+    public void addEntry(EntityTrackerEntry entry) {
+        long cell = entryCell(entry);
+        entryCells.put(entry, cell);
+        add(entries, cell, entry);
+        maxRange = Math.max(maxRange, entry.getTrackingRange());
+    }
+
+    public void removeEntry(EntityTrackerEntry entry) {
+        if (entryCells.containsKey(entry)) {
+            remove(entries, entryCells.removeLong(entry), entry);
+        }
+        for (EntityPlayerMP player : entry.trackingPlayers) {
+            onUntrack(player, entry);
+        }
+    }
+
+    /**
+     * Files the entry under the position it last sent.
+     */
+    public void moveEntry(EntityTrackerEntry entry) {
+        long cell = entryCell(entry);
+        if (entryCells.containsKey(entry)) {
+            long old = entryCells.put(entry, cell);
+            if (old != cell) {
+                remove(entries, old, entry);
+                add(entries, cell, entry);
+            }
+        }
+    }
+
+    /**
+     * Recomputes the largest tracking range after the view distance changed.
+     */
+    public void updateRanges() {
+        maxRange = 0;
+        for (EntityTrackerEntry entry : entryCells.keySet()) {
+            maxRange = Math.max(maxRange, entry.getTrackingRange());
+        }
+    }
+
+    public void addPlayer(EntityPlayerMP player) {
+        long cell = playerCell(player);
+        if (!playerCells.containsKey(player)) {
+            playerCells.put(player, cell);
+            add(players, cell, player);
+        }
+    }
+
+    public void removePlayer(EntityPlayerMP player) {
+        if (playerCells.containsKey(player)) {
+            remove(players, playerCells.removeLong(player), player);
+        }
+        trackedBy.remove(player);
+    }
+
+    /**
+     * Files the players of the world under their current position, and rebuilds the player cells if players left
+     * without being untracked.
+     */
+    public void updatePlayers(List<EntityPlayer> worldPlayers) {
+        if (playerCells.size() != worldPlayers.size()) {
+            playerCells.clear();
+            players.clear();
+        }
+        for (int i = 0; i < worldPlayers.size(); ++i) {
+            EntityPlayerMP player = (EntityPlayerMP) worldPlayers.get(i);
+            long cell = playerCell(player);
+            if (!playerCells.containsKey(player)) {
+                playerCells.put(player, cell);
+                add(players, cell, player);
+            } else {
+                long old = playerCells.put(player, cell);
+                if (old != cell) {
+                    remove(players, old, player);
+                    add(players, cell, player);
+                }
+            }
+        }
+    }
+
+    public void onTrack(EntityPlayerMP player, EntityTrackerEntry entry) {
+        trackedBy.computeIfAbsent(player, k -> new ObjectOpenHashSet<>()).add(entry);
+    }
+
+    public void onUntrack(EntityPlayerMP player, EntityTrackerEntry entry) {
+        Set<EntityTrackerEntry> set = trackedBy.get(player);
+        if (set != null) {
+            set.remove(entry);
+            if (set.isEmpty()) {
+                trackedBy.remove(player);
+            }
+        }
+    }
+
+    /**
+     * A copy of the entries tracking the player.
+     */
+    public Collection<EntityTrackerEntry> getTrackedBy(EntityPlayerMP player) {
+        Set<EntityTrackerEntry> set = trackedBy.get(player);
+        return set == null ? Collections.emptyList() : new ArrayList<>(set);
+    }
+
+    /**
+     * The players that can see the entry, and the ones it is tracked by that may no longer see it.
+     */
+    public List<EntityPlayer> getCandidatePlayers(EntityTrackerEntry entry) {
+        int range = entry.getTrackingRange();
+        int minX = MathHelper.floor(entry.getTrackedX() - range) >> 4;
+        int maxX = MathHelper.floor(entry.getTrackedX() + range) >> 4;
+        int minZ = MathHelper.floor(entry.getTrackedZ() - range) >> 4;
+        int maxZ = MathHelper.floor(entry.getTrackedZ() + range) >> 4;
+        List<EntityPlayer> result = new ArrayList<>();
+
+        for (int x = minX; x <= maxX; ++x) {
+            for (int z = minZ; z <= maxZ; ++z) {
+                List<EntityPlayerMP> list = players.get(ChunkPos.asLong(x, z));
+                if (list != null) {
+                    result.addAll(list);
+                }
+            }
+        }
+        for (EntityPlayerMP player : entry.trackingPlayers) {
+            if (!playerCells.containsKey(player) || !inside(playerCells.getLong(player), minX, maxX, minZ, maxZ)) {
+                result.add(player);
+            }
+        }
+        return result;
+    }
+
+    /**
+     * The entries the player can see, and the ones tracking it that it may no longer see.
+     */
+    public List<EntityTrackerEntry> getCandidateEntries(EntityPlayerMP player) {
+        int minX = MathHelper.floor(player.posX - maxRange) >> 4;
+        int maxX = MathHelper.floor(player.posX + maxRange) >> 4;
+        int minZ = MathHelper.floor(player.posZ - maxRange) >> 4;
+        int maxZ = MathHelper.floor(player.posZ + maxRange) >> 4;
+        List<EntityTrackerEntry> result = new ArrayList<>();
+
+        for (int x = minX; x <= maxX; ++x) {
+            for (int z = minZ; z <= maxZ; ++z) {
+                Set<EntityTrackerEntry> set = entries.get(ChunkPos.asLong(x, z));
+                if (set != null) {
+                    result.addAll(set);
+                }
+            }
+        }
+        Set<EntityTrackerEntry> tracking = trackedBy.get(player);
+        if (tracking != null) {
+            for (EntityTrackerEntry entry : tracking) {
+                if (!entryCells.containsKey(entry) || !inside(entryCells.getLong(entry), minX, maxX, minZ, maxZ)) {
+                    result.add(entry);
+                }
+            }
+        }
+        return result;
+    }
+
+    private static long entryCell(EntityTrackerEntry entry) {
+        return ChunkPos.asLong(MathHelper.floor(entry.getTrackedX()) >> 4, MathHelper.floor(entry.getTrackedZ()) >> 4);
+    }
+
+    private static long playerCell(EntityPlayerMP player) {
+        return ChunkPos.asLong(MathHelper.floor(player.posX) >> 4, MathHelper.floor(player.posZ) >> 4);
+    }
+
+    private static boolean inside(long cell, int minX, int maxX, int minZ, int maxZ) {
+        int x = (int) cell;
+        int z = (int) (cell >> 32);
+        return x >= minX && x <= maxX && z >= minZ && z <= maxZ;
+    }
+
+    private static void add(Long2ObjectOpenHashMap<Set<EntityTrackerEntry>> map, long cell, EntityTrackerEntry entry) {
+        Set<EntityTrackerEntry> set = map.get(cell);
+        if (set == null) {
+            map.put(cell, set = new ObjectOpenHashSet<>());
+        }
+        set.add(entry);
+    }
+
+    private static void remove(Long2ObjectOpenHashMap<Set<EntityTrackerEntry>> map, long cell, EntityTrackerEntry entry) {
+        Set<EntityTrackerEntry> set = map.get(cell);
+        if (set != null && set.remove(entry) && set.isEmpty()) {
+            map.remove(cell);
+        }
+    }
+
+    private static void add(Long2ObjectOpenHashMap<List<EntityPlayerMP>> map, long cell, EntityPlayerMP player) {
+        List<EntityPlayerMP> list = map.get(cell);
+        if (list == null) {
+            map.put(cell, list = new ObjectArrayList<>());
+        }
+        list.add(player);
+    }
+
+    private static void remove(Long2ObjectOpenHashMap<List<EntityPlayerMP>> map, long cell, EntityPlayerMP player) {
+        List<EntityPlayerMP> list = map.get(cell);
+        if (list != null && list.remove(player) && list.isEmpty()) {
+            map.remove(cell);
+        }
+    }
+}
@@ -0,0 +1,74 @@
+package cn.pfcraft.server.network;
+
+import io.netty.buffer.ByteBuf;
+import io.netty.buffer.Unpooled;
+import net.minecraft.network.Packet;
+import net.minecraft.network.PacketBuffer;
+
+import java.io.IOException;
+import java.util.concurrent.atomic.LongAdder;
+
+/**
+ * Counters of the block change updates sent to watching players since timings were last reset. Bytes saved are
+ * estimates of the uncompressed packet data, against what the vanilla choice of packets would have sent.
+ */
+public class ChunkUpdateStats {
+    private static final LongAdder blockLists = new LongAdder();
+    private static final LongAdder sectionResends = new LongAdder();
+    private static final LongAdder skippedTileEntities = new LongAdder();
+    private static final LongAdder bytesSaved = new LongAdder();
+
+    public static void recordBlockList() {
+        blockLists.increment();
+    }
+
+    public static void recordSectionResends(int sections) {
+        sectionResends.add(sections);
+    }
+
+    public static void recordSkippedTileEntity() {
+        skippedTileEntities.increment();
+    }
+
+    public static void recordBytesSaved(long bytes) {
+        bytesSaved.add(bytes);
+    }
+
+    public static long getBlockLists() {
+        return blockLists.sum();
+    }
+
+    public static long getSectionResends() {
+        return sectionResends.sum();
+    }
+
+    public static long getSkippedTileEntities() {
+        return skippedTileEntities.sum();
+    }
+
+    public static long getBytesSaved() {
+        return bytesSaved.sum();
+    }
+
+    public static void reset() {
+        blockLists.reset();
+        sectionResends.reset();
+        skippedTileEntities.reset();
+        bytesSaved.reset();
+    }
+
+    /**
+     * Size of the packet data, without the id and framing.
+     */
+    public static int sizeOf(Packet<?> packet) {
+        ByteBuf buf = Unpooled.buffer();
+        try {
+            packet.writePacketData(new PacketBuffer(buf));
+            return buf.writerIndex();
+        } catch (IOException | RuntimeException e) {
+            return 0;
+        } finally {
+            buf.release();
+        }
+    }
+}
@@ -0,0 +1,124 @@
+package cn.pfcraft.server.network;
+
+import net.minecraft.network.INetHandler;
+import net.minecraft.network.Packet;
+import org.apache.logging.log4j.LogManager;
+import org.apache.logging.log4j.Logger;
+
+import java.util.Arrays;
+
+/**
+ * Play packets of one connection waiting for the main thread, replacing a future per packet on the server task queue.
+ * <p>
+ * Netty threads add to a ring buffer that grows up to a fixed capacity. The main thread moves up to a tick's budget of
+ * packets into arrays of its own while holding the lock once, then handles them without it, so neither side
+ * allocates per packet once the buffers have grown.
+ */
+public class InboundPacketQueue {
+    private static final Logger LOGGER = LogManager.getLogger();
+    private static final int INITIAL_CAPACITY = 16;
+
+    private Packet<?>[] packets = new Packet<?>[0];
+    private INetHandler[] handlers = new INetHandler[0];
+    private int head;
+    private int size;
+    private boolean overflowed;
+
+    // Only touched by the main thread
+    private Packet<?>[] drainedPackets = new Packet<?>[0];
+    private INetHandler[] drainedHandlers = new INetHandler[0];
+
+    /**
+     * Adds a packet unless the queue holds the given maximum already, in which case it is marked as overflowed.
+     */
+    public synchronized boolean add(Packet<?> packet, INetHandler handler, int capacity) {
+        if (size >= capacity) {
+            overflowed = true;
+            return false;
+        }
+        if (size == packets.length) {
+            grow(Math.min(capacity, Math.max(INITIAL_CAPACITY, packets.length * 2)));
+        }
+        int index = (head + size) % packets.length;
+        packets[index] = packet;
+        handlers[index] = handler;
+        ++size;
+        return true;
+    }
+
+    private void grow(int capacity) {
+        Packet<?>[] newPackets = new Packet<?>[capacity];
+        INetHandler[] newHandlers = new INetHandler[capacity];
+        for (int i = 0; i < size; i++) {
+            int index = (head + i) % packets.length;
+            newPackets[i] = packets[index];
+            newHandlers[i] = handlers[index];
+        }
+        packets = newPackets;
+        handlers = newHandlers;
+        head = 0;
+    }
+
+    /**
+     * Whether packets were dropped since the last call, clearing the flag.
+     */
+    public synchronized boolean checkOverflow() {
+        boolean result = overflowed;
+        overflowed = false;
+        return result;
+    }
+
+    public synchronized int size() {
+        return size;
+    }
+
+    public synchronized void clear() {
+        Arrays.fill(packets, null);
+        Arrays.fill(handlers, null);
+        head = 0;
+        size = 0;
+    }
+
+    /**
+     * Handles up to the given number of packets in the order they arrived, the rest wait for the next call. Must only be
+     * called from the main thread. Packets that throw are logged and skipped, as a failed scheduled task would be.
+     *
+     * @return the number of packets handled
+     */
+    @SuppressWarnings("unchecked")
+    public int drain(int max) {
+        int count;
+        synchronized (this) {
+            count = Math.min(size, max);
+            if (count == 0) {
+                return 0;
+            }
+            if (drainedPackets.length < count) {
+                drainedPackets = new Packet<?>[packets.length];
+                drainedHandlers = new INetHandler[packets.length];
+            }
+            for (int i = 0; i < count; i++) {
+                int index = (head + i) % packets.length;
+                drainedPackets[i] = packets[index];
+                drainedHandlers[i] = handlers[index];
+                packets[index] = null;
+                handlers[index] = null;
+            }
+            head = (head + count) % packets.length;
+            size -= count;
+        }
+
+        for (int i = 0; i < count; i++) {
+            Packet<INetHandler> packet = (Packet<INetHandler>) drainedPackets[i];
+            INetHandler handler = drainedHandlers[i];
+            drainedPackets[i] = null;
+            drainedHandlers[i] = null;
+            try {
+                packet.processPacket(handler);
+            } catch (Throwable throwable) {
+                LOGGER.fatal("Error executing task", throwable);
+            }
+        }
+        return count;
+    }
+}
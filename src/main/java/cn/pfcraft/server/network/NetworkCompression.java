@@ -0,0 +1,142 @@
+package cn.pfcraft.server.network;
+
+import cn.pfcraft.server.PFSConfig;
+import com.google.common.util.concurrent.ThreadFactoryBuilder;
+import io.netty.buffer.ByteBuf;
+import io.netty.buffer.ByteBufAllocator;
+import io.netty.handler.codec.DecoderException;
+import net.minecraft.network.PacketBuffer;
+
+import javax.annotation.Nullable;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.zip.DataFormatException;
+import java.util.zip.Deflater;
+import java.util.zip.Inflater;
+
+/**
+ * Packet compression with per thread zlib contexts, shared by every connection handled on the thread instead of one
+ * deflater and inflater per connection.
+ * <p>
+ * Data is read from and written to the backing arrays of heap buffers directly. Java 8's Deflater and Inflater only
+ * accept arrays, so direct buffers are copied into a reused scratch array first.
+ */
+public class NetworkCompression {
+    // Don't hold on to the scratch array of an unusually large packet
+    private static final int MAX_RETAINED_SIZE = 1024 * 1024;
+    private static final ThreadLocal<NetworkCompression> CONTEXTS = ThreadLocal.withInitial(NetworkCompression::new);
+    private static ExecutorService workers;
+
+    private final Deflater[] deflaters = new Deflater[Deflater.BEST_COMPRESSION + 1];
+    private final Inflater inflater = new Inflater();
+    private final byte[] output = new byte[8192];
+    private byte[] scratch = new byte[8192];
+
+    /**
+     * Pool compressing large packets off the event loops, or null if they are compressed inline. Created on first
+     * use, changing the thread count requires a restart.
+     */
+    @Nullable
+    public static synchronized ExecutorService getWorkers() {
+        if (workers == null && PFSConfig.compressionThreads > 0) {
+            workers = Executors.newFixedThreadPool(PFSConfig.compressionThreads,
+                    new ThreadFactoryBuilder().setNameFormat("Netty Compression Thread #%d").setDaemon(true).build());
+        }
+        return workers;
+    }
+
+    /**
+     * Writes the packet in the compressed format: the uncompressed length, or 0 if it is below the threshold, followed
+     * by the data.
+     */
+    public static void compress(ByteBuf in, ByteBuf out, int threshold) {
+        int length = in.readableBytes();
+        PacketBuffer packetbuffer = new PacketBuffer(out);
+
+        if (length < threshold) {
+            packetbuffer.writeVarInt(0);
+            packetbuffer.writeBytes(in);
+            return;
+        }
+
+        packetbuffer.writeVarInt(length);
+        NetworkCompression context = CONTEXTS.get();
+        Deflater deflater = context.deflater(PFSConfig.compressionLevel);
+        try {
+            if (in.hasArray()) {
+                deflater.setInput(in.array(), in.arrayOffset() + in.readerIndex(), length);
+            } else {
+                byte[] input = context.scratch(length);
+                in.getBytes(in.readerIndex(), input, 0, length);
+                deflater.setInput(input, 0, length);
+            }
+            in.skipBytes(length);
+            deflater.finish();
+
+            while (!deflater.finished()) {
+                out.ensureWritable(8192);
+                if (out.hasArray()) {
+                    int written = deflater.deflate(out.array(), out.arrayOffset() + out.writerIndex(), out.writableBytes());
+                    out.writerIndex(out.writerIndex() + written);
+                } else {
+                    out.writeBytes(context.output, 0, deflater.deflate(context.output));
+                }
+            }
+        } finally {
+            deflater.reset();
+        }
+    }
+
+    /**
+     * Inflates the rest of the buffer into a new heap buffer of exactly the given length.
+     */
+    public static ByteBuf decompress(ByteBufAllocator alloc, ByteBuf in, int length) throws DataFormatException {
+        NetworkCompression context = CONTEXTS.get();
+        Inflater inflater = context.inflater;
+        int compressedLength = in.readableBytes();
+        ByteBuf out = alloc.heapBuffer(length, length);
+        try {
+            if (in.hasArray()) {
+                inflater.setInput(in.array(), in.arrayOffset() + in.readerIndex(), compressedLength);
+            } else {
+                byte[] input = context.scratch(compressedLength);
+                in.getBytes(in.readerIndex(), input, 0, compressedLength);
+                inflater.setInput(input, 0, compressedLength);
+            }
+            in.skipBytes(compressedLength);
+
+            int inflated = inflater.inflate(out.array(), out.arrayOffset(), length);
+            if (inflated != length) {
+                throw new DecoderException("Badly compressed packet - inflated " + inflated + " bytes, expected " + length);
+            }
+            out.writerIndex(length);
+            return out;
+        } catch (DataFormatException | RuntimeException e) {
+            out.release();
+            throw e;
+        } finally {
+            inflater.reset();
+        }
+    }
+
+    private Deflater deflater(int level) {
+        // The default level of zlib is 6
+        int index = level < 0 ? 6 : Math.min(level, Deflater.BEST_COMPRESSION);
+        Deflater deflater = deflaters[index];
+        if (deflater == null) {
+            deflater = deflaters[index] = new Deflater(index);
+        }
+        return deflater;
+    }
+
+    private byte[] scratch(int length) {
+        if (scratch.length >= length) {
+            return scratch;
+        }
+        if (length > MAX_RETAINED_SIZE) {
+            return new byte[length];
+        }
+        scratch = new byte[Math.max(length, scratch.length * 2)];
+        return scratch;
+    }
+}
@@ -0,0 +1,38 @@
+package cn.pfcraft.server.network;
+
+import java.util.concurrent.atomic.LongAdder;
+
+/**
+ * Outbound flush counters over all connections since timings were last reset. Flushes are recorded on the event loops,
+ * connection ticks on the main thread.
+ */
+public class OutboundStats {
+    private static final LongAdder flushes = new LongAdder();
+    private static final LongAdder flushedBytes = new LongAdder();
+    private static final LongAdder connectionTicks = new LongAdder();
+
+    public static void recordFlush(long bytes) {
+        flushes.increment();
+        flushedBytes.add(bytes);
+    }
+
+    public static void recordConnectionTick() {
+        connectionTicks.increment();
+    }
+
+    public static double getFlushesPerConnectionTick() {
+        long ticks = connectionTicks.sum();
+        return ticks == 0 ? 0D : flushes.sum() / (double) ticks;
+    }
+
+    public static double getBytesPerFlush() {
+        long count = flushes.sum();
+        return count == 0 ? 0D : flushedBytes.sum() / (double) count;
+    }
+
+    public static void reset() {
+        flushes.reset();
+        flushedBytes.reset();
+        connectionTicks.reset();
+    }
+}
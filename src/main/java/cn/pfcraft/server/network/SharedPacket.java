@@ -0,0 +1,14 @@
+package cn.pfcraft.server.network;
+
+import javax.annotation.Nullable;
+
+/**
+ * A packet whose bytes can be shared between the connections it is sent to. Must be marked as shared before it is
+ * handed to the first connection.
+ */
+public interface SharedPacket {
+    void setShared();
+
+    @Nullable
+    SharedPacketEncoding getSharedEncoding();
+}
@@ -0,0 +1,61 @@
+package cn.pfcraft.server.network;
+
+import io.netty.buffer.ByteBuf;
+import io.netty.buffer.Unpooled;
+import net.minecraft.network.Packet;
+import net.minecraft.network.PacketBuffer;
+
+import java.io.IOException;
+import java.util.Arrays;
+
+/**
+ * Bytes of a packet sent to several players, serialized and compressed by the first connection that writes it and
+ * reused by every other one. Connections only ever wrap the arrays, they are never written to after being built.
+ */
+public class SharedPacketEncoding {
+    private final Packet<?> packet;
+    private volatile byte[] encoded;
+    private byte[] compressed;
+    private int compressedId;
+    private int compressedThreshold;
+
+    public SharedPacketEncoding(Packet<?> packet) {
+        this.packet = packet;
+    }
+
+    /**
+     * The packet data without its id.
+     */
+    public byte[] getEncoded() throws IOException {
+        byte[] bytes = encoded;
+        if (bytes == null) {
+            synchronized (this) {
+                if (encoded == null) {
+                    ByteBuf buf = Unpooled.buffer();
+                    packet.writePacketData(new PacketBuffer(buf));
+                    encoded = Arrays.copyOf(buf.array(), buf.writerIndex());
+                }
+                bytes = encoded;
+            }
+        }
+        return bytes;
+    }
+
+    /**
+     * The packet id and data in the format of the compression encoder.
+     */
+    public synchronized byte[] getCompressed(int packetId, int threshold) throws IOException {
+        if (compressed == null || compressedId != packetId || compressedThreshold != threshold) {
+            byte[] bytes = getEncoded();
+            ByteBuf in = Unpooled.buffer(bytes.length + 5);
+            new PacketBuffer(in).writeVarInt(packetId);
+            in.writeBytes(bytes);
+            ByteBuf out = Unpooled.buffer(bytes.length / 2 + 16);
+            NetworkCompression.compress(in, out, threshold);
+            compressed = Arrays.copyOf(out.array(), out.writerIndex());
+            compressedId = packetId;
+            compressedThreshold = threshold;
+        }
+        return compressed;
+    }
+}
@@ -0,0 +1,301 @@
+package cn.pfcraft.server.network;
+
+import cn.pfcraft.server.PFSConfig;
+import io.netty.buffer.ByteBuf;
+import io.netty.channel.Channel;
+import io.netty.channel.ChannelDuplexHandler;
+import io.netty.channel.ChannelHandlerContext;
+import io.netty.channel.ChannelOutboundBuffer;
+import io.netty.channel.ChannelOutboundHandlerAdapter;
+import io.netty.channel.ChannelPromise;
+import io.netty.util.ReferenceCountUtil;
+import io.netty.util.concurrent.ScheduledFuture;
+import net.minecraft.network.EnumConnectionState;
+import net.minecraft.network.NetworkManager;
+import net.minecraft.network.Packet;
+import net.minecraft.network.play.server.SPacketBlockAction;
+import net.minecraft.network.play.server.SPacketBlockBreakAnim;
+import net.minecraft.network.play.server.SPacketBlockChange;
+import net.minecraft.network.play.server.SPacketChunkData;
+import net.minecraft.network.play.server.SPacketDisconnect;
+import net.minecraft.network.play.server.SPacketEntity;
+import net.minecraft.network.play.server.SPacketEntityHeadLook;
+import net.minecraft.network.play.server.SPacketEntityTeleport;
+import net.minecraft.network.play.server.SPacketEntityVelocity;
+import net.minecraft.network.play.server.SPacketKeepAlive;
+import net.minecraft.network.play.server.SPacketMoveVehicle;
+import net.minecraft.network.play.server.SPacketMultiBlockChange;
+import net.minecraft.network.play.server.SPacketPlayerPosLook;
+import net.minecraft.network.play.server.SPacketUnloadChunk;
+import net.minecraft.network.play.server.SPacketUpdateTileEntity;
+
+import javax.annotation.Nullable;
+import java.nio.channels.ClosedChannelException;
+import java.util.ArrayDeque;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Outbound shaping of a player connection, between the network manager and the packet encoder.
+ * <p>
+ * Play packets are sorted into lanes. Control packets, keep-alives and disconnects, are always written at once, ahead
+ * of anything held back. Every other packet is held in order while the socket is not writable or the connection has
+ * spent its byte budget, and written as it drains. Those lanes keep their order: a block or entity
+ * update overtaking the chunk or spawn packet it applies to would be dropped by the client. Chunks are instead held
+ * before they are sent, by the player chunk map asking for a {@link #getChunkAllowance chunk allowance} each tick,
+ * which adapts to the measured throughput and round trip time so only what the link can take is in flight.
+ * <p>
+ * The shaper runs on the channel's event loop. The stats are read from other threads without synchronization.
+ */
+public class TrafficShaper extends ChannelDuplexHandler {
+    public enum Lane {
+        CONTROL, MOVEMENT, BLOCKS, CHUNKS, OTHER
+    }
+
+    private static final ClassValue<Lane> LANES = new ClassValue<Lane>() {
+        @Override
+        protected Lane computeValue(Class<?> type) {
+            // Only packets that don't need the client's world may overtake held ones, which could be the join or respawn
+            if (type == SPacketKeepAlive.class || type == SPacketDisconnect.class) {
+                return Lane.CONTROL;
+            }
+            if (SPacketEntity.class.isAssignableFrom(type) || type == SPacketEntityTeleport.class
+                    || type == SPacketEntityVelocity.class || type == SPacketEntityHeadLook.class
+                    || type == SPacketPlayerPosLook.class || type == SPacketMoveVehicle.class) {
+                return Lane.MOVEMENT;
+            }
+            if (type == SPacketBlockChange.class || type == SPacketMultiBlockChange.class
+                    || type == SPacketUpdateTileEntity.class || type == SPacketBlockAction.class
+                    || type == SPacketBlockBreakAnim.class) {
+                return Lane.BLOCKS;
+            }
+            if (type == SPacketChunkData.class || type == SPacketUnloadChunk.class) {
+                return Lane.CHUNKS;
+            }
+            return Lane.OTHER;
+        }
+    };
+    private static final long SAMPLE_INTERVAL_MILLIS = 500L;
+    // Time on top of the round trip the link is kept busy for, so it doesn't idle between chunk ticks
+    private static final int CHUNK_HEADROOM_MILLIS = 100;
+
+    private final Counter counter = new Counter();
+    private final ArrayDeque<HeldPacket> held = new ArrayDeque<>();
+    private final long[] lanePackets = new long[Lane.values().length];
+    private final long[] laneBytes = new long[Lane.values().length];
+    private ChannelHandlerContext ctx;
+    private ScheduledFuture<?> sampleTask;
+    private ScheduledFuture<?> drainTask;
+    // Bytes handed to the socket, counted at the head of the pipeline after compression and encryption
+    private long written;
+    private long sampledWritten;
+    private long sampledPending;
+    private long sampledTime;
+    private double tokens;
+    private long refillTime;
+    private volatile int heldPackets;
+    private volatile double throughput;
+    private volatile double chunkBytes = 8192D;
+
+    /**
+     * The handler counting the bytes written to the socket, to be added first in the pipeline.
+     */
+    public ChannelOutboundHandlerAdapter getCounter() {
+        return counter;
+    }
+
+    @Nullable
+    public static TrafficShaper get(NetworkManager networkManager) {
+        Channel channel = networkManager.channel();
+        return channel == null ? null : channel.pipeline().get(TrafficShaper.class);
+    }
+
+    @Override
+    public void handlerAdded(ChannelHandlerContext ctx) {
+        this.ctx = ctx;
+        refillTime = sampledTime = System.nanoTime();
+        sampleTask = ctx.executor().scheduleAtFixedRate(this::sample, SAMPLE_INTERVAL_MILLIS, SAMPLE_INTERVAL_MILLIS, TimeUnit.MILLISECONDS);
+    }
+
+    @Override
+    public void handlerRemoved(ChannelHandlerContext ctx) {
+        sampleTask.cancel(false);
+        if (drainTask != null) {
+            drainTask.cancel(false);
+        }
+        discardHeld();
+    }
+
+    @Override
+    public void write(ChannelHandlerContext ctx, Object msg, ChannelPromise promise) {
+        if (!(msg instanceof Packet) || ctx.channel().attr(NetworkManager.PROTOCOL_ATTRIBUTE_KEY).get() != EnumConnectionState.PLAY) {
+            ctx.write(msg, promise);
+            return;
+        }
+        Lane lane = LANES.get(msg.getClass());
+        if (lane == Lane.CONTROL || held.isEmpty() && canWrite()) {
+            send(msg, lane, promise);
+        } else {
+            held.add(new HeldPacket(msg, lane, promise));
+            heldPackets = held.size();
+            scheduleDrain();
+        }
+    }
+
+    @Override
+    public void channelWritabilityChanged(ChannelHandlerContext ctx) throws Exception {
+        if (ctx.channel().isWritable()) {
+            drain();
+        }
+        super.channelWritabilityChanged(ctx);
+    }
+
+    @Override
+    public void close(ChannelHandlerContext ctx, ChannelPromise promise) throws Exception {
+        discardHeld();
+        super.close(ctx, promise);
+    }
+
+    private void send(Object msg, Lane lane, ChannelPromise promise) {
+        long before = written;
+        ctx.write(msg, promise);
+        // Compression handed to another thread shows up later, and isn't counted for the packet
+        long size = written - before;
+        ++lanePackets[lane.ordinal()];
+        laneBytes[lane.ordinal()] += size;
+        if (lane == Lane.CHUNKS && size > 0 && msg instanceof SPacketChunkData) {
+            chunkBytes = chunkBytes * 0.9D + size * 0.1D;
+        }
+    }
+
+    private boolean canWrite() {
+        if (!ctx.channel().isWritable()) {
+            return false;
+        }
+        int budget = PFSConfig.playerByteBudget;
+        if (budget <= 0) {
+            tokens = 0D;
+            return true;
+        }
+        long now = System.nanoTime();
+        tokens = Math.min(budget, tokens + budget * ((now - refillTime) / 1.0E9D));
+        refillTime = now;
+        return tokens >= 0D;
+    }
+
+    private void drain() {
+        boolean sent = false;
+        while (!held.isEmpty() && canWrite()) {
+            HeldPacket packet = held.poll();
+            send(packet.msg, packet.lane, packet.promise);
+            sent = true;
+        }
+        heldPackets = held.size();
+        if (sent) {
+            ctx.flush();
+        }
+        if (!held.isEmpty()) {
+            scheduleDrain();
+        }
+    }
+
+    /**
+     * Drains again once the budget refilled. Held packets waiting on the socket are drained when it turns writable.
+     */
+    private void scheduleDrain() {
+        if ((drainTask == null || drainTask.isDone()) && ctx.channel().isWritable() && PFSConfig.playerByteBudget > 0) {
+            long delay = Math.max(1L, (long) (-tokens * 1.0E6D / PFSConfig.playerByteBudget));
+            drainTask = ctx.executor().schedule(this::drain, delay, TimeUnit.MICROSECONDS);
+        }
+    }
+
+    private void discardHeld() {
+        HeldPacket packet;
+        while ((packet = held.poll()) != null) {
+            ReferenceCountUtil.release(packet.msg);
+            packet.promise.tryFailure(new ClosedChannelException());
+        }
+        heldPackets = 0;
+    }
+
+    private void sample() {
+        long now = System.nanoTime();
+        long pending = getPendingBytes();
+        double rate = Math.max(0L, written - sampledWritten - (pending - sampledPending)) * 1.0E9D / Math.max(1L, now - sampledTime);
+        // The link capacity only shows while data waits on it, an idle link only gives a lower bound
+        if (sampledPending > 0 || pending > 0 || !held.isEmpty()) {
+            throughput = throughput * 0.7D + rate * 0.3D;
+        } else {
+            throughput = Math.max(throughput, rate);
+        }
+        sampledWritten = written;
+        sampledPending = pending;
+        sampledTime = now;
+    }
+
+    /**
+     * How many chunks may be sent to the player this tick, from the bytes waiting to be written against what the link
+     * drains over its round trip time.
+     */
+    public int getChunkAllowance(int rttMillis) {
+        if (heldPackets > 0) {
+            return 0;
+        }
+        double target = Math.max(PFSConfig.chunkBacklogBytes, throughput * (Math.max(0, rttMillis) + CHUNK_HEADROOM_MILLIS) / 1000D);
+        double free = target - getPendingBytes();
+        if (free <= 0D) {
+            return 0;
+        }
+        return (int) Math.max(1D, Math.min(PFSConfig.chunksPerTick, free / chunkBytes));
+    }
+
+    /**
+     * Bytes written to the channel that the socket hasn't taken yet.
+     */
+    public long getPendingBytes() {
+        ChannelOutboundBuffer buffer = ctx.channel().unsafe().outboundBuffer();
+        return buffer == null ? 0L : buffer.totalPendingWriteBytes();
+    }
+
+    public int getHeldPackets() {
+        return heldPackets;
+    }
+
+    /**
+     * Estimated bytes per second the link takes.
+     */
+    public double getThroughput() {
+        return throughput;
+    }
+
+    public long getLanePackets(Lane lane) {
+        return lanePackets[lane.ordinal()];
+    }
+
+    public long getLaneBytes(Lane lane) {
+        return laneBytes[lane.ordinal()];
+    }
+
+    private class Counter extends ChannelOutboundHandlerAdapter {
+        @Override
+        public void write(ChannelHandlerContext ctx, Object msg, ChannelPromise promise) throws Exception {
+            if (msg instanceof ByteBuf) {
+                int bytes = ((ByteBuf) msg).readableBytes();
+                written += bytes;
+                tokens -= bytes;
+            }
+            super.write(ctx, msg, promise);
+        }
+    }
+
+    private static class HeldPacket {
+        private final Object msg;
+        private final Lane lane;
+        private final ChannelPromise promise;
+
+        private HeldPacket(Object msg, Lane lane, ChannelPromise promise) {
+            this.msg = msg;
+            this.lane = lane;
+            this.promise = promise;
+        }
+    }
+}
@@ -0,0 +1,266 @@
+package cn.pfcraft.server.world;
+
+import it.unimi.dsi.fastutil.longs.Long2ObjectMap;
+import it.unimi.dsi.fastutil.longs.Long2ObjectOpenHashMap;
+import it.unimi.dsi.fastutil.longs.LongHeapPriorityQueue;
+import it.unimi.dsi.fastutil.objects.ObjectOpenHashSet;
+import net.minecraft.block.Block;
+import net.minecraft.util.math.BlockPos;
+import net.minecraft.util.math.ChunkPos;
+import net.minecraft.world.NextTickListEntry;
+import net.minecraft.world.gen.structure.StructureBoundingBox;
+
+import javax.annotation.Nullable;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.HashMap;
+import java.util.Iterator;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+
+/**
+ * Scheduled block ticks of a world, replacing the vanilla tree set and hash set pair.
+ * <p>
+ * Ticks sit in one bucket per scheduled time and the times with a bucket in a heap of primitive longs, so a poll only
+ * touches the ticks that are due and scheduling at a time that already has a bucket is a hash lookup. Buckets are
+ * sorted by priority and insertion order when they come due, which gives the same order as the tree set.
+ * <p>
+ * Duplicates are found by packed block position. The block is still compared with {@link Block#isEqualTo} rather
+ * than by id, as blocks like repeaters treat their powered and unpowered variants as the same block. Removed ticks
+ * stay in their bucket and are skipped once they come due.
+ */
+public class ScheduledTickQueue {
+    private final Long2ObjectOpenHashMap<Bucket> buckets = new Long2ObjectOpenHashMap<>();
+    private final LongHeapPriorityQueue times = new LongHeapPriorityQueue();
+    private final Long2ObjectOpenHashMap<NextTickListEntry> byPosition = new Long2ObjectOpenHashMap<>();
+    // Ticks for a position that already has a tick of another block, rare enough for a plain map
+    private final Map<NextTickListEntry, NextTickListEntry> sharedPositions = new HashMap<>();
+    private final Long2ObjectMap<Set<NextTickListEntry>> byChunk = new Long2ObjectOpenHashMap<>();
+    private int size;
+    private int chunkIndexSize;
+
+    public int size() {
+        return size;
+    }
+
+    public boolean isEmpty() {
+        return size == 0;
+    }
+
+    /**
+     * Whether the position and chunk indexes agree on the number of scheduled ticks.
+     */
+    public boolean isConsistent() {
+        return size == byPosition.size() + sharedPositions.size() && size == chunkIndexSize;
+    }
+
+    public boolean contains(NextTickListEntry entry) {
+        return find(entry) != null;
+    }
+
+    /**
+     * Schedules the tick unless an equal one is already scheduled.
+     */
+    public boolean add(NextTickListEntry entry) {
+        if (find(entry) != null) {
+            return false;
+        }
+
+        long key = entry.position.toLong();
+        if (byPosition.get(key) == null) {
+            byPosition.put(key, entry);
+        } else {
+            sharedPositions.put(entry, entry);
+        }
+
+        Bucket bucket = buckets.get(entry.scheduledTime);
+        if (bucket == null) {
+            bucket = new Bucket();
+            buckets.put(entry.scheduledTime, bucket);
+            times.enqueue(entry.scheduledTime);
+        }
+        bucket.add(entry);
+
+        long chunkKey = chunkKey(entry.position);
+        Set<NextTickListEntry> set = byChunk.get(chunkKey);
+        if (set == null) {
+            set = new ObjectOpenHashSet<>();
+            byChunk.put(chunkKey, set);
+        }
+        set.add(entry);
+        ++chunkIndexSize;
+        ++size;
+        return true;
+    }
+
+    /**
+     * Removes and returns the first tick scheduled at or before the given time.
+     */
+    @Nullable
+    public NextTickListEntry poll(long time) {
+        while (!times.isEmpty()) {
+            long first = times.firstLong();
+            if (first > time) {
+                return null;
+            }
+
+            Bucket bucket = buckets.get(first);
+            NextTickListEntry entry;
+            while ((entry = bucket.next()) != null) {
+                if (unlink(entry)) {
+                    removeFromChunk(entry);
+                    return entry;
+                }
+            }
+
+            times.dequeueLong();
+            buckets.remove(first);
+        }
+        return null;
+    }
+
+    /**
+     * Adds the ticks inside the box to the list, in no particular order, removing them when asked to.
+     */
+    @Nullable
+    public List<NextTickListEntry> collect(StructureBoundingBox structureBB, boolean remove, @Nullable List<NextTickListEntry> list) {
+        int minChunkX = structureBB.minX >> 4;
+        int maxChunkX = structureBB.maxX - 1 >> 4;
+        int minChunkZ = structureBB.minZ >> 4;
+        int maxChunkZ = structureBB.maxZ - 1 >> 4;
+
+        if (minChunkX > maxChunkX || minChunkZ > maxChunkZ) {
+            return list;
+        }
+
+        // Only look at the chunks the box covers, unless there are fewer chunks with ticks than that
+        if ((long) (maxChunkX - minChunkX + 1) * (long) (maxChunkZ - minChunkZ + 1) <= (long) byChunk.size()) {
+            for (int chunkX = minChunkX; chunkX <= maxChunkX; ++chunkX) {
+                for (int chunkZ = minChunkZ; chunkZ <= maxChunkZ; ++chunkZ) {
+                    long key = ChunkPos.asLong(chunkX, chunkZ);
+                    Set<NextTickListEntry> set = byChunk.get(key);
+                    if (set != null) {
+                        list = collect(set, structureBB, remove, list);
+                        if (set.isEmpty()) {
+                            byChunk.remove(key);
+                        }
+                    }
+                }
+            }
+        } else {
+            Iterator<Set<NextTickListEntry>> iterator = byChunk.values().iterator();
+            while (iterator.hasNext()) {
+                Set<NextTickListEntry> set = iterator.next();
+                list = collect(set, structureBB, remove, list);
+                if (set.isEmpty()) {
+                    iterator.remove();
+                }
+            }
+        }
+        return list;
+    }
+
+    @Nullable
+    private List<NextTickListEntry> collect(Set<NextTickListEntry> set, StructureBoundingBox structureBB, boolean remove, @Nullable List<NextTickListEntry> list) {
+        Iterator<NextTickListEntry> iterator = set.iterator();
+        while (iterator.hasNext()) {
+            NextTickListEntry entry = iterator.next();
+            BlockPos pos = entry.position;
+
+            if (pos.getX() >= structureBB.minX && pos.getX() < structureBB.maxX && pos.getZ() >= structureBB.minZ && pos.getZ() < structureBB.maxZ) {
+                if (remove && unlink(entry)) {
+                    --chunkIndexSize;
+                    iterator.remove();
+                }
+
+                if (list == null) {
+                    list = new ArrayList<>();
+                }
+                list.add(entry);
+            }
+        }
+        return list;
+    }
+
+    @Nullable
+    private NextTickListEntry find(NextTickListEntry entry) {
+        NextTickListEntry first = byPosition.get(entry.position.toLong());
+        if (first != null && first.equals(entry)) {
+            return first;
+        }
+        return sharedPositions.isEmpty() ? null : sharedPositions.get(entry);
+    }
+
+    /**
+     * Drops the tick from the position index if it is still scheduled; its bucket is left alone.
+     */
+    private boolean unlink(NextTickListEntry entry) {
+        long key = entry.position.toLong();
+        if (byPosition.get(key) == entry) {
+            byPosition.remove(key);
+        } else if (!sharedPositions.isEmpty() && sharedPositions.get(entry) == entry) {
+            sharedPositions.remove(entry);
+        } else {
+            return false;
+        }
+        --size;
+        return true;
+    }
+
+    private void removeFromChunk(NextTickListEntry entry) {
+        long key = chunkKey(entry.position);
+        Set<NextTickListEntry> set = byChunk.get(key);
+        if (set != null && set.remove(entry)) {
+            --chunkIndexSize;
+            if (set.isEmpty()) {
+                byChunk.remove(key);
+            }
+        }
+    }
+
+    private static long chunkKey(BlockPos pos) {
+        return ChunkPos.asLong(pos.getX() >> 4, pos.getZ() >> 4);
+    }
+
+    /**
+     * Ticks sharing a scheduled time, consumed from the head.
+     */
+    private static class Bucket {
+        private NextTickListEntry[] entries = new NextTickListEntry[8];
+        private int head;
+        private int tail;
+        private boolean sorted = true;
+
+        private void add(NextTickListEntry entry) {
+            if (tail == entries.length) {
+                if (head > entries.length / 2) {
+                    System.arraycopy(entries, head, entries, 0, tail - head);
+                    Arrays.fill(entries, tail - head, tail, null);
+                    tail -= head;
+                    head = 0;
+                } else {
+                    entries = Arrays.copyOf(entries, entries.length * 2);
+                }
+            }
+            if (sorted && tail > head && entries[tail - 1].compareTo(entry) > 0) {
+                sorted = false;
+            }
+            entries[tail++] = entry;
+        }
+
+        @Nullable
+        private NextTickListEntry next() {
+            if (head == tail) {
+                return null;
+            }
+            if (!sorted) {
+                Arrays.sort(entries, head, tail);
+                sorted = true;
+            }
+            NextTickListEntry entry = entries[head];
+            entries[head++] = null;
+            return entry;
+        }
+    }
+}
@@ -211,6 +211,12 @@ public abstract class Entity implements ICommandSender, net.minecraftforge.commo
     public boolean fromMobSpawner;
     public void inactiveTick() { }
     // Spigot end
+    // PFServer start - creature types this entity was counted as by its world and chunk
+    public int worldCreatureMask = cn.pfcraft.server.entity.CreatureCounts.NOT_COUNTED;
+    public int chunkCreatureMask = cn.pfcraft.server.entity.CreatureCounts.NOT_COUNTED;
+    // PFServer end
+    public int entityGridCell = cn.pfcraft.server.entity.SectionEntityGrid.NO_CELL; // PFServer - cell in its chunk section's grid
+    public long activationWakeTick = Integer.MIN_VALUE; // PFServer - next tick a sleeping entity wakes up with dynamic activation
 
     public Entity(World worldIn)
     {
@@ -424,6 +430,7 @@ public abstract class Entity implements ICommandSender, net.minecraftforge.commo
         float f = this.width / 2.0F;
         float f1 = this.height;
         this.setEntityBoundingBox(new AxisAlignedBB(x - (double)f, y, z - (double)f, x + (double)f, y + (double)f1, z + (double)f));
+        if (this.entityGridCell >= 0) this.world.moveEntityInGrid(this); // PFServer - file under the new box, the chunk registration above saw the old one
     }
 
     @SideOnly(Side.CLIENT)
@@ -2079,7 +2086,7 @@ public abstract class Entity implements ICommandSender, net.minecraftforge.commo
 
                 // Reset the persistence for tamed animals
                 if (entity instanceof EntityTameable && !isLevelAtLeast(compound, 2) && !compound.getBoolean("PersistenceRequired")) {
-                    ((EntityLiving) entity).persistenceRequired = !(entity).canDespawn();
+                    ((EntityLiving) entity).setPersistenceRequired(!(entity).canDespawn()); // PFServer
                 }
             }
             double limit = getBukkitEntity() instanceof Vehicle ? 100.0D : 10.0D;
@@ -49,6 +49,7 @@ import org.bukkit.event.entity.EntityUnleashEvent;
 
 import javax.annotation.Nullable;
 import java.util.Arrays;
+import java.util.List;
 import java.util.Map;
 import java.util.Random;
 import java.util.UUID;
@@ -85,6 +86,13 @@ public abstract class EntityLiving extends EntityLivingBase
         super(worldIn);
         this.tasks = new EntityAITasks(worldIn != null && worldIn.profiler != null ? worldIn.profiler : null);
         this.targetTasks = new EntityAITasks(worldIn != null && worldIn.profiler != null ? worldIn.profiler : null);
+        // PFServer start
+        if (cn.pfcraft.server.PFSConfig.staggerGoalSelection)
+        {
+            this.tasks.setTickOffset(this.getEntityId());
+            this.targetTasks.setTickOffset(this.getEntityId());
+        }
+        // PFServer end
         this.lookHelper = new EntityLookHelper(this);
         this.moveHelper = new EntityMoveHelper(this);
         this.jumpHelper = new EntityJumpHelper(this);
@@ -487,7 +495,7 @@ public abstract class EntityLiving extends EntityLivingBase
         // this.persistenceRequired = compound.getBoolean("PersistenceRequired");
         boolean data = compound.getBoolean("PersistenceRequired");
         if (isLevelAtLeast(compound, 1) || data) {
-            this.persistenceRequired = data;
+            this.setPersistenceRequired(data); // PFServer
         }
 
         if (compound.hasKey("ArmorItems", 9))
@@ -615,13 +623,28 @@ public abstract class EntityLiving extends EntityLivingBase
 
         if (!this.world.isRemote && this.canPickUpLoot() && !this.dead && net.minecraftforge.event.ForgeEventFactory.getMobGriefingEvent(this.world, this))
         {
-            for (EntityItem entityitem : this.world.getEntitiesWithinAABB(EntityItem.class, this.getEntityBoundingBox().grow(1.0D, 0.0D, 1.0D)))
+            // PFServer start - reuse the list
+            List<EntityItem> list = cn.pfcraft.server.entity.EntityListPool.take();
+
+            try
             {
-                if (!entityitem.isDead && !entityitem.getItem().isEmpty() && !entityitem.cannotPickup())
+                this.world.getEntitiesWithinAABB(EntityItem.class, this.getEntityBoundingBox().grow(1.0D, 0.0D, 1.0D), list, EntitySelectors.NOT_SPECTATING);
+
+                for (int i = 0; i < list.size(); ++i)
                 {
-                    this.updateEquipmentIfNeeded(entityitem);
+                    EntityItem entityitem = list.get(i);
+
+                    if (!entityitem.isDead && !entityitem.getItem().isEmpty() && !entityitem.cannotPickup())
+                    {
+                        this.updateEquipmentIfNeeded(entityitem);
+                    }
                 }
             }
+            finally
+            {
+                cn.pfcraft.server.entity.EntityListPool.release(list);
+            }
+            // PFServer end
         }
 
         this.world.profiler.endSection();
@@ -729,7 +752,7 @@ public abstract class EntityLiving extends EntityLivingBase
                     this.inventoryArmorDropChances[entityequipmentslot.getIndex()] = 2.0F;
             }
 
-            this.persistenceRequired = true;
+            this.setPersistenceRequired(true); // PFServer
             this.onItemPickup(itemEntity, itemstack.getCount());
             itemEntity.setDead();
         }
@@ -1225,8 +1248,19 @@ public abstract class EntityLiving extends EntityLivingBase
 
     public void enablePersistence()
     {
-        this.persistenceRequired = true;
+        this.setPersistenceRequired(true); // PFServer
+    }
+
+    // PFServer start - persistent mobs that could despawn don't count towards the spawn caps
+    public void setPersistenceRequired(boolean persistenceRequired)
+    {
+        if (this.persistenceRequired != persistenceRequired)
+        {
+            this.persistenceRequired = persistenceRequired;
+            cn.pfcraft.server.entity.CreatureCounts.update(this);
+        }
     }
+    // PFServer end
 
     public void setDropChance(EntityEquipmentSlot slotIn, float chance)
     {
@@ -2735,36 +2735,48 @@ public abstract class EntityLivingBase extends Entity
 
     protected void collideWithNearbyEntities()
     {
-        List<Entity> list = this.world.getEntitiesInAABBexcluding(this, this.getEntityBoundingBox(), EntitySelectors.getTeamCollisionPredicate(this));
+        // PFServer start - reuse the list
+        List<Entity> list = cn.pfcraft.server.entity.EntityListPool.take();
 
-        if (!list.isEmpty())
+        try
         {
-            int i = this.world.getGameRules().getInt("maxEntityCramming");
+            this.world.getEntitiesInAABBexcluding(this, this.getEntityBoundingBox(), list, EntitySelectors.getTeamCollisionPredicate(this));
+            // PFServer end
 
-            if (i > 0 && list.size() > i - 1 && this.rand.nextInt(4) == 0)
+            if (!list.isEmpty())
             {
-                int j = 0;
+                int i = this.world.getGameRules().getInt("maxEntityCramming");
 
-                for (int k = 0; k < list.size(); ++k)
+                if (i > 0 && list.size() > i - 1 && this.rand.nextInt(4) == 0)
                 {
-                    if (!((Entity)list.get(k)).isRiding())
+                    int j = 0;
+
+                    for (int k = 0; k < list.size(); ++k)
                     {
-                        ++j;
+                        if (!((Entity)list.get(k)).isRiding())
+                        {
+                            ++j;
+                        }
+                    }
+
+                    if (j > i - 1)
+                    {
+                        this.attackEntityFrom(DamageSource.CRAMMING, 6.0F);
                     }
                 }
 
-                if (j > i - 1)
+                for (int l = 0; l < list.size(); ++l)
                 {
-                    this.attackEntityFrom(DamageSource.CRAMMING, 6.0F);
+                    Entity entity = list.get(l);
+                    this.collideWithEntity(entity);
                 }
             }
-
-            for (int l = 0; l < list.size(); ++l)
-            {
-                Entity entity = list.get(l);
-                this.collideWithEntity(entity);
-            }
         }
+        finally
+        {
+            cn.pfcraft.server.entity.EntityListPool.release(list);
+        }
+        // PFServer end
     }
 
     protected void collideWithEntity(Entity entityIn)
@@ -1,5 +1,7 @@
 package net.minecraft.entity;
 
+import cn.pfcraft.server.PFSConfig;
+import cn.pfcraft.server.entity.TrackerGrid;
 import com.google.common.collect.Lists;
 import com.google.common.collect.Sets;
 import net.minecraft.crash.CrashReport;
@@ -16,6 +18,7 @@ import net.minecraft.entity.projectile.*;
 import net.minecraft.network.Packet;
 import net.minecraft.network.play.server.SPacketEntityAttach;
 import net.minecraft.network.play.server.SPacketSetPassengers;
+import net.minecraft.util.ClassInheritanceMultiMap;
 import net.minecraft.util.IntHashMap;
 import net.minecraft.util.ReportedException;
 import net.minecraft.util.math.MathHelper;
@@ -26,6 +29,7 @@ import net.minecraftforge.fml.relauncher.SideOnly;
 import org.apache.logging.log4j.LogManager;
 import org.apache.logging.log4j.Logger;
 
+import java.util.Collection;
 import java.util.List;
 import java.util.Set;
 
@@ -36,6 +40,12 @@ public class EntityTracker
     private final Set<EntityTrackerEntry> entries = Sets.<EntityTrackerEntry>newHashSet();
     public final IntHashMap<EntityTrackerEntry> trackedEntityHashTable = new IntHashMap<EntityTrackerEntry>();
     private int maxTrackingDistanceThreshold;
+    // PFServer start - entries and players by chunk column, null to check every entry against every player
+    private final TrackerGrid grid = PFSConfig.trackerSpatialIndex ? new TrackerGrid() : null;
+    static int visibilityChecks;
+    private double averageTickMillis;
+    private double averageChecks;
+    // PFServer end
 
     public EntityTracker(WorldServer theWorldIn)
     {
@@ -62,10 +72,18 @@ public class EntityTracker
 
         if (entityIn instanceof EntityPlayerMP)
         {
-            this.track(entityIn, 512, 2);
+            // PFServer start
             EntityPlayerMP entityplayermp = (EntityPlayerMP)entityIn;
 
-            for (EntityTrackerEntry entitytrackerentry : this.entries)
+            if (this.grid != null)
+            {
+                this.grid.addPlayer(entityplayermp);
+            }
+
+            this.track(entityIn, 512, 2);
+
+            for (EntityTrackerEntry entitytrackerentry : this.getEntriesNear(entityplayermp))
+            // PFServer end
             {
                 if (entitytrackerentry.getTrackedEntity() != entityplayermp)
                 {
@@ -209,6 +227,13 @@ public class EntityTracker
             EntityTrackerEntry entitytrackerentry = new EntityTrackerEntry(entityIn, trackingRange, this.maxTrackingDistanceThreshold, updateFrequency, sendVelocityUpdates);
             this.entries.add(entitytrackerentry);
             this.trackedEntityHashTable.addKey(entityIn.getEntityId(), entitytrackerentry);
+            // PFServer start
+            if (this.grid != null)
+            {
+                entitytrackerentry.setGrid(this.grid);
+                this.grid.addEntry(entitytrackerentry);
+            }
+            // PFServer end
             entitytrackerentry.updatePlayerEntities(this.world.playerEntities);
         }
         catch (Throwable throwable)
@@ -250,10 +275,17 @@ public class EntityTracker
         {
             EntityPlayerMP entityplayermp = (EntityPlayerMP)entityIn;
 
-            for (EntityTrackerEntry entitytrackerentry : this.entries)
+            for (EntityTrackerEntry entitytrackerentry : this.grid != null ? this.grid.getTrackedBy(entityplayermp) : this.entries) // PFServer
             {
                 entitytrackerentry.removeFromTrackedPlayers(entityplayermp);
             }
+
+            // PFServer start
+            if (this.grid != null)
+            {
+                this.grid.removePlayer(entityplayermp);
+            }
+            // PFServer end
         }
 
         EntityTrackerEntry entitytrackerentry1 = this.trackedEntityHashTable.removeObject(entityIn.getEntityId());
@@ -261,17 +293,38 @@ public class EntityTracker
         if (entitytrackerentry1 != null)
         {
             this.entries.remove(entitytrackerentry1);
+            // PFServer start
+            if (this.grid != null)
+            {
+                this.grid.removeEntry(entitytrackerentry1);
+            }
+            // PFServer end
             entitytrackerentry1.sendDestroyEntityPacketToTrackedPlayers();
         }
     }
 
     public void tick()
     {
+        // PFServer start
+        long start = System.nanoTime();
+        visibilityChecks = 0;
+
+        if (this.grid != null)
+        {
+            this.grid.updatePlayers(this.world.playerEntities);
+        }
+        // PFServer end
         List<EntityPlayerMP> list = Lists.<EntityPlayerMP>newArrayList();
 
         for (EntityTrackerEntry entitytrackerentry : this.entries)
         {
             entitytrackerentry.updatePlayerList(this.world.playerEntities);
+            // PFServer start - filed under the position it sent this tick
+            if (this.grid != null)
+            {
+                this.grid.moveEntry(entitytrackerentry);
+            }
+            // PFServer end
 
             if (entitytrackerentry.playerEntitiesUpdated)
             {
@@ -288,7 +341,7 @@ public class EntityTracker
         {
             EntityPlayerMP entityplayermp = list.get(i);
 
-            for (EntityTrackerEntry entitytrackerentry1 : this.entries)
+            for (EntityTrackerEntry entitytrackerentry1 : this.getEntriesNear(entityplayermp)) // PFServer
             {
                 if (entitytrackerentry1.getTrackedEntity() != entityplayermp)
                 {
@@ -296,10 +349,67 @@ public class EntityTracker
                 }
             }
         }
+
+        // PFServer start - averaged over roughly the last 20 ticks
+        this.averageTickMillis += ((System.nanoTime() - start) / 1000000.0D - this.averageTickMillis) * 0.05D;
+        this.averageChecks += (visibilityChecks - this.averageChecks) * 0.05D;
+        // PFServer end
+    }
+
+    // PFServer start
+    /**
+     * The entries the player could see or is tracked by, every entry without the grid.
+     */
+    private Collection<EntityTrackerEntry> getEntriesNear(EntityPlayerMP player)
+    {
+        return this.grid != null ? this.grid.getCandidateEntries(player) : this.entries;
+    }
+
+    public boolean isSpatiallyIndexed()
+    {
+        return this.grid != null;
+    }
+
+    public int getEntryCount()
+    {
+        return this.entries.size();
+    }
+
+    public double getAverageTickMillis()
+    {
+        return this.averageTickMillis;
+    }
+
+    public double getAverageVisibilityChecks()
+    {
+        return this.averageChecks;
     }
+    // PFServer end
 
     public void updateVisibility(EntityPlayerMP player)
     {
+        // PFServer start - the player's own entry may be filed away from it after a teleport
+        if (this.grid != null)
+        {
+            EntityTrackerEntry entitytrackerentry1 = this.trackedEntityHashTable.lookup(player.getEntityId());
+
+            if (entitytrackerentry1 != null)
+            {
+                entitytrackerentry1.updatePlayerEntities(this.world.playerEntities);
+            }
+
+            for (EntityTrackerEntry entitytrackerentry : this.grid.getCandidateEntries(player))
+            {
+                if (entitytrackerentry.getTrackedEntity() != player)
+                {
+                    entitytrackerentry.updatePlayerEntity(player);
+                }
+            }
+
+            return;
+        }
+        // PFServer end
+
         for (EntityTrackerEntry entitytrackerentry : this.entries)
         {
             if (entitytrackerentry.getTrackedEntity() == player)
@@ -354,7 +464,7 @@ public class EntityTracker
 
     public void removePlayerFromTrackers(EntityPlayerMP player)
     {
-        for (EntityTrackerEntry entitytrackerentry : this.entries)
+        for (EntityTrackerEntry entitytrackerentry : this.grid != null ? this.grid.getTrackedBy(player) : this.entries) // PFServer
         {
             entitytrackerentry.removeTrackedPlayerSymmetric(player);
         }
@@ -364,8 +474,29 @@ public class EntityTracker
     {
         List<Entity> list = Lists.<Entity>newArrayList();
         List<Entity> list1 = Lists.<Entity>newArrayList();
+        // PFServer start - the tracked entities of the chunk are in its entity lists, no need to go through every entry
+        Collection<EntityTrackerEntry> collection = this.entries;
 
-        for (EntityTrackerEntry entitytrackerentry : this.entries)
+        if (this.grid != null)
+        {
+            collection = Lists.<EntityTrackerEntry>newArrayList();
+
+            for (ClassInheritanceMultiMap<Entity> classinheritancemultimap : chunkIn.getEntityLists())
+            {
+                for (Entity entity3 : classinheritancemultimap)
+                {
+                    EntityTrackerEntry entitytrackerentry1 = this.trackedEntityHashTable.lookup(entity3.getEntityId());
+
+                    if (entitytrackerentry1 != null && entitytrackerentry1.getTrackedEntity() == entity3)
+                    {
+                        collection.add(entitytrackerentry1);
+                    }
+                }
+            }
+        }
+
+        for (EntityTrackerEntry entitytrackerentry : collection)
+        // PFServer end
         {
             Entity entity = entitytrackerentry.getTrackedEntity();
 
@@ -410,5 +541,12 @@ public class EntityTracker
         {
             entitytrackerentry.setMaxRange(this.maxTrackingDistanceThreshold);
         }
+
+        // PFServer start
+        if (this.grid != null)
+        {
+            this.grid.updateRanges();
+        }
+        // PFServer end
     }
 }
\ No newline at end of file
@@ -1,5 +1,7 @@
 package net.minecraft.entity;
 
+import cn.pfcraft.server.entity.TrackerGrid;
+import cn.pfcraft.server.network.SharedPacket;
 import com.google.common.collect.Sets;
 import net.minecraft.block.Block;
 import net.minecraft.entity.ai.attributes.AttributeMap;
@@ -58,6 +60,7 @@ public class EntityTrackerEntry
     private boolean onGround;
     public boolean playerEntitiesUpdated;
     public final Set<EntityPlayerMP> trackingPlayers = Sets.<EntityPlayerMP>newHashSet();
+    private TrackerGrid grid; // PFServer
 
     public EntityTrackerEntry(Entity entityIn, int rangeIn, int maxRangeIn, int updateFrequencyIn, boolean sendVelocityUpdatesIn)
     {
@@ -103,7 +106,7 @@ public class EntityTrackerEntry
             this.lastTrackedEntityPosZ = this.trackedEntity.posZ;
             this.updatedPlayerVisibility = true;
             this.playerEntitiesUpdated = true;
-            this.updatePlayerEntities(players);
+            this.updatePlayerEntities(this.grid != null ? this.grid.getCandidatePlayers(this) : players); // PFServer
         }
 
         List<Entity> list = this.trackedEntity.getPassengers();
@@ -341,6 +344,13 @@ public class EntityTrackerEntry
 
     public void sendPacketToTrackedPlayers(Packet<?> packetIn)
     {
+        // PFServer start - serialize once for every tracking player
+        if (packetIn instanceof SharedPacket && this.trackingPlayers.size() > 1)
+        {
+            ((SharedPacket)packetIn).setShared();
+        }
+        // PFServer end
+
         for (EntityPlayerMP entityplayermp : this.trackingPlayers)
         {
             entityplayermp.connection.sendPacket(packetIn);
@@ -349,6 +359,13 @@ public class EntityTrackerEntry
 
     public void sendToTrackingAndSelf(Packet<?> packetIn)
     {
+        // PFServer start
+        if (packetIn instanceof SharedPacket && this.trackedEntity instanceof EntityPlayerMP && !this.trackingPlayers.isEmpty())
+        {
+            ((SharedPacket)packetIn).setShared();
+        }
+        // PFServer end
+
         this.sendPacketToTrackedPlayers(packetIn);
 
         if (this.trackedEntity instanceof EntityPlayerMP)
@@ -373,11 +390,13 @@ public class EntityTrackerEntry
             this.trackedEntity.removeTrackingPlayer(playerMP);
             playerMP.removeEntity(this.trackedEntity);
             this.trackingPlayers.remove(playerMP);
+            if (this.grid != null) this.grid.onUntrack(playerMP, this); // PFServer
         }
     }
 
     public void updatePlayerEntity(EntityPlayerMP playerMP)
     {
+        ++EntityTracker.visibilityChecks; // PFServer
         if (playerMP != this.trackedEntity)
         {
             if (this.isVisibleTo(playerMP))
@@ -395,6 +414,7 @@ public class EntityTrackerEntry
                     playerMP.entityRemoveQueue.remove(Integer.valueOf(this.trackedEntity.getEntityId()));
                     // CraftBukkit end
                     this.trackingPlayers.add(playerMP);
+                    if (this.grid != null) this.grid.onTrack(playerMP, this); // PFServer
                     Packet<?> packet = this.createSpawnPacket();
                     playerMP.connection.sendPacket(packet);
 
@@ -494,6 +514,7 @@ public class EntityTrackerEntry
             else if (this.trackingPlayers.contains(playerMP))
             {
                 this.trackingPlayers.remove(playerMP);
+                if (this.grid != null) this.grid.onUntrack(playerMP, this); // PFServer
                 this.trackedEntity.removeTrackingPlayer(playerMP);
                 playerMP.removeEntity(this.trackedEntity);
                 net.minecraftforge.event.ForgeEventFactory.onStopEntityTracking(trackedEntity, playerMP);
@@ -699,6 +720,7 @@ public class EntityTrackerEntry
         if (this.trackingPlayers.contains(playerMP))
         {
             this.trackingPlayers.remove(playerMP);
+            if (this.grid != null) this.grid.onUntrack(playerMP, this); // PFServer
             this.trackedEntity.removeTrackingPlayer(playerMP);
             playerMP.removeEntity(this.trackedEntity);
         }
@@ -714,6 +736,31 @@ public class EntityTrackerEntry
         this.maxRange = maxRangeIn;
     }
 
+    // PFServer start
+    public void setGrid(@Nullable TrackerGrid grid)
+    {
+        this.grid = grid;
+    }
+
+    /**
+     * How far from the position last sent to clients the entity is visible.
+     */
+    public int getTrackingRange()
+    {
+        return Math.min(this.range, this.maxRange);
+    }
+
+    public double getTrackedX()
+    {
+        return (double)this.encodedPosX / 4096.0D;
+    }
+
+    public double getTrackedZ()
+    {
+        return (double)this.encodedPosZ / 4096.0D;
+    }
+    // PFServer end
+
     public void resetPlayerVisibility()
     {
         this.updatedPlayerVisibility = false;
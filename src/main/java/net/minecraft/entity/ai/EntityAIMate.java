@@ -109,7 +109,7 @@ public class EntityAIMate extends EntityAIBase
         if (entityageable != null)
         {
             if (entityageable instanceof EntityTameable && ((EntityTameable) entityageable).isTamed()) {
-                entityageable.persistenceRequired = true;
+                entityageable.setPersistenceRequired(true); // PFServer
             }
             EntityPlayerMP entityplayermp = this.animal.getLoveCause();
 
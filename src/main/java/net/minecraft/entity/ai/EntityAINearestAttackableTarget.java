@@ -28,6 +28,10 @@ public class EntityAINearestAttackableTarget<T extends EntityLivingBase> extends
     protected final Sorter sorter;
     protected final Predicate <? super T > targetEntitySelector;
     protected T targetEntity;
+    // PFServer start - last search result, reused until the owner ticked this far
+    private T cachedTarget;
+    private int cachedUntil = Integer.MIN_VALUE;
+    // PFServer end
 
     public EntityAINearestAttackableTarget(EntityCreature creature, Class<T> classTarget, boolean checkSight)
     {
@@ -72,7 +76,39 @@ public class EntityAINearestAttackableTarget<T extends EntityLivingBase> extends
         {
             return false;
         }
-        else if (this.targetClass != EntityPlayer.class && this.targetClass != EntityPlayerMP.class)
+        // PFServer start - reuse a recent search result, a target only while it is still suitable. Not for players, whose
+        // range shrinks with sneaking, invisibility and skulls, and who are cheap to look for
+        else if (cn.pfcraft.server.PFSConfig.targetSearchCacheTicks > 0 && this.targetClass != EntityPlayer.class && this.targetClass != EntityPlayerMP.class)
+        {
+            if (this.taskOwner.ticksExisted < this.cachedUntil && this.taskOwner.ticksExisted >= this.cachedUntil - cn.pfcraft.server.PFSConfig.targetSearchCacheTicks)
+            {
+                if (this.cachedTarget == null)
+                {
+                    return false;
+                }
+
+                if (this.cachedTarget.world == this.taskOwner.world && this.getTargetableArea(this.getTargetDistance()).intersects(this.cachedTarget.getEntityBoundingBox()) && this.targetEntitySelector.apply(this.cachedTarget))
+                {
+                    this.targetEntity = this.cachedTarget;
+                    return true;
+                }
+            }
+
+            boolean found = this.searchForTarget();
+            this.cachedTarget = found ? this.targetEntity : null;
+            this.cachedUntil = this.taskOwner.ticksExisted + cn.pfcraft.server.PFSConfig.targetSearchCacheTicks;
+            return found;
+        }
+        else
+        {
+            return this.searchForTarget();
+        }
+        // PFServer end
+    }
+
+    private boolean searchForTarget() // PFServer - the search shouldExecute ran
+    {
+        if (this.targetClass != EntityPlayer.class && this.targetClass != EntityPlayerMP.class)
         {
             List<T> list = this.taskOwner.world.<T>getEntitiesWithinAABB(this.targetClass, this.getTargetableArea(this.getTargetDistance()), this.targetEntitySelector);
 
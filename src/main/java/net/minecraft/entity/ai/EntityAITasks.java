@@ -18,12 +18,23 @@ public class EntityAITasks
     private int tickCount;
     private int tickRate = 3;
     private int disabledControlFlags;
+    // PFServer start - controls held by the executing tasks, and whether any of them can't be interrupted
+    private int executingMutexBits;
+    private boolean executingUninterruptible;
+    // PFServer end
 
     public EntityAITasks(Profiler profilerIn)
     {
         this.profiler = profilerIn;
     }
 
+    // PFServer start - spread goal selection of mobs over the ticks between selections
+    public void setTickOffset(int offset)
+    {
+        this.tickCount = Math.floorMod(offset, this.tickRate);
+    }
+    // PFServer end
+
     public void addTask(int priority, EntityAIBase task)
     {
         this.taskEntries.add(new EntityAITaskEntry(priority, task));
@@ -45,6 +56,7 @@ public class EntityAITasks
                     entityaitasks$entityaitaskentry.using = false;
                     entityaitasks$entityaitaskentry.action.resetTask();
                     this.executingTaskEntries.remove(entityaitasks$entityaitaskentry);
+                    this.updateExecutingState(); // PFServer
                 }
 
                 iterator.remove();
@@ -59,6 +71,8 @@ public class EntityAITasks
 
         if (this.tickCount++ % this.tickRate == 0)
         {
+            this.updateExecutingState(); // PFServer
+
             for (EntityAITaskEntry entityaitasks$entityaitaskentry : this.taskEntries)
             {
                 if (entityaitasks$entityaitaskentry.using)
@@ -68,13 +82,15 @@ public class EntityAITasks
                         entityaitasks$entityaitaskentry.using = false;
                         entityaitasks$entityaitaskentry.action.resetTask();
                         this.executingTaskEntries.remove(entityaitasks$entityaitaskentry);
+                        this.updateExecutingState(); // PFServer
                     }
                 }
-                else if (this.canUse(entityaitasks$entityaitaskentry) && entityaitasks$entityaitaskentry.action.shouldExecute())
+                else if (this.canUse(entityaitasks$entityaitaskentry) && this.shouldExecute(entityaitasks$entityaitaskentry)) // PFServer - timed
                 {
                     entityaitasks$entityaitaskentry.using = true;
                     entityaitasks$entityaitaskentry.action.startExecuting();
                     this.executingTaskEntries.add(entityaitasks$entityaitaskentry);
+                    this.updateExecutingState(); // PFServer
                 }
             }
         }
@@ -101,10 +117,23 @@ public class EntityAITasks
         {
             this.profiler.startSection("goalTick");
 
+            // PFServer start - timed
+            boolean timed = cn.pfcraft.server.entity.GoalTimings.isEnabled();
+
             for (EntityAITaskEntry entityaitasks$entityaitaskentry2 : this.executingTaskEntries)
             {
-                entityaitasks$entityaitaskentry2.action.updateTask();
+                if (timed)
+                {
+                    long start = System.nanoTime();
+                    entityaitasks$entityaitaskentry2.action.updateTask();
+                    cn.pfcraft.server.entity.GoalTimings.recordTick(entityaitasks$entityaitaskentry2.action, System.nanoTime() - start);
+                }
+                else
+                {
+                    entityaitasks$entityaitaskentry2.action.updateTask();
+                }
             }
+            // PFServer end
 
             this.profiler.endSection();
         }
@@ -112,9 +141,48 @@ public class EntityAITasks
 
     private boolean canContinue(EntityAITaskEntry taskEntry)
     {
+        // PFServer start - timed
+        if (cn.pfcraft.server.entity.GoalTimings.isEnabled())
+        {
+            long start = System.nanoTime();
+            boolean result = taskEntry.action.shouldContinueExecuting();
+            cn.pfcraft.server.entity.GoalTimings.recordSelect(taskEntry.action, System.nanoTime() - start);
+            return result;
+        }
+        // PFServer end
         return taskEntry.action.shouldContinueExecuting();
     }
 
+    // PFServer start
+    private boolean shouldExecute(EntityAITaskEntry taskEntry)
+    {
+        if (cn.pfcraft.server.entity.GoalTimings.isEnabled())
+        {
+            long start = System.nanoTime();
+            boolean result = taskEntry.action.shouldExecute();
+            cn.pfcraft.server.entity.GoalTimings.recordSelect(taskEntry.action, System.nanoTime() - start);
+            return result;
+        }
+
+        return taskEntry.action.shouldExecute();
+    }
+
+    private void updateExecutingState()
+    {
+        int bits = 0;
+        boolean uninterruptible = false;
+
+        for (EntityAITaskEntry entityaitasks$entityaitaskentry : this.executingTaskEntries)
+        {
+            bits |= entityaitasks$entityaitaskentry.action.getMutexBits();
+            uninterruptible |= !entityaitasks$entityaitaskentry.action.isInterruptible();
+        }
+
+        this.executingMutexBits = bits;
+        this.executingUninterruptible = uninterruptible;
+    }
+    // PFServer end
+
     private boolean canUse(EntityAITaskEntry taskEntry)
     {
         if (this.executingTaskEntries.isEmpty())
@@ -125,6 +193,12 @@ public class EntityAITasks
         {
             return false;
         }
+        // PFServer start - no executing task holds a control it needs or refuses to be interrupted
+        else if ((taskEntry.action.getMutexBits() & this.executingMutexBits) == 0 && !this.executingUninterruptible)
+        {
+            return true;
+        }
+        // PFServer end
         else
         {
             for (EntityAITaskEntry entityaitasks$entityaitaskentry : this.executingTaskEntries)
@@ -15,6 +15,7 @@ import net.minecraft.network.datasync.EntityDataManager;
 import net.minecraft.server.MinecraftServer;
 import net.minecraft.stats.StatList;
 import net.minecraft.util.DamageSource;
+import net.minecraft.util.EntitySelectors;
 import net.minecraft.util.datafix.DataFixer;
 import net.minecraft.util.datafix.FixTypes;
 import net.minecraft.util.datafix.walkers.ItemStackData;
@@ -29,6 +30,7 @@ import org.apache.logging.log4j.Logger;
 import org.bukkit.event.entity.EntityPickupItemEvent;
 
 import javax.annotation.Nullable;
+import java.util.List;
 
 public class EntityItem extends Entity
 {
@@ -233,11 +235,24 @@ public class EntityItem extends Entity
     {
         // Spigot start
         double radius = world.spigotConfig.itemMerge;
-        for (EntityItem entityitem : this.world.getEntitiesWithinAABB(EntityItem.class, this.getEntityBoundingBox().grow(radius, radius, radius)))
+        // PFServer start - reuse the list
+        List<EntityItem> list = cn.pfcraft.server.entity.EntityListPool.take();
+
+        try
+        {
+            this.world.getEntitiesWithinAABB(EntityItem.class, this.getEntityBoundingBox().grow(radius, radius, radius), list, EntitySelectors.NOT_SPECTATING);
             // Spigot end
+
+            for (int i = 0; i < list.size(); ++i)
             {
-            this.combineItems(entityitem);
+                this.combineItems(list.get(i));
+            }
+        }
+        finally
+        {
+            cn.pfcraft.server.entity.EntityListPool.release(list);
         }
+        // PFServer end
     }
 
     private boolean combineItems(EntityItem other)
@@ -69,7 +69,7 @@ public class EntityChicken extends EntityAnimal
     public void onLivingUpdate()
     {
         if (this.isChickenJockey()) {
-            this.persistenceRequired = !this.canDespawn();
+            this.setPersistenceRequired(!this.canDespawn()); // PFServer
         }
         super.onLivingUpdate();
         this.oFlap = this.wingRotation;
@@ -1,11 +1,14 @@
 package net.minecraft.nbt;
 
+import io.netty.buffer.ByteBufInputStream;
+import io.netty.buffer.Unpooled;
 import net.minecraft.crash.CrashReport;
 import net.minecraft.crash.CrashReportCategory;
 import net.minecraft.util.ReportedException;
 
 import javax.annotation.Nullable;
 import java.io.*;
+import java.nio.ByteBuffer;
 import java.util.zip.GZIPInputStream;
 import java.util.zip.GZIPOutputStream;
 
@@ -73,6 +76,13 @@ public class CompressedStreamTools
         return read(inputStream, NBTSizeTracker.INFINITE);
     }
 
+    // PFServer start - parse straight from a buffer without wrapping it in streams
+    public static NBTTagCompound read(ByteBuffer buffer) throws IOException
+    {
+        return read(new ByteBufInputStream(Unpooled.wrappedBuffer(buffer)), NBTSizeTracker.INFINITE);
+    }
+    // PFServer end
+
     public static NBTTagCompound read(DataInput input, NBTSizeTracker accounter) throws IOException
     {
         NBTBase nbtbase = read(input, 0, accounter);
@@ -171,6 +171,32 @@ public enum EnumConnectionState
     private static final Map < Class <? extends Packet<? >> , EnumConnectionState > STATES_BY_CLASS = Maps. < Class <? extends Packet<? >> , EnumConnectionState > newHashMap();
     private final int id;
     private final Map < EnumPacketDirection, BiMap < Integer, Class <? extends Packet<? >>> > directionMaps;
+    // PFServer start - ids resolved once per packet class instead of inverting the bimap for every packet. Only what
+    // was found is final, a class looked up before it is registered is looked up in the maps again until it is found
+    private static final ClassValue<EnumConnectionState> STATES_BY_CLASS_VALUE = new ClassValue<EnumConnectionState>()
+    {
+        protected EnumConnectionState computeValue(Class<?> type)
+        {
+            return STATES_BY_CLASS.get(type);
+        }
+    };
+    private final ClassValue<int[]> packetIds = new ClassValue<int[]>()
+    {
+        protected int[] computeValue(Class<?> type)
+        {
+            int[] aint = new int[EnumPacketDirection.values().length];
+
+            for (EnumPacketDirection enumpacketdirection : EnumPacketDirection.values())
+            {
+                BiMap < Integer, Class <? extends Packet<? >>> bimap = EnumConnectionState.this.directionMaps.get(enumpacketdirection);
+                Integer integer = bimap == null ? null : bimap.inverse().get(type);
+                aint[enumpacketdirection.ordinal()] = integer == null ? -1 : integer.intValue();
+            }
+
+            return aint;
+        }
+    };
+    // PFServer end
 
     private EnumConnectionState(int protocolId)
     {
@@ -203,7 +229,26 @@ public enum EnumConnectionState
 
     public Integer getPacketId(EnumPacketDirection direction, Packet<?> packetIn) throws Exception
     {
-        return (Integer)((BiMap)this.directionMaps.get(direction)).inverse().get(packetIn.getClass());
+        // PFServer start - ids are small enough for the Integer cache
+        int[] aint = this.packetIds.get(packetIn.getClass());
+        int i = aint[direction.ordinal()];
+
+        if (i < 0)
+        {
+            BiMap < Integer, Class <? extends Packet<? >>> bimap = this.directionMaps.get(direction);
+            Integer integer = bimap == null ? null : bimap.inverse().get(packetIn.getClass());
+
+            if (integer == null)
+            {
+                return null;
+            }
+
+            i = integer.intValue();
+            aint[direction.ordinal()] = i;
+        }
+
+        return Integer.valueOf(i);
+        // PFServer end
     }
 
     @Nullable
@@ -225,7 +270,10 @@ public enum EnumConnectionState
 
     public static EnumConnectionState getFromPacket(Packet<?> packetIn)
     {
-        return STATES_BY_CLASS.get(packetIn.getClass());
+        // PFServer start
+        EnumConnectionState enumconnectionstate = STATES_BY_CLASS_VALUE.get(packetIn.getClass());
+        return enumconnectionstate != null ? enumconnectionstate : STATES_BY_CLASS.get(packetIn.getClass());
+        // PFServer end
     }
 
     static
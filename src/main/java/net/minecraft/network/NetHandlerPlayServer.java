@@ -1240,6 +1240,19 @@ public class NetHandlerPlayServer implements INetHandlerPlayServer, ITickable
             SPacketSpawnPosition packet6 = (SPacketSpawnPosition) packetIn;
             this.player.compassTarget = new Location(this.getPlayer().getWorld(), packet6.spawnBlockPos.getX(), packet6.spawnBlockPos.getY(), packet6.spawnBlockPos.getZ());
         }
+        // PFServer start - the player may now have other data than the chunk map last sent for the tile entity
+        else if (packetIn instanceof SPacketUpdateTileEntity && cn.pfcraft.server.PFSConfig.sectionDeltaUpdates)
+        {
+            if (this.serverController.isCallingFromMinecraftThread())
+            {
+                this.tileEntityUpdateSent((SPacketUpdateTileEntity)packetIn);
+            }
+            else
+            {
+                this.serverController.addScheduledTask(() -> this.tileEntityUpdateSent((SPacketUpdateTileEntity)packetIn));
+            }
+        }
+        // PFServer end
 
         try
         {
@@ -1260,6 +1273,19 @@ public class NetHandlerPlayServer implements INetHandlerPlayServer, ITickable
         }
     }
 
+    // PFServer start
+    private void tileEntityUpdateSent(SPacketUpdateTileEntity packet)
+    {
+        BlockPos blockpos = packet.getUpdatePos();
+        net.minecraft.server.management.PlayerChunkMapEntry playerchunkmapentry = this.player.getServerWorld().getPlayerChunkMap().getEntry(blockpos.getX() >> 4, blockpos.getZ() >> 4);
+
+        if (playerchunkmapentry != null)
+        {
+            playerchunkmapentry.tileEntityUpdateSent(packet);
+        }
+    }
+    // PFServer end
+
     public void processHeldItemChange(CPacketHeldItemChange packetIn)
     {
         PacketThreadUtil.checkThreadAndEnqueue(packetIn, this, this.player.getServerWorld());
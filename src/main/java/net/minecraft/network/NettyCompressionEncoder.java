@@ -1,53 +1,199 @@
 package net.minecraft.network;
 
+import cn.pfcraft.server.PFSConfig;
+import cn.pfcraft.server.network.NetworkCompression;
 import io.netty.buffer.ByteBuf;
+import io.netty.buffer.ByteBufAllocator;
+import io.netty.buffer.Unpooled;
 import io.netty.channel.ChannelHandlerContext;
-import io.netty.handler.codec.MessageToByteEncoder;
+import io.netty.channel.ChannelOutboundHandlerAdapter;
+import io.netty.channel.ChannelPromise;
+import io.netty.handler.codec.EncoderException;
 
-import java.util.zip.Deflater;
+import java.util.ArrayDeque;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Future;
 
-public class NettyCompressionEncoder extends MessageToByteEncoder<ByteBuf>
+// PFServer - compresses with the per thread zlib contexts, large packets optionally on the compression workers
+public class NettyCompressionEncoder extends ChannelOutboundHandlerAdapter
 {
-    private final byte[] buffer = new byte[8192];
-    private final Deflater deflater;
+    // PFServer start - writes waiting for a packet compressed by a worker, so they reach the channel in order
+    private final ArrayDeque<PendingWrite> pendingWrites = new ArrayDeque<PendingWrite>();
+    private boolean flushPending;
+    // PFServer end
     private int threshold;
 
     public NettyCompressionEncoder(int thresholdIn)
     {
         this.threshold = thresholdIn;
-        this.deflater = new Deflater();
     }
 
-    protected void encode(ChannelHandlerContext p_encode_1_, ByteBuf p_encode_2_, ByteBuf p_encode_3_) throws Exception
+    // PFServer start
+    public void write(ChannelHandlerContext ctx, Object msg, ChannelPromise promise) throws Exception
     {
-        int i = p_encode_2_.readableBytes();
-        PacketBuffer packetbuffer = new PacketBuffer(p_encode_3_);
+        if (msg instanceof Precompressed || !(msg instanceof ByteBuf))
+        {
+            if (msg instanceof Precompressed)
+            {
+                msg = Unpooled.wrappedBuffer(((Precompressed)msg).data);
+            }
 
-        if (i < this.threshold)
+            if (this.pendingWrites.isEmpty())
+            {
+                ctx.write(msg, promise);
+            }
+            else
+            {
+                this.pendingWrites.add(new PendingWrite(msg, promise));
+            }
+
+            return;
+        }
+
+        final ByteBuf in = (ByteBuf)msg;
+        ExecutorService workers = NetworkCompression.getWorkers();
+
+        if (workers == null || in.readableBytes() < PFSConfig.compressionOffloadSize)
         {
-            packetbuffer.writeVarInt(0);
-            packetbuffer.writeBytes(p_encode_2_);
+            if (this.pendingWrites.isEmpty())
+            {
+                ctx.write(compress(ctx.alloc(), in, this.threshold), promise);
+            }
+            else
+            {
+                this.pendingWrites.add(new PendingWrite(compress(ctx.alloc(), in, this.threshold), promise));
+            }
+
+            return;
+        }
+
+        final PendingWrite pendingwrite = new PendingWrite(null, promise);
+        final ByteBufAllocator alloc = ctx.alloc();
+        final int i = this.threshold;
+        this.pendingWrites.add(pendingwrite);
+        pendingwrite.future = workers.submit(() ->
+        {
+            try
+            {
+                pendingwrite.result = compress(alloc, in, i);
+            }
+            catch (Throwable throwable)
+            {
+                pendingwrite.result = throwable;
+            }
+
+            ctx.executor().execute(() -> this.writeCompleted(ctx));
+        });
+    }
+
+    public void flush(ChannelHandlerContext ctx) throws Exception
+    {
+        // What was written before a packet that is still being compressed can go now, the rest once it is done
+        this.flushPending = !this.pendingWrites.isEmpty();
+        ctx.flush();
+    }
+
+    public void handlerRemoved(ChannelHandlerContext ctx) throws Exception
+    {
+        for (PendingWrite pendingwrite : this.pendingWrites)
+        {
+            if (pendingwrite.future != null)
+            {
+                try
+                {
+                    pendingwrite.future.get();
+                }
+                catch (Exception exception)
+                {
+                    pendingwrite.result = exception;
+                }
+            }
         }
-        else
+
+        this.writeCompleted(ctx);
+    }
+
+    private void writeCompleted(ChannelHandlerContext ctx)
+    {
+        while (!this.pendingWrites.isEmpty() && this.pendingWrites.peek().result != null)
         {
-            byte[] abyte = new byte[i];
-            p_encode_2_.readBytes(abyte);
-            packetbuffer.writeVarInt(abyte.length);
-            this.deflater.setInput(abyte, 0, i);
-            this.deflater.finish();
+            PendingWrite pendingwrite = this.pendingWrites.poll();
 
-            while (!this.deflater.finished())
+            if (pendingwrite.result instanceof Throwable)
             {
-                int j = this.deflater.deflate(this.buffer);
-                packetbuffer.writeBytes(this.buffer, 0, j);
+                pendingwrite.promise.tryFailure(new EncoderException((Throwable)pendingwrite.result));
             }
+            else
+            {
+                ctx.write(pendingwrite.result, pendingwrite.promise);
+            }
+        }
 
-            this.deflater.reset();
+        if (this.pendingWrites.isEmpty() && this.flushPending)
+        {
+            this.flushPending = false;
+            ctx.flush();
         }
     }
 
+    private static ByteBuf compress(ByteBufAllocator alloc, ByteBuf in, int threshold)
+    {
+        ByteBuf out = alloc.heapBuffer(in.readableBytes() < threshold ? in.readableBytes() + 1 : in.readableBytes() / 2 + 8);
+
+        try
+        {
+            NetworkCompression.compress(in, out, threshold);
+            return out;
+        }
+        catch (Throwable throwable)
+        {
+            out.release();
+            throw new EncoderException(throwable);
+        }
+        finally
+        {
+            in.release();
+        }
+    }
+    // PFServer end
+
     public void setCompressionThreshold(int thresholdIn)
     {
         this.threshold = thresholdIn;
     }
-}
\ No newline at end of file
+
+    // PFServer start
+    public int getCompressionThreshold()
+    {
+        return this.threshold;
+    }
+
+    /**
+     * A packet already in the compressed format, written as it is.
+     */
+    public static class Precompressed
+    {
+        private final byte[] data;
+
+        public Precompressed(byte[] data)
+        {
+            this.data = data;
+        }
+    }
+    // PFServer end
+
+    // PFServer start
+    private static class PendingWrite
+    {
+        private final ChannelPromise promise;
+        private volatile Object result;
+        private Future<?> future;
+
+        private PendingWrite(Object result, ChannelPromise promise)
+        {
+            this.result = result;
+            this.promise = promise;
+        }
+    }
+    // PFServer end
+}
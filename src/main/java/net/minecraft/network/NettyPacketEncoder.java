@@ -1,7 +1,11 @@
 package net.minecraft.network;
 
+import cn.pfcraft.server.network.SharedPacket;
+import cn.pfcraft.server.network.SharedPacketEncoding;
 import io.netty.buffer.ByteBuf;
+import io.netty.channel.ChannelHandler;
 import io.netty.channel.ChannelHandlerContext;
+import io.netty.channel.ChannelPromise;
 import io.netty.handler.codec.MessageToByteEncoder;
 import org.apache.logging.log4j.LogManager;
 import org.apache.logging.log4j.Logger;
@@ -21,6 +25,35 @@ public class NettyPacketEncoder extends MessageToByteEncoder < Packet<? >>
         this.direction = direction;
     }
 
+    // PFServer start - packets sent to several players are compressed once and written to every connection as they are
+    public void write(ChannelHandlerContext ctx, Object msg, ChannelPromise promise) throws Exception
+    {
+        SharedPacketEncoding sharedpacketencoding = msg instanceof SharedPacket ? ((SharedPacket)msg).getSharedEncoding() : null;
+
+        if (sharedpacketencoding != null)
+        {
+            ChannelHandler channelhandler = ctx.pipeline().get("compress");
+            EnumConnectionState enumconnectionstate = ctx.channel().attr(NetworkManager.PROTOCOL_ATTRIBUTE_KEY).get();
+            Integer integer = enumconnectionstate == null ? null : enumconnectionstate.getPacketId(this.direction, (Packet<?>)msg);
+
+            if (channelhandler instanceof NettyCompressionEncoder && integer != null)
+            {
+                ctx.write(new NettyCompressionEncoder.Precompressed(sharedpacketencoding.getCompressed(integer.intValue(), ((NettyCompressionEncoder)channelhandler).getCompressionThreshold())), promise);
+                return;
+            }
+        }
+
+        super.write(ctx, msg, promise);
+    }
+    // PFServer end
+
+    // PFServer start - the compressor only takes arrays, hand it a heap buffer it can read without a copy
+    protected ByteBuf allocateBuffer(ChannelHandlerContext ctx, Packet<?> msg, boolean preferDirect) throws Exception
+    {
+        return ctx.pipeline().get("compress") != null ? ctx.alloc().heapBuffer() : super.allocateBuffer(ctx, msg, preferDirect);
+    }
+    // PFServer end
+
     protected void encode(ChannelHandlerContext p_encode_1_, Packet<?> p_encode_2_, ByteBuf p_encode_3_) throws IOException, Exception
     {
         EnumConnectionState enumconnectionstate = p_encode_1_.channel().attr(NetworkManager.PROTOCOL_ATTRIBUTE_KEY).get();
@@ -57,6 +90,15 @@ public class NettyPacketEncoder extends MessageToByteEncoder < Packet<? >>
 
                 try
                 {
+                    // PFServer start
+                    SharedPacketEncoding sharedpacketencoding = p_encode_2_ instanceof SharedPacket ? ((SharedPacket)p_encode_2_).getSharedEncoding() : null;
+
+                    if (sharedpacketencoding != null)
+                    {
+                        packetbuffer.writeBytes(sharedpacketencoding.getEncoded());
+                    }
+                    else
+                    // PFServer end
                     p_encode_2_.writePacketData(packetbuffer);
                 }
                 catch (Throwable throwable)
@@ -1,5 +1,8 @@
 package net.minecraft.network;
 
+import cn.pfcraft.server.PFSConfig;
+import cn.pfcraft.server.network.InboundPacketQueue;
+import cn.pfcraft.server.network.OutboundStats;
 import com.google.common.collect.Queues;
 import com.google.common.util.concurrent.ThreadFactoryBuilder;
 import io.netty.bootstrap.Bootstrap;
@@ -18,6 +21,7 @@ import io.netty.handler.timeout.TimeoutException;
 import io.netty.util.AttributeKey;
 import io.netty.util.concurrent.Future;
 import io.netty.util.concurrent.GenericFutureListener;
+import net.minecraft.server.MinecraftServer;
 import net.minecraft.util.CryptManager;
 import net.minecraft.util.ITickable;
 import net.minecraft.util.LazyLoadBase;
@@ -37,6 +41,8 @@ import javax.crypto.SecretKey;
 import java.net.InetAddress;
 import java.net.SocketAddress;
 import java.util.Queue;
+import java.util.concurrent.ConcurrentLinkedQueue;
+import java.util.concurrent.atomic.AtomicBoolean;
 import java.util.concurrent.locks.ReentrantReadWriteLock;
 
 public class NetworkManager extends SimpleChannelInboundHandler<Packet<?>> {
@@ -75,6 +81,13 @@ public class NetworkManager extends SimpleChannelInboundHandler<Packet<?>> {
     private ITextComponent terminationReason;
     private boolean isEncrypted;
     private boolean disconnected;
+    // PFServer start
+    private final InboundPacketQueue inboundQueue = new InboundPacketQueue();
+    private final Queue<PendingPacket> pendingPackets = new ConcurrentLinkedQueue<>();
+    private final AtomicBoolean drainScheduled = new AtomicBoolean();
+    private final Runnable drainTask = this::drainPendingPackets;
+    private final Runnable flushTask = this::flushChannel;
+    // PFServer end
 
     public NetworkManager(EnumPacketDirection packetDirection) {
         this.direction = packetDirection;
@@ -176,39 +189,100 @@ public class NetworkManager extends SimpleChannelInboundHandler<Packet<?>> {
             this.channel.config().setAutoRead(false);
         }
 
+        // PFServer start - packets sent by the main thread are only written, the connection is flushed once at the end of the network tick
+        boolean flush = !PFSConfig.batchOutboundPackets || futureListeners != null && futureListeners.length > 0 || !isMainThread();
+
         if (this.channel.eventLoop().inEventLoop()) {
-            if (enumconnectionstate != enumconnectionstate1 && !( inPacket instanceof net.minecraftforge.fml.common.network.internal.FMLProxyPacket)) {
-                this.setConnectionState(enumconnectionstate);
-            }
+            this.writePacket(inPacket, futureListeners);
 
-            ChannelFuture channelfuture = this.channel.writeAndFlush(inPacket);
+            if (flush) {
+                this.flushChannel();
+            } else {
+                this.flushIfFull();
+            }
+        } else {
+            // One queue drained by a single task instead of a task per packet
+            this.pendingPackets.add(new PendingPacket(inPacket, futureListeners, flush));
 
-            if (futureListeners != null) {
-                channelfuture.addListeners(futureListeners);
+            if (this.drainScheduled.compareAndSet(false, true)) {
+                this.channel.eventLoop().execute(this.drainTask);
             }
+        }
+    }
+
+    private static boolean isMainThread() {
+        MinecraftServer server = MinecraftServer.getServerInst();
+        return server != null && server.isCallingFromMinecraftThread();
+    }
+
+    private void writePacket(Packet<?> inPacket, @Nullable GenericFutureListener <? extends Future <? super Void >> [] futureListeners) {
+        EnumConnectionState enumconnectionstate = EnumConnectionState.getFromPacket(inPacket);
+
+        if (enumconnectionstate != this.channel.attr(PROTOCOL_ATTRIBUTE_KEY).get() && !( inPacket instanceof net.minecraftforge.fml.common.network.internal.FMLProxyPacket)) {
+            this.setConnectionState(enumconnectionstate);
+        }
+
+        ChannelFuture channelfuture = this.channel.write(inPacket);
 
-            channelfuture.addListener(ChannelFutureListener.FIRE_EXCEPTION_ON_FAILURE);
+        if (futureListeners != null) {
+            channelfuture.addListeners(futureListeners);
+        }
+
+        channelfuture.addListener(ChannelFutureListener.FIRE_EXCEPTION_ON_FAILURE);
+    }
+
+    private void drainPendingPackets() {
+        // Cleared before draining so a packet added after the last poll schedules another drain
+        this.drainScheduled.set(false);
+        boolean flush = false;
+        PendingPacket pending;
+
+        while ((pending = this.pendingPackets.poll()) != null) {
+            this.writePacket(pending.packet, pending.futureListeners);
+            flush |= pending.flush;
+        }
+
+        if (flush) {
+            this.flushChannel();
         } else {
-            this.channel.eventLoop().execute(new Runnable() {
-                public void run() {
-                    if (enumconnectionstate != enumconnectionstate1  && !( inPacket instanceof net.minecraftforge.fml.common.network.internal.FMLProxyPacket)) {
-                        NetworkManager.this.setConnectionState(enumconnectionstate);
-                    }
+            this.flushIfFull();
+        }
+    }
 
-                    ChannelFuture channelfuture1 = NetworkManager.this.channel.writeAndFlush(inPacket);
+    private void flushIfFull() {
+        if (PFSConfig.outboundFlushThreshold > 0) {
+            ChannelOutboundBuffer buffer = this.channel.unsafe().outboundBuffer();
 
-                    if (futureListeners != null) {
-                        channelfuture1.addListeners(futureListeners);
-                    }
+            if (buffer != null && buffer.totalPendingWriteBytes() >= PFSConfig.outboundFlushThreshold) {
+                this.flushChannel();
+            }
+        }
+    }
 
-                    channelfuture1.addListener(ChannelFutureListener.FIRE_EXCEPTION_ON_FAILURE);
-                }
-            });
+    private void flushChannel() {
+        ChannelOutboundBuffer buffer = this.channel.unsafe().outboundBuffer();
+
+        if (buffer != null && buffer.totalPendingWriteBytes() > 0) {
+            OutboundStats.recordFlush(buffer.totalPendingWriteBytes());
         }
+
+        // Always, a packet still being compressed by a worker is only flushed once the flush reached the encoder
+        this.channel.flush();
     }
 
-    private void flushOutboundQueue() {
+    /**
+     * Flushes what the main thread wrote this tick, after anything still waiting to be written.
+     */
+    public void flushOutbound() {
         if (this.channel != null && this.channel.isOpen()) {
+            this.channel.eventLoop().execute(this.flushTask);
+        }
+    }
+    // PFServer end
+
+    private void flushOutboundQueue() {
+        // PFServer - the queue is almost always empty, don't take the lock for every packet sent
+        if (this.channel != null && this.channel.isOpen() && !this.outboundPacketsQueue.isEmpty()) {
             this.readWriteLock.readLock().lock();
 
             try {
@@ -222,6 +296,44 @@ public class NetworkManager extends SimpleChannelInboundHandler<Packet<?>> {
         }
     }
 
+    // PFServer start - play packets wait here for the main thread instead of as futures on the server task queue
+    /**
+     * Queues a packet for the main thread, returns false if the queue is disabled.
+     */
+    public boolean enqueueInbound(Packet<?> packet, INetHandler handler) {
+        if (PFSConfig.inboundQueueSize <= 0) {
+            return false;
+        }
+
+        if (!this.inboundQueue.add(packet, handler, PFSConfig.inboundQueueSize) && "drop".equals(PFSConfig.inboundOverflowAction)) {
+            LOGGER.debug("Dropped {} from {}, inbound queue is full", packet.getClass().getSimpleName(), this.socketAddress);
+        }
+
+        return true;
+    }
+
+    public int getInboundQueueSize() {
+        return this.inboundQueue.size();
+    }
+
+    /**
+     * Handles the queued play packets, called with the server tasks at the start of the tick, where vanilla ran them.
+     */
+    public void processInboundQueue() {
+        if (this.inboundQueue.checkOverflow() && "kick".equals(PFSConfig.inboundOverflowAction)) {
+            this.inboundQueue.clear();
+
+            if (this.packetListener instanceof NetHandlerPlayServer) {
+                LOGGER.warn("{} sent more packets than the server could handle, kicking", this.socketAddress);
+                ((NetHandlerPlayServer) this.packetListener).disconnect("Sent too many packets");
+                return;
+            }
+        }
+
+        this.inboundQueue.drain(PFSConfig.inboundPacketsPerTick > 0 ? PFSConfig.inboundPacketsPerTick : Integer.MAX_VALUE);
+    }
+    // PFServer end
+
     public void processReceivedPackets() {
         this.flushOutboundQueue();
 
@@ -229,9 +341,13 @@ public class NetworkManager extends SimpleChannelInboundHandler<Packet<?>> {
             ((ITickable)this.packetListener).update();
         }
 
-        if (this.channel != null) {
-            this.channel.flush();
+        // PFServer start - flushed by the network tick once every connection was processed
+        OutboundStats.recordConnectionTick();
+
+        if (this.channel != null && !PFSConfig.batchOutboundPackets) {
+            this.flushOutbound();
         }
+        // PFServer end
     }
 
     public SocketAddress getRemoteAddress()
@@ -359,6 +475,7 @@ public class NetworkManager extends SimpleChannelInboundHandler<Packet<?>> {
                 LOGGER.warn("handleDisconnection() called twice");
             } else {
                 this.disconnected = true;
+                this.inboundQueue.clear(); // PFServer
 
                 if (this.getExitMessage() != null) {
                     this.getNetHandler().onDisconnect(this.getExitMessage());
@@ -384,6 +501,20 @@ public class NetworkManager extends SimpleChannelInboundHandler<Packet<?>> {
             }
         }
 
+    // PFServer start
+    private static class PendingPacket {
+        private final Packet<?> packet;
+        private final GenericFutureListener <? extends Future <? super Void >> [] futureListeners;
+        private final boolean flush;
+
+        private PendingPacket(Packet<?> packet, @Nullable GenericFutureListener <? extends Future <? super Void >> [] futureListeners, boolean flush) {
+            this.packet = packet;
+            this.futureListeners = futureListeners;
+            this.flush = flush;
+        }
+    }
+    // PFServer end
+
     // Spigot Start
     public SocketAddress getRawAddress()
     {
@@ -1,5 +1,6 @@
 package net.minecraft.network;
 
+import cn.pfcraft.server.network.TrafficShaper;
 import com.google.common.collect.Lists;
 import com.google.common.util.concurrent.ThreadFactoryBuilder;
 import io.netty.bootstrap.ServerBootstrap;
@@ -108,6 +109,10 @@ public class NetworkSystem
                     }
 
                     p_initChannel_1_.pipeline().addLast("timeout", new ReadTimeoutHandler(net.minecraftforge.fml.common.network.internal.FMLNetworkHandler.READ_TIMEOUT)).addLast("legacy_query", new LegacyPingHandler(NetworkSystem.this)).addLast("splitter", new NettyVarint21FrameDecoder()).addLast("decoder", new NettyPacketDecoder(EnumPacketDirection.SERVERBOUND)).addLast("prepender", new NettyVarint21FrameEncoder()).addLast("encoder", new NettyPacketEncoder(EnumPacketDirection.CLIENTBOUND));
+                    // PFServer start
+                    TrafficShaper trafficshaper = new TrafficShaper();
+                    p_initChannel_1_.pipeline().addFirst("traffic_counter", trafficshaper.getCounter()).addLast("shaper", trafficshaper);
+                    // PFServer end
                     NetworkManager networkmanager = new NetworkManager(EnumPacketDirection.SERVERBOUND);
                     NetworkSystem.this.networkManagers.add(networkmanager);
                     p_initChannel_1_.pipeline().addLast("packet_handler", networkmanager);
@@ -157,6 +162,24 @@ public class NetworkSystem
         }
     }
 
+    // PFServer start - play packets queued on connections
+    public void processInboundPackets()
+    {
+        synchronized (this.networkManagers)
+        {
+            for (int i = 0; i < this.networkManagers.size(); ++i)
+            {
+                NetworkManager networkmanager = this.networkManagers.get(i);
+
+                if (!networkmanager.hasNoChannel() && networkmanager.isChannelOpen())
+                {
+                    networkmanager.processInboundQueue();
+                }
+            }
+        }
+    }
+    // PFServer end
+
     public void networkTick()
     {
         synchronized (this.networkManagers)
@@ -220,6 +243,16 @@ public class NetworkSystem
                     }
                 }
             }
+
+            // PFServer start - one flush per connection for everything written while ticking them all
+            if (cn.pfcraft.server.PFSConfig.batchOutboundPackets)
+            {
+                for (NetworkManager networkmanager1 : this.networkManagers)
+                {
+                    networkmanager1.flushOutbound();
+                }
+            }
+            // PFServer end
         }
     }
 
@@ -8,6 +8,13 @@ public class PacketThreadUtil
     {
         if (!scheduler.isCallingFromMinecraftThread())
         {
+            // PFServer start - nobody waits for the result, queue play packets on their connection
+            if (processor instanceof NetHandlerPlayServer && ((NetHandlerPlayServer) processor).netManager.enqueueInbound(packetIn, processor))
+            {
+                throw ThreadQuickExitException.INSTANCE;
+            }
+            // PFServer end
+
             scheduler.addScheduledTask(new Runnable()
             {
                 public void run()
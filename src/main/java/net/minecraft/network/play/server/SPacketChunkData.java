@@ -1,5 +1,7 @@
 package net.minecraft.network.play.server;
 
+import cn.pfcraft.server.network.SharedPacket;
+import cn.pfcraft.server.network.SharedPacketEncoding;
 import com.google.common.collect.Lists;
 import io.netty.buffer.ByteBuf;
 import io.netty.buffer.Unpooled;
@@ -14,11 +16,12 @@ import net.minecraft.world.chunk.storage.ExtendedBlockStorage;
 import net.minecraftforge.fml.relauncher.Side;
 import net.minecraftforge.fml.relauncher.SideOnly;
 
+import javax.annotation.Nullable;
 import java.io.IOException;
 import java.util.List;
 import java.util.Map.Entry;
 
-public class SPacketChunkData implements Packet<INetHandlerPlayClient>
+public class SPacketChunkData implements Packet<INetHandlerPlayClient>, SharedPacket // PFServer
 {
     private int chunkX;
     private int chunkZ;
@@ -26,6 +29,7 @@ public class SPacketChunkData implements Packet<INetHandlerPlayClient>
     private byte[] buffer;
     private List<NBTTagCompound> tileEntityTags;
     private boolean fullChunk;
+    private SharedPacketEncoding sharedEncoding; // PFServer - sent to several players, serialized and compressed once instead of by every connection
 
     public SPacketChunkData()
     {
@@ -97,6 +101,22 @@ public class SPacketChunkData implements Packet<INetHandlerPlayClient>
         }
     }
 
+    // PFServer start
+    public void setShared()
+    {
+        if (this.sharedEncoding == null)
+        {
+            this.sharedEncoding = new SharedPacketEncoding(this);
+        }
+    }
+
+    @Nullable
+    public SharedPacketEncoding getSharedEncoding()
+    {
+        return this.sharedEncoding;
+    }
+    // PFServer end
+
     public void processPacket(INetHandlerPlayClient handler)
     {
         handler.handleChunkData(this);
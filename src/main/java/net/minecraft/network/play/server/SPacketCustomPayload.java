@@ -1,5 +1,7 @@
 package net.minecraft.network.play.server;
 
+import cn.pfcraft.server.network.SharedPacket;
+import cn.pfcraft.server.network.SharedPacketEncoding;
 import io.netty.buffer.ByteBuf;
 import net.minecraft.network.Packet;
 import net.minecraft.network.PacketBuffer;
@@ -7,12 +9,14 @@ import net.minecraft.network.play.INetHandlerPlayClient;
 import net.minecraftforge.fml.relauncher.Side;
 import net.minecraftforge.fml.relauncher.SideOnly;
 
+import javax.annotation.Nullable;
 import java.io.IOException;
 
-public class SPacketCustomPayload implements Packet<INetHandlerPlayClient>
+public class SPacketCustomPayload implements Packet<INetHandlerPlayClient>, SharedPacket // PFServer
 {
     private String channel;
     private PacketBuffer data;
+    private SharedPacketEncoding sharedEncoding; // PFServer
 
     public SPacketCustomPayload()
     {
@@ -54,6 +58,22 @@ public class SPacketCustomPayload implements Packet<INetHandlerPlayClient>
         }
     }
 
+    // PFServer start - large mod payloads broadcast to every player
+    public void setShared()
+    {
+        if (this.sharedEncoding == null)
+        {
+            this.sharedEncoding = new SharedPacketEncoding(this);
+        }
+    }
+
+    @Nullable
+    public SharedPacketEncoding getSharedEncoding()
+    {
+        return this.sharedEncoding;
+    }
+    // PFServer end
+
     public void processPacket(INetHandlerPlayClient handler)
     {
         handler.handleCustomPayload(this);
@@ -1,5 +1,7 @@
 package net.minecraft.network.play.server;
 
+import cn.pfcraft.server.network.SharedPacket;
+import cn.pfcraft.server.network.SharedPacketEncoding;
 import net.minecraft.network.Packet;
 import net.minecraft.network.PacketBuffer;
 import net.minecraft.network.datasync.EntityDataManager;
@@ -7,13 +9,15 @@ import net.minecraft.network.play.INetHandlerPlayClient;
 import net.minecraftforge.fml.relauncher.Side;
 import net.minecraftforge.fml.relauncher.SideOnly;
 
+import javax.annotation.Nullable;
 import java.io.IOException;
 import java.util.List;
 
-public class SPacketEntityMetadata implements Packet<INetHandlerPlayClient>
+public class SPacketEntityMetadata implements Packet<INetHandlerPlayClient>, SharedPacket // PFServer
 {
     private int entityId;
     private List < EntityDataManager.DataEntry<? >> dataManagerEntries;
+    private SharedPacketEncoding sharedEncoding; // PFServer
 
     public SPacketEntityMetadata()
     {
@@ -46,6 +50,22 @@ public class SPacketEntityMetadata implements Packet<INetHandlerPlayClient>
         EntityDataManager.writeEntries(this.dataManagerEntries, buf);
     }
 
+    // PFServer start - sent to every player tracking the entity, serialized and compressed once
+    public void setShared()
+    {
+        if (this.sharedEncoding == null)
+        {
+            this.sharedEncoding = new SharedPacketEncoding(this);
+        }
+    }
+
+    @Nullable
+    public SharedPacketEncoding getSharedEncoding()
+    {
+        return this.sharedEncoding;
+    }
+    // PFServer end
+
     public void processPacket(INetHandlerPlayClient handler)
     {
         handler.handleEntityMetadata(this);
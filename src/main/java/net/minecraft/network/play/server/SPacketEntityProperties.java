@@ -1,5 +1,7 @@
 package net.minecraft.network.play.server;
 
+import cn.pfcraft.server.network.SharedPacket;
+import cn.pfcraft.server.network.SharedPacketEncoding;
 import com.google.common.collect.Lists;
 import net.minecraft.entity.ai.attributes.AttributeModifier;
 import net.minecraft.entity.ai.attributes.IAttributeInstance;
@@ -9,15 +11,17 @@ import net.minecraft.network.play.INetHandlerPlayClient;
 import net.minecraftforge.fml.relauncher.Side;
 import net.minecraftforge.fml.relauncher.SideOnly;
 
+import javax.annotation.Nullable;
 import java.io.IOException;
 import java.util.Collection;
 import java.util.List;
 import java.util.UUID;
 
-public class SPacketEntityProperties implements Packet<INetHandlerPlayClient>
+public class SPacketEntityProperties implements Packet<INetHandlerPlayClient>, SharedPacket // PFServer
 {
     private int entityId;
     private final List<Snapshot> snapshots = Lists.<Snapshot>newArrayList();
+    private SharedPacketEncoding sharedEncoding; // PFServer
 
     public SPacketEntityProperties()
     {
@@ -75,6 +79,22 @@ public class SPacketEntityProperties implements Packet<INetHandlerPlayClient>
         }
     }
 
+    // PFServer start - sent to every player tracking the entity, serialized and compressed once
+    public void setShared()
+    {
+        if (this.sharedEncoding == null)
+        {
+            this.sharedEncoding = new SharedPacketEncoding(this);
+        }
+    }
+
+    @Nullable
+    public SharedPacketEncoding getSharedEncoding()
+    {
+        return this.sharedEncoding;
+    }
+    // PFServer end
+
     public void processPacket(INetHandlerPlayClient handler)
     {
         handler.handleEntityProperties(this);
@@ -41,6 +41,25 @@ public class SPacketUpdateTileEntity implements Packet<INetHandlerPlayClient>
         buf.writeCompoundTag(this.nbt);
     }
 
+    // PFServer start
+    /**
+     * The position, on the server too where {@link #getPos} doesn't exist.
+     */
+    public BlockPos getUpdatePos()
+    {
+        return this.blockPos;
+    }
+
+    /**
+     * Whether both update the same tile entity with equal data. A tag shared by both can't be compared, as it may have
+     * been changed since the first was sent.
+     */
+    public boolean isSameUpdate(SPacketUpdateTileEntity other)
+    {
+        return this.tileEntityType == other.tileEntityType && this.blockPos.equals(other.blockPos) && this.nbt != other.nbt && this.nbt != null && this.nbt.equals(other.nbt);
+    }
+    // PFServer end
+
     public void processPacket(INetHandlerPlayClient handler)
     {
         handler.handleUpdateTileEntity(this);
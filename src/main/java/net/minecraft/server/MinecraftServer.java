@@ -1,6 +1,7 @@
 package net.minecraft.server;
 
 import cn.pfcraft.server.BukkitInjector;
+import cn.pfcraft.server.PFSConfig;
 import cn.pfcraft.server.utils.CachedSizeConcurrentLinkedQueue;
 import com.google.common.collect.Lists;
 import com.google.common.collect.Sets;
@@ -447,6 +448,12 @@ public abstract class MinecraftServer implements ICommandSender, Runnable, IThre
     }
 
     public void saveAllWorlds(boolean isSilent)
+    {
+        this.saveAllWorlds(isSilent, false); // PFServer
+    }
+
+    // PFServer - see WorldServer#saveAllChunks
+    public void saveAllWorlds(boolean isSilent, boolean incremental)
     {
         for (WorldServer worldserver : this.worldServerList)
         {
@@ -459,7 +466,7 @@ public abstract class MinecraftServer implements ICommandSender, Runnable, IThre
 
                 try
                 {
-                    worldserver.saveAllChunks(true, (IProgressUpdate)null);
+                    worldserver.saveAllChunks(true, (IProgressUpdate)null, incremental); // PFServer
                 }
                 catch (MinecraftException minecraftexception)
                 {
@@ -469,6 +476,28 @@ public abstract class MinecraftServer implements ICommandSender, Runnable, IThre
         }
     }
 
+    // PFServer start
+    private void saveChunksIncrementally()
+    {
+        int chunks = PFSConfig.incrementalAutosaveChunks > 0 ? PFSConfig.incrementalAutosaveChunks : Integer.MAX_VALUE;
+        long deadline = System.nanoTime() + (PFSConfig.incrementalAutosaveMillis > 0 ? (long)(PFSConfig.incrementalAutosaveMillis * 1000000L) : Long.MAX_VALUE / 2);
+        int size = this.worldServerList.size();
+
+        // Start from another world every tick so none of them waits on the others
+        for (int i = 0; i < size && chunks > 0; ++i)
+        {
+            WorldServer worldserver = this.worldServerList.get((this.tickCounter + i) % size);
+
+            if (worldserver != null && worldserver.getChunkProvider().getIncrementalSaveBacklog() > 0)
+            {
+                worldserver.timings.incrementalSave.startTiming();
+                chunks -= worldserver.getChunkProvider().saveChunksIncrementally(chunks, deadline);
+                worldserver.timings.incrementalSave.stopTiming();
+            }
+        }
+    }
+    // PFServer end
+
     private boolean hasStopped = false;
     private final Object stopLock = new Object();
 
@@ -824,11 +853,20 @@ public abstract class MinecraftServer implements ICommandSender, Runnable, IThre
             SpigotTimings.worldSaveTimer.startTiming(); // Spigot
             this.profiler.startSection("save");
             this.playerList.saveAllPlayerData();
-            this.saveAllWorlds(true);
+            this.saveAllWorlds(true, PFSConfig.incrementalAutosave); // PFServer
             this.profiler.endSection();
             SpigotTimings.worldSaveTimer.stopTiming(); // Spigot
         }
 
+        // PFServer start - save what the autosave queued, a few chunks per tick
+        if (PFSConfig.incrementalAutosave)
+        {
+            this.profiler.startSection("incrementalSave");
+            this.saveChunksIncrementally();
+            this.profiler.endSection();
+        }
+        // PFServer end
+
         this.profiler.startSection("tallying");
         this.tickTimeArray[this.tickCounter % 100] = System.nanoTime() - i;
         this.profiler.endSection();
@@ -866,6 +904,7 @@ public abstract class MinecraftServer implements ICommandSender, Runnable, IThre
             Util.runTask(entry, MinecraftServer.LOGGER);
          }
         // Spigot end
+        this.getNetworkSystem().processInboundPackets(); // PFServer - after the tasks queued before them, as packets were tasks
 
         this.profiler.endStartSection("levels");
         // CraftBukkit start
@@ -892,6 +931,7 @@ public abstract class MinecraftServer implements ICommandSender, Runnable, IThre
         }
         SpigotTimings.timeUpdateTimer.stopTiming(); // Spigot
         net.minecraftforge.common.chunkio.ChunkIOExecutor.tick();
+        cn.pfcraft.server.chunkio.RegionPrefetcher.tick(worldServerList); // PFServer
 
         for (int x = 0; x < worldServerList.size(); x++)
         {
@@ -1,12 +1,17 @@
 package net.minecraft.server.management;
 
+import cn.pfcraft.server.PFSConfig;
+import cn.pfcraft.server.network.TrafficShaper;
 import com.google.common.base.Predicate;
 import com.google.common.collect.AbstractIterator;
 import com.google.common.collect.ComparisonChain;
 import com.google.common.collect.Lists;
 import com.google.common.collect.Sets;
+import it.unimi.dsi.fastutil.longs.AbstractLongComparator;
 import it.unimi.dsi.fastutil.longs.Long2ObjectMap;
 import it.unimi.dsi.fastutil.longs.Long2ObjectOpenHashMap;
+import it.unimi.dsi.fastutil.longs.LongArrays;
+import it.unimi.dsi.fastutil.longs.LongLinkedOpenHashSet;
 import net.minecraft.entity.player.EntityPlayer;
 import net.minecraft.entity.player.EntityPlayerMP;
 import net.minecraft.util.math.BlockPos;
@@ -46,6 +51,10 @@ public class PlayerChunkMap
     private long previousTotalWorldTime;
     private boolean sortMissingChunks = true;
     private boolean sortSendToPlayers = true;
+    // PFServer start
+    private final Queue<CachedChunkPacket> chunkPacketCache = new ArrayDeque<CachedChunkPacket>();
+    private final Map<EntityPlayerMP, LongLinkedOpenHashSet> chunkSendQueues = new HashMap<EntityPlayerMP, LongLinkedOpenHashSet>();
+    // PFServer end
 
     public PlayerChunkMap(WorldServer serverWorld)
     {
@@ -117,6 +126,13 @@ public class PlayerChunkMap
             }
         }
 
+        // PFServer start
+        while (!this.chunkPacketCache.isEmpty() && i - this.chunkPacketCache.peek().cachedTime >= PFSConfig.chunkPacketCacheTicks)
+        {
+            this.chunkPacketCache.poll().entry.expireChunkPacket(i);
+        }
+        // PFServer end
+
         if (!this.dirtyEntries.isEmpty())
         {
             for (PlayerChunkMapEntry playerchunkmapentry2 : this.dirtyEntries)
@@ -127,6 +143,8 @@ public class PlayerChunkMap
             this.dirtyEntries.clear();
         }
 
+        this.sendQueuedChunks(); // PFServer
+
         if (this.sortMissingChunks && i % 4L == 0L)
         {
             this.sortMissingChunks = false;
@@ -297,8 +315,14 @@ public class PlayerChunkMap
         }
 
         Collections.sort(chunkList, new ChunkCoordComparator(player));
+        // PFServer start
+        if (PFSConfig.adaptiveChunkSending && player.connection != null && TrafficShaper.get(player.connection.netManager) != null)
+        {
+            this.chunkSendQueues.put(player, new LongLinkedOpenHashSet());
+        }
+        // PFServer end
         for (ChunkPos pair : chunkList) {
-            this.getOrCreateEntry(pair.x, pair.z).addPlayer(player);
+            this.addPlayerToChunk(player, pair.x, pair.z); // PFServer
         }
 
         this.players.add(player);
@@ -314,15 +338,11 @@ public class PlayerChunkMap
         {
             for (int l = j - this.playerViewRadius; l <= j + this.playerViewRadius; ++l)
             {
-                PlayerChunkMapEntry playerchunkmapentry = this.getEntry(k, l);
-
-                if (playerchunkmapentry != null)
-                {
-                    playerchunkmapentry.removePlayer(player);
-                }
+                this.removePlayerFromChunk(player, k, l); // PFServer
             }
         }
 
+        this.chunkSendQueues.remove(player); // PFServer
         this.players.remove(player);
         this.markSortPending();
     }
@@ -374,12 +394,7 @@ public class PlayerChunkMap
 
                         if (!this.overlaps(l1 - j1, i2 - k1, i, j, i1))
                         {
-                            PlayerChunkMapEntry playerchunkmapentry = this.getEntry(l1 - j1, i2 - k1);
-
-                            if (playerchunkmapentry != null)
-                            {
-                                playerchunkmapentry.removePlayer(player);
-                            }
+                            this.removePlayerFromChunk(player, l1 - j1, i2 - k1); // PFServer
                         }
                     }
                 }
@@ -390,7 +405,7 @@ public class PlayerChunkMap
                 // CraftBukkit start - send nearest chunks first
                 Collections.sort(chunksToLoad, new ChunkCoordComparator(player));
                 for (ChunkPos pair : chunksToLoad) {
-                    this.getOrCreateEntry(pair.x, pair.z).addPlayer(player);
+                    this.addPlayerToChunk(player, pair.x, pair.z); // PFServer
                 }
                 // CraftBukkit end
             }
@@ -403,6 +418,111 @@ public class PlayerChunkMap
         return playerchunkmapentry != null && playerchunkmapentry.containsPlayer(player) && playerchunkmapentry.isSentToPlayers();
     }
 
+    // PFServer start
+    public int getViewRadius()
+    {
+        return this.playerViewRadius;
+    }
+
+    /**
+     * Starts the player watching the chunk, or queues it while the player's connection has chunks in flight.
+     */
+    private void addPlayerToChunk(EntityPlayerMP player, int chunkX, int chunkZ)
+    {
+        LongLinkedOpenHashSet longlinkedopenhashset = this.chunkSendQueues.get(player);
+
+        if (longlinkedopenhashset != null)
+        {
+            longlinkedopenhashset.add(ChunkPos.asLong(chunkX, chunkZ));
+        }
+        else
+        {
+            this.getOrCreateEntry(chunkX, chunkZ).addPlayer(player);
+        }
+    }
+
+    private void removePlayerFromChunk(EntityPlayerMP player, int chunkX, int chunkZ)
+    {
+        LongLinkedOpenHashSet longlinkedopenhashset = this.chunkSendQueues.get(player);
+
+        if (longlinkedopenhashset == null || !longlinkedopenhashset.remove(ChunkPos.asLong(chunkX, chunkZ)))
+        {
+            PlayerChunkMapEntry playerchunkmapentry = this.getEntry(chunkX, chunkZ);
+
+            if (playerchunkmapentry != null)
+            {
+                playerchunkmapentry.removePlayer(player);
+            }
+        }
+    }
+
+    /**
+     * Starts players watching the chunks queued for them, as many as their connection can take this tick, nearest to
+     * the player first. Chunks only start loading once dequeued.
+     */
+    private void sendQueuedChunks()
+    {
+        if (this.chunkSendQueues.isEmpty())
+        {
+            return;
+        }
+
+        // Watch events may move players to another map
+        for (EntityPlayerMP entityplayermp : Lists.newArrayList(this.chunkSendQueues.keySet()))
+        {
+            LongLinkedOpenHashSet longlinkedopenhashset = this.chunkSendQueues.get(entityplayermp);
+
+            if (longlinkedopenhashset == null || longlinkedopenhashset.isEmpty())
+            {
+                continue;
+            }
+
+            TrafficShaper trafficshaper = PFSConfig.adaptiveChunkSending ? TrafficShaper.get(entityplayermp.connection.netManager) : null;
+            int i = trafficshaper == null ? longlinkedopenhashset.size() : trafficshaper.getChunkAllowance(entityplayermp.ping);
+
+            if (i <= 0)
+            {
+                continue;
+            }
+
+            // Queued in the order chunks came into view, sent nearest to where the player is now first
+            final int k = MathHelper.floor(entityplayermp.posX) >> 4;
+            final int l = MathHelper.floor(entityplayermp.posZ) >> 4;
+            long[] along = longlinkedopenhashset.toLongArray();
+            LongArrays.quickSort(along, new AbstractLongComparator()
+            {
+                public int compare(long p_compare_1_, long p_compare_2_)
+                {
+                    return Long.compare(PlayerChunkMap.distanceSq(p_compare_1_, k, l), PlayerChunkMap.distanceSq(p_compare_2_, k, l));
+                }
+            });
+
+            for (int i1 = 0; i1 < i && i1 < along.length; ++i1)
+            {
+                long j = along[i1];
+                longlinkedopenhashset.remove(j);
+                this.getOrCreateEntry((int)j, (int)(j >> 32)).addPlayer(entityplayermp);
+            }
+        }
+    }
+
+    private static long distanceSq(long chunk, int chunkX, int chunkZ)
+    {
+        long i = (long)((int)chunk - chunkX);
+        long j = (long)((int)(chunk >> 32) - chunkZ);
+        return i * i + j * j;
+    }
+
+    /**
+     * Chunks in view of the player it hasn't started watching yet.
+     */
+    public int getQueuedChunks(EntityPlayerMP player)
+    {
+        LongLinkedOpenHashSet longlinkedopenhashset = this.chunkSendQueues.get(player);
+        return longlinkedopenhashset == null ? 0 : longlinkedopenhashset.size();
+    }
+    // PFServer end
+
     public void setPlayerViewRadius(int radius)
     {
         radius = MathHelper.clamp(radius, 3, 32);
@@ -422,12 +542,15 @@ public class PlayerChunkMap
                     {
                         for (int k1 = k - radius; k1 <= k + radius; ++k1)
                         {
-                            PlayerChunkMapEntry playerchunkmapentry = this.getOrCreateEntry(j1, k1);
+                            // PFServer start
+                            PlayerChunkMapEntry playerchunkmapentry = this.getEntry(j1, k1);
+                            LongLinkedOpenHashSet longlinkedopenhashset = this.chunkSendQueues.get(entityplayermp);
 
-                            if (!playerchunkmapentry.containsPlayer(entityplayermp))
+                            if ((playerchunkmapentry == null || !playerchunkmapentry.containsPlayer(entityplayermp)) && (longlinkedopenhashset == null || !longlinkedopenhashset.contains(ChunkPos.asLong(j1, k1))))
                             {
-                                playerchunkmapentry.addPlayer(entityplayermp);
+                                this.addPlayerToChunk(entityplayermp, j1, k1);
                             }
+                            // PFServer end
                         }
                     }
                 }
@@ -439,7 +562,7 @@ public class PlayerChunkMap
                         {
                             if (!this.overlaps(l, i1, j, k, radius))
                             {
-                                this.getOrCreateEntry(l, i1).removePlayer(entityplayermp);
+                                this.removePlayerFromChunk(entityplayermp, l, i1); // PFServer
                             }
                         }
                     }
@@ -472,6 +595,25 @@ public class PlayerChunkMap
         this.dirtyEntries.add(entry);
     }
 
+    // PFServer start
+    void chunkPacketCached(PlayerChunkMapEntry entry)
+    {
+        this.chunkPacketCache.add(new CachedChunkPacket(entry, this.world.getTotalWorldTime()));
+    }
+
+    private static class CachedChunkPacket
+    {
+        private final PlayerChunkMapEntry entry;
+        private final long cachedTime;
+
+        private CachedChunkPacket(PlayerChunkMapEntry entry, long cachedTime)
+        {
+            this.entry = entry;
+            this.cachedTime = cachedTime;
+        }
+    }
+    // PFServer end
+
     public void removeEntry(PlayerChunkMapEntry entry)
     {
         ChunkPos chunkpos = entry.getPos();
@@ -1,8 +1,12 @@
 package net.minecraft.server.management;
 
+import cn.pfcraft.server.PFSConfig;
+import cn.pfcraft.server.network.ChunkUpdateStats;
 import com.google.common.base.Predicate;
 import com.google.common.collect.Iterables;
 import com.google.common.collect.Lists;
+import it.unimi.dsi.fastutil.shorts.Short2ObjectOpenHashMap;
+import it.unimi.dsi.fastutil.shorts.ShortOpenHashSet;
 import net.minecraft.entity.player.EntityPlayerMP;
 import net.minecraft.network.Packet;
 import net.minecraft.network.play.server.*;
@@ -10,6 +14,7 @@ import net.minecraft.tileentity.TileEntity;
 import net.minecraft.util.math.BlockPos;
 import net.minecraft.util.math.ChunkPos;
 import net.minecraft.world.chunk.Chunk;
+import net.minecraft.world.chunk.storage.ExtendedBlockStorage;
 import org.apache.logging.log4j.LogManager;
 import org.apache.logging.log4j.Logger;
 
@@ -38,6 +43,16 @@ public class PlayerChunkMapEntry
         }
     };
     private boolean loading = true;
+    // PFServer start - full chunk packet shared by the players starting to watch the chunk until its blocks, light or tile entities change
+    private SPacketChunkData chunkPacket;
+    private long chunkPacketTime;
+    private int chunkPacketVersion;
+    // PFServer end
+    // PFServer start - changed positions once there are too many for a linear search, and the tile entity updates last
+    // sent to the players so unchanged ones aren't sent again
+    private ShortOpenHashSet changedSet;
+    private Short2ObjectOpenHashMap<SentTileEntity> sentTileEntities;
+    // PFServer end
 
     public PlayerChunkMapEntry(PlayerChunkMap mapIn, int chunkX, int chunkZ)
     {
@@ -149,9 +164,10 @@ public class PlayerChunkMapEntry
         {
             this.changes = 0;
             this.changedSectionFilter = 0;
+            this.changedSet = null; // PFServer
             this.sentToPlayers = true;
             if (this.players.isEmpty()) return true; // Forge: fix MC-120780
-            Packet<?> packet = new SPacketChunkData(this.chunk, 65535);
+            Packet<?> packet = this.getChunkPacket(); // PFServer
 
             for (EntityPlayerMP entityplayermp : this.players)
             {
@@ -169,11 +185,47 @@ public class PlayerChunkMapEntry
     {
         if (this.sentToPlayers)
         {
-            player.connection.sendPacket(new SPacketChunkData(this.chunk, 65535));
+            player.connection.sendPacket(this.getChunkPacket()); // PFServer
             this.playerChunkMap.getWorldServer().getEntityTracker().sendLeashedEntitiesInChunk(player, this.chunk);
         }
     }
 
+    // PFServer start
+    private SPacketChunkData getChunkPacket()
+    {
+        long i = this.playerChunkMap.getWorldServer().getTotalWorldTime();
+
+        if (this.chunkPacket != null && i - this.chunkPacketTime < PFSConfig.chunkPacketCacheTicks && this.chunkPacketVersion == this.chunk.packetDataVersion)
+        {
+            return this.chunkPacket;
+        }
+
+        SPacketChunkData spacketchunkdata = new SPacketChunkData(this.chunk, 65535);
+        spacketchunkdata.setShared();
+
+        if (PFSConfig.chunkPacketCacheTicks > 0)
+        {
+            this.chunkPacket = spacketchunkdata;
+            this.chunkPacketTime = i;
+            this.chunkPacketVersion = this.chunk.packetDataVersion;
+            this.playerChunkMap.chunkPacketCached(this);
+        }
+
+        return spacketchunkdata;
+    }
+
+    /**
+     * Drops the shared chunk packet once it is too old, so it doesn't outlive the tick it was built for by long.
+     */
+    void expireChunkPacket(long worldTime)
+    {
+        if (this.chunkPacket != null && worldTime - this.chunkPacketTime >= PFSConfig.chunkPacketCacheTicks)
+        {
+            this.chunkPacket = null;
+        }
+    }
+    // PFServer end
+
     public void updateChunkInhabitedTime()
     {
         long i = this.playerChunkMap.getWorldServer().getTotalWorldTime();
@@ -188,6 +240,8 @@ public class PlayerChunkMapEntry
 
     public void blockChanged(int x, int y, int z)
     {
+        this.chunkPacket = null; // PFServer
+
         if (this.sentToPlayers)
         {
             if (this.changes == 0)
@@ -201,6 +255,17 @@ public class PlayerChunkMapEntry
             {
                 short short1 = (short)(x << 12 | z << 8 | y);
 
+                // PFServer start - large edits change thousands of blocks per chunk, don't search them all every time
+                if (this.changedSet != null)
+                {
+                    if (!this.changedSet.add(short1))
+                    {
+                        return;
+                    }
+                }
+                else
+                {
+                // PFServer end
                 for (int i = 0; i < this.changes; ++i)
                 {
                     if (this.changedBlocks[i] == short1)
@@ -208,6 +273,14 @@ public class PlayerChunkMapEntry
                         return;
                     }
                 }
+                // PFServer start
+                if (this.changes >= 64)
+                {
+                    this.changedSet = new ShortOpenHashSet(this.changedBlocks, 0, this.changes);
+                    this.changedSet.add(short1);
+                }
+                }
+                // PFServer end
                 if (this.changes == this.changedBlocks.length)
                     this.changedBlocks = java.util.Arrays.copyOf(this.changedBlocks, this.changedBlocks.length << 1);
                 this.changedBlocks[this.changes++] = short1;
@@ -246,10 +319,26 @@ public class PlayerChunkMapEntry
                     {
                         this.sendBlockEntity(this.playerChunkMap.getWorldServer().getTileEntity(blockpos));
                     }
+                    // PFServer start
+                    else if (this.sentTileEntities != null)
+                    {
+                        this.sentTileEntities.remove(this.changedBlocks[0]);
+                    }
+                    // PFServer end
+                }
+                // PFServer start
+                else if (PFSConfig.sectionDeltaUpdates)
+                {
+                    this.sendSectionDeltas();
                 }
+                // PFServer end
                 else if (this.changes >= net.minecraftforge.common.ForgeModContainer.clumpingThreshold)
                 {
-                    this.sendPacket(new SPacketChunkData(this.chunk, this.changedSectionFilter));
+                    // PFServer start - serialized and compressed once for all of the players
+                    SPacketChunkData spacketchunkdata = new SPacketChunkData(this.chunk, this.changedSectionFilter);
+                    spacketchunkdata.setShared();
+                    this.sendPacket(spacketchunkdata);
+                    // PFServer end
                     //TODO: FDix Mojang's fuckup to modded by combining all TE data into the chunk data packet... seriously... packet size explosion!
                 }
                 else
@@ -274,9 +363,158 @@ public class PlayerChunkMapEntry
 
                 this.changes = 0;
                 this.changedSectionFilter = 0;
+                this.changedSet = null; // PFServer
+            }
+        }
+    }
+
+    // PFServer start
+    // Estimated bytes of a block in a multi block change and of a tile entity tag
+    private static final int BLOCK_RECORD_BYTES = 5;
+    private static final int TILE_ENTITY_BYTES = 64;
+
+    /**
+     * Sends the blocks changed in each section as a list, or the whole section if that is estimated to be smaller. If
+     * all 16 sections are resent the chunk packet is a full one.
+     */
+    private void sendSectionDeltas()
+    {
+        int[] aint = new int[16];
+
+        for (int i = 0; i < this.changes; ++i)
+        {
+            ++aint[(this.changedBlocks[i] & 255) >> 4];
+        }
+
+        ExtendedBlockStorage[] aextendedblockstorage = this.chunk.getBlockStorageArray();
+        int j = this.playerChunkMap.getWorldServer().provider.hasSkyLight() ? 4096 : 2048;
+        boolean flag = this.changes >= net.minecraftforge.common.ForgeModContainer.clumpingThreshold;
+        int[] aint1 = null;
+        int k = 0;
+        long l = 0L;
+        long i1 = 0L;
+
+        for (int j1 = 0; j1 < 16; ++j1)
+        {
+            if (aint[j1] == 0)
+            {
+                continue;
+            }
+
+            ExtendedBlockStorage extendedblockstorage = aextendedblockstorage[j1];
+            int k1 = aint[j1] * BLOCK_RECORD_BYTES;
+
+            // A section without storage isn't part of chunk packets, its changes can only be sent as a list
+            if (extendedblockstorage == Chunk.NULL_BLOCK_STORAGE)
+            {
+                l += k1;
+                i1 += k1;
+                continue;
+            }
+
+            int l1 = extendedblockstorage.getData().getSerializedSize() + j;
+            int i2 = l1;
+
+            if (k1 > i2)
+            {
+                if (aint1 == null)
+                {
+                    aint1 = this.countTileEntities();
+                }
+
+                i2 += aint1[j1] * TILE_ENTITY_BYTES;
+            }
+
+            if (k1 > i2)
+            {
+                k |= 1 << j1;
+                l += l1;
+            }
+            else
+            {
+                l += k1;
+            }
+
+            i1 += flag ? l1 : k1;
+        }
+
+        if (k != 0)
+        {
+            SPacketChunkData spacketchunkdata = new SPacketChunkData(this.chunk, k);
+            spacketchunkdata.setShared();
+            this.sendPacket(spacketchunkdata);
+            ChunkUpdateStats.recordSectionResends(Integer.bitCount(k));
+
+            if (this.sentTileEntities != null)
+            {
+                int j2 = k;
+                this.sentTileEntities.short2ObjectEntrySet().removeIf(entry -> (j2 & 1 << ((entry.getShortKey() & 255) >> 4)) != 0);
+            }
+        }
+
+        short[] ashort = new short[this.changes];
+        int k2 = 0;
+
+        for (int l2 = 0; l2 < this.changes; ++l2)
+        {
+            if ((k & 1 << ((this.changedBlocks[l2] & 255) >> 4)) == 0)
+            {
+                ashort[k2++] = this.changedBlocks[l2];
             }
         }
+
+        if (k2 > 0)
+        {
+            if (k2 == 1)
+            {
+                this.sendPacket(new SPacketBlockChange(this.playerChunkMap.getWorldServer(), this.getBlockPos(ashort[0])));
+            }
+            else
+            {
+                this.sendPacket(new SPacketMultiBlockChange(k2, ashort, this.chunk));
+            }
+
+            ChunkUpdateStats.recordBlockList();
+
+            for (int i3 = 0; i3 < k2; ++i3)
+            {
+                BlockPos blockpos = this.getBlockPos(ashort[i3]);
+                net.minecraft.block.state.IBlockState state = this.playerChunkMap.getWorldServer().getBlockState(blockpos);
+
+                if (state.getBlock().hasTileEntity(state))
+                {
+                    this.sendBlockEntity(this.playerChunkMap.getWorldServer().getTileEntity(blockpos));
+                }
+                else if (this.sentTileEntities != null)
+                {
+                    this.sentTileEntities.remove(ashort[i3]);
+                }
+            }
+        }
+
+        if (i1 > l)
+        {
+            ChunkUpdateStats.recordBytesSaved((i1 - l) * this.players.size());
+        }
+    }
+
+    private BlockPos getBlockPos(short offset)
+    {
+        return new BlockPos((offset >> 12 & 15) + this.pos.x * 16, offset & 255, (offset >> 8 & 15) + this.pos.z * 16);
+    }
+
+    private int[] countTileEntities()
+    {
+        int[] aint = new int[16];
+
+        for (BlockPos blockpos : this.chunk.getTileEntityMap().keySet())
+        {
+            ++aint[blockpos.getY() >> 4 & 15];
+        }
+
+        return aint;
     }
+    // PFServer end
 
     private void sendBlockEntity(@Nullable TileEntity be)
     {
@@ -286,11 +524,82 @@ public class PlayerChunkMapEntry
 
             if (spacketupdatetileentity != null)
             {
+                // PFServer start - the players already have this update
+                if (PFSConfig.sectionDeltaUpdates && this.isTileEntitySent(be, spacketupdatetileentity))
+                {
+                    return;
+                }
+                // PFServer end
                 this.sendPacket(spacketupdatetileentity);
             }
         }
     }
 
+    // PFServer start
+    /**
+     * Called for every tile entity update sent to a player. One this entry didn't send, from a mod or a plugin, may
+     * have given the player other data than the entry last sent, which then has to be sent again when it comes up.
+     */
+    public void tileEntityUpdateSent(SPacketUpdateTileEntity packet)
+    {
+        if (this.sentTileEntities != null)
+        {
+            short short1 = getOffset(packet.getUpdatePos());
+            SentTileEntity sent = this.sentTileEntities.get(short1);
+
+            if (sent != null && sent.packet != packet)
+            {
+                this.sentTileEntities.remove(short1);
+            }
+        }
+    }
+
+    private static short getOffset(BlockPos pos)
+    {
+        return (short)((pos.getX() & 15) << 12 | (pos.getZ() & 15) << 8 | pos.getY());
+    }
+
+    private boolean isTileEntitySent(TileEntity be, SPacketUpdateTileEntity packet)
+    {
+        short short1 = getOffset(be.getPos());
+
+        if (this.sentTileEntities == null)
+        {
+            this.sentTileEntities = new Short2ObjectOpenHashMap<SentTileEntity>();
+        }
+
+        SentTileEntity sent = this.sentTileEntities.get(short1);
+
+        if (sent != null && sent.tileEntity == be && sent.packet.isSameUpdate(packet))
+        {
+            if (sent.size < 0)
+            {
+                sent.size = ChunkUpdateStats.sizeOf(packet);
+            }
+
+            ChunkUpdateStats.recordSkippedTileEntity();
+            ChunkUpdateStats.recordBytesSaved((long)sent.size * this.players.size());
+            return true;
+        }
+
+        this.sentTileEntities.put(short1, new SentTileEntity(be, packet));
+        return false;
+    }
+
+    private static class SentTileEntity
+    {
+        private final TileEntity tileEntity;
+        private final SPacketUpdateTileEntity packet;
+        private int size = -1;
+
+        private SentTileEntity(TileEntity tileEntity, SPacketUpdateTileEntity packet)
+        {
+            this.tileEntity = tileEntity;
+            this.packet = packet;
+        }
+    }
+    // PFServer end
+
     public boolean containsPlayer(EntityPlayerMP player)
     {
         return this.players.contains(player);
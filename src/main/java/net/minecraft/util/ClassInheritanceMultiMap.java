@@ -134,6 +134,14 @@ public class ClassInheritanceMultiMap<T> extends AbstractSet<T>
         };
     }
 
+    // PFServer start
+    public int sizeByClass(Class<?> clazz)
+    {
+        List<T> list = this.map.get(this.initializeClassLookup(clazz));
+        return list == null ? 0 : list.size();
+    }
+    // PFServer end
+
     public Iterator<T> iterator()
     {
         return (Iterator<T>)(this.values.isEmpty() ? Collections.emptyIterator() : Iterators.unmodifiableIterator(this.values.iterator()));
@@ -2,6 +2,7 @@ package net.minecraft.world;
 
 import cn.pfcraft.server.PFSWorldConfig;
 import cn.pfcraft.server.PFServer;
+import cn.pfcraft.server.entity.CreatureCounts;
 import com.google.common.base.Function;
 import com.google.common.base.MoreObjects;
 import com.google.common.base.Predicate;
@@ -18,6 +19,7 @@ import net.minecraft.crash.ICrashReportDetail;
 import net.minecraft.entity.Entity;
 import net.minecraft.entity.EntityLiving;
 import net.minecraft.entity.EntityLivingBase;
+import net.minecraft.entity.EnumCreatureType;
 import net.minecraft.entity.item.EntityItem;
 import net.minecraft.entity.item.EntityXPOrb;
 import net.minecraft.entity.monster.EntityGhast;
@@ -84,6 +86,7 @@ public abstract class World implements IBlockAccess, net.minecraftforge.common.c
     private int seaLevel = 63;
     protected boolean scheduledUpdatesAreImmediate;
     public final List<Entity> loadedEntityList = Lists.<Entity>newArrayList();
+    public final CreatureCounts creatureCounts = new CreatureCounts(); // PFServer
     protected final List<Entity> unloadedEntityList = Lists.<Entity>newArrayList();
     public final List<TileEntity> loadedTileEntityList = Lists.<TileEntity>newArrayList();
     public final List<TileEntity> tickableTileEntities = Lists.<TileEntity>newArrayList();
@@ -144,6 +147,7 @@ public abstract class World implements IBlockAccess, net.minecraftforge.common.c
     private int tickPosition;
     public final org.spigotmc.SpigotWorldConfig spigotConfig; // Spigot
     public final cn.pfcraft.server.PFSWorldConfig pfserverConfig; // PFServer
+    public final cn.pfcraft.server.entity.DynamicActivation dynamicActivation = new cn.pfcraft.server.entity.DynamicActivation(this); // PFServer
     public final SpigotTimings.WorldTimingsHandler timings; // Spigot
 
     public static boolean haveWeSilencedAPhysicsCrash;
@@ -1454,6 +1458,7 @@ public abstract class World implements IBlockAccess, net.minecraftforge.common.c
         {
             this.eventListeners.get(i).onEntityAdded(entityIn);
         }
+        entityIn.worldCreatureMask = this.creatureCounts.add(entityIn, entityIn.worldCreatureMask); // PFServer
         entityIn.onAddedToWorld();
         entityIn.valid = true;
     }
@@ -1464,6 +1469,7 @@ public abstract class World implements IBlockAccess, net.minecraftforge.common.c
         {
             this.eventListeners.get(i).onEntityRemoved(entityIn);
         }
+        entityIn.worldCreatureMask = this.creatureCounts.remove(entityIn.worldCreatureMask); // PFServer
         entityIn.onRemovedFromWorld();
         entityIn.valid = false;
     }
@@ -1610,29 +1616,41 @@ public abstract class World implements IBlockAccess, net.minecraftforge.common.c
 
         if (entityIn != null)
         {
-            List<Entity> list1 = this.getEntitiesWithinAABBExcludingEntity(entityIn, aabb.grow(0.25D));
+            // PFServer start - reuse the list
+            List<Entity> list1 = cn.pfcraft.server.entity.EntityListPool.take();
 
-            for (int i = 0; i < list1.size(); ++i)
+            try
             {
-                Entity entity = list1.get(i);
+                this.getEntitiesInAABBexcluding(entityIn, aabb.grow(0.25D), list1, EntitySelectors.NOT_SPECTATING);
+                // PFServer end
 
-                if (!entityIn.isRidingSameEntity(entity))
+                for (int i = 0; i < list1.size(); ++i)
                 {
-                    AxisAlignedBB axisalignedbb = entity.getCollisionBoundingBox();
+                    Entity entity = list1.get(i);
 
-                    if (axisalignedbb != null && axisalignedbb.intersects(aabb))
+                    if (!entityIn.isRidingSameEntity(entity))
                     {
-                        list.add(axisalignedbb);
-                    }
+                        AxisAlignedBB axisalignedbb = entity.getCollisionBoundingBox();
 
-                    axisalignedbb = entityIn.getCollisionBox(entity);
+                        if (axisalignedbb != null && axisalignedbb.intersects(aabb))
+                        {
+                            list.add(axisalignedbb);
+                        }
 
-                    if (axisalignedbb != null && axisalignedbb.intersects(aabb))
-                    {
-                        list.add(axisalignedbb);
+                        axisalignedbb = entityIn.getCollisionBox(entity);
+
+                        if (axisalignedbb != null && axisalignedbb.intersects(aabb))
+                        {
+                            list.add(axisalignedbb);
+                        }
                     }
                 }
             }
+            finally
+            {
+                cn.pfcraft.server.entity.EntityListPool.release(list1);
+            }
+            // PFServer end
         }
         net.minecraftforge.common.MinecraftForge.EVENT_BUS.post(new net.minecraftforge.event.world.GetCollisionBoxesEvent(this, entityIn, aabb, list));
         return list;
@@ -2273,6 +2291,7 @@ public abstract class World implements IBlockAccess, net.minecraftforge.common.c
         if (forceUpdate && !org.spigotmc.ActivationRange.checkIfActive(entityIn)) {
             entityIn.ticksExisted++;
             entityIn.inactiveTick();
+            this.moveEntityInGrid(entityIn); // PFServer
             return;
         }
        // Spigot end
@@ -2346,6 +2365,12 @@ public abstract class World implements IBlockAccess, net.minecraftforge.common.c
                 this.getChunkFromChunkCoords(i3, k3).addEntity(entityIn);
             }
         }
+        // PFServer start
+        else
+        {
+            this.moveEntityInGrid(entityIn);
+        }
+        // PFServer end
 
         this.profiler.endSection();
 
@@ -2365,6 +2390,21 @@ public abstract class World implements IBlockAccess, net.minecraftforge.common.c
         }
     }
 
+    // PFServer start - move the entity between the cells of its section's grid
+    public void moveEntityInGrid(Entity entityIn)
+    {
+        if (entityIn.addedToChunk && entityIn.entityGridCell >= 0)
+        {
+            Chunk chunk = this.getChunkProvider().getLoadedChunk(entityIn.chunkCoordX, entityIn.chunkCoordZ);
+
+            if (chunk != null)
+            {
+                chunk.moveEntityInGrid(entityIn);
+            }
+        }
+    }
+    // PFServer end
+
     public boolean checkNoEntityCollision(AxisAlignedBB bb)
     {
         return this.checkNoEntityCollision(bb, (Entity)null);
@@ -3322,7 +3362,18 @@ public abstract class World implements IBlockAccess, net.minecraftforge.common.c
 
     public List<Entity> getEntitiesInAABBexcluding(@Nullable Entity entityIn, AxisAlignedBB boundingBox, @Nullable Predicate <? super Entity > predicate)
     {
+        // PFServer start - fill a new list
         List<Entity> list = Lists.<Entity>newArrayList();
+        this.getEntitiesInAABBexcluding(entityIn, boundingBox, list, predicate);
+        return list;
+    }
+
+    /**
+     * Adds the entities to a list the caller can reuse, such as one from {@link cn.pfcraft.server.entity.EntityListPool}.
+     */
+    public void getEntitiesInAABBexcluding(@Nullable Entity entityIn, AxisAlignedBB boundingBox, List<Entity> list, @Nullable Predicate <? super Entity > predicate)
+    {
+        // PFServer end
         int j2 = MathHelper.floor((boundingBox.minX - MAX_ENTITY_RADIUS) / 16.0D);
         int k2 = MathHelper.floor((boundingBox.maxX + MAX_ENTITY_RADIUS) / 16.0D);
         int l2 = MathHelper.floor((boundingBox.minZ - MAX_ENTITY_RADIUS) / 16.0D);
@@ -3338,8 +3389,6 @@ public abstract class World implements IBlockAccess, net.minecraftforge.common.c
                 }
             }
         }
-
-        return list;
     }
 
     public <T extends Entity> List<T> getEntities(Class <? extends T > entityType, Predicate <? super T > filter)
@@ -3379,11 +3428,22 @@ public abstract class World implements IBlockAccess, net.minecraftforge.common.c
 
     public <T extends Entity> List<T> getEntitiesWithinAABB(Class <? extends T > clazz, AxisAlignedBB aabb, @Nullable Predicate <? super T > filter)
     {
+        // PFServer start - fill a new list
+        List<T> list = Lists.<T>newArrayList();
+        this.getEntitiesWithinAABB(clazz, aabb, list, filter);
+        return list;
+    }
+
+    /**
+     * Adds the entities to a list the caller can reuse, such as one from {@link cn.pfcraft.server.entity.EntityListPool}.
+     */
+    public <T extends Entity> void getEntitiesWithinAABB(Class <? extends T > clazz, AxisAlignedBB aabb, List<T> list, @Nullable Predicate <? super T > filter)
+    {
+        // PFServer end
         int j2 = MathHelper.floor((aabb.minX - MAX_ENTITY_RADIUS) / 16.0D);
         int k2 = MathHelper.ceil((aabb.maxX + MAX_ENTITY_RADIUS) / 16.0D);
         int l2 = MathHelper.floor((aabb.minZ - MAX_ENTITY_RADIUS) / 16.0D);
         int i3 = MathHelper.ceil((aabb.maxZ + MAX_ENTITY_RADIUS) / 16.0D);
-        List<T> list = Lists.<T>newArrayList();
 
         for (int j3 = j2; j3 < k2; ++j3)
         {
@@ -3395,8 +3455,6 @@ public abstract class World implements IBlockAccess, net.minecraftforge.common.c
                 }
             }
         }
-
-        return list;
     }
 
     @Nullable
@@ -3441,12 +3499,25 @@ public abstract class World implements IBlockAccess, net.minecraftforge.common.c
     {
         if (this.isBlockLoaded(pos))
         {
-            this.getChunkFromBlockCoords(pos).markDirty();
+            // PFServer start - tile entity data changed, players starting to watch need a new chunk packet
+            Chunk chunk = this.getChunkFromBlockCoords(pos);
+            chunk.markDirty();
+            ++chunk.packetDataVersion;
+            // PFServer end
         }
     }
 
     public int countEntities(Class<?> entityType)
     {
+        // PFServer start - the spawn cap classes are counted as entities come and go
+        for (EnumCreatureType enumcreaturetype : EnumCreatureType.values())
+        {
+            if (enumcreaturetype.getCreatureClass() == entityType)
+            {
+                return this.creatureCounts.get(enumcreaturetype);
+            }
+        }
+        // PFServer end
         int j2 = 0;
 
         for (Entity entity4 : this.loadedEntityList)
@@ -1,6 +1,8 @@
 package net.minecraft.world;
 
-import com.google.common.collect.Sets;
+import cn.pfcraft.server.entity.SpawnChunkIndex;
+import it.unimi.dsi.fastutil.longs.LongArrayList;
+import it.unimi.dsi.fastutil.longs.LongOpenHashSet;
 import net.minecraft.block.Block;
 import net.minecraft.block.BlockRailBase;
 import net.minecraft.block.material.Material;
@@ -26,23 +28,30 @@ import java.util.*;
 public final class WorldEntitySpawner
 {
     private static final int MOB_COUNT_DIV = (int)Math.pow(17.0D, 2.0D);
-    private final Set<ChunkPos> eligibleChunksForSpawning = Sets.<ChunkPos>newHashSet();
+    // PFServer start - candidates kept as players move, and the ones that can spawn this cycle without a ChunkPos each
+    private final SpawnChunkIndex candidateIndex = new SpawnChunkIndex();
+    private final LongArrayList eligibleChunksForSpawning = new LongArrayList();
+    private final LongOpenHashSet attemptedChunks = new LongOpenHashSet();
+    private long spawnAttempts;
+    private long spawnedEntities;
+    // PFServer end
 
     // Spigot start - get entity count only from chunks being processed in b
-    private int getEntityCount(WorldServer server, Class oClass)
+    private int getEntityCount(WorldServer server, EnumCreatureType type) // PFServer - counted by type
     {
         int i = 0;
-        Iterator<ChunkPos> it = this.eligibleChunksForSpawning.iterator();
-        while ( it.hasNext() )
+        // PFServer start
+        for (int j = 0; j < this.eligibleChunksForSpawning.size(); ++j)
         {
-            ChunkPos coord = it.next();
-            int x = coord.x;
-            int z = coord.z;
-            if ( !((ChunkProviderServer)server.chunkProvider).droppedChunksSet.contains( coord ) && server.isChunkLoaded( x, z, true ) )
+            long coord = this.eligibleChunksForSpawning.getLong(j);
+            Chunk chunk = ((ChunkProviderServer)server.chunkProvider).droppedChunksSet.contains(coord) ? null : server.getChunkProvider().getLoadedChunk((int)coord, (int)(coord >> 32));
+
+            if (chunk != null)
             {
-                i += Objects.requireNonNull(server.getChunkProvider().getLoadedChunk(x, z)).entityCount.get( oClass );
+                i += chunk.creatureCounts.get(type);
             }
         }
+        // PFServer end
         return i;
     }
     // Spigot end
@@ -55,45 +64,27 @@ public final class WorldEntitySpawner
         }
         else
         {
+            // PFServer start
+            if (worldServerIn.pfserverConfig.perPlayerMobCaps)
+            {
+                return this.spawnAroundPlayers(worldServerIn, spawnHostileMobs, spawnPeacefulMobs, spawnOnSetTickRate);
+            }
+
+            this.candidateIndex.update(worldServerIn.playerEntities, getMobSpawnRange(worldServerIn));
+            int i = this.candidateIndex.getCoveredChunks();
+            // Tried in a random order, instead of the hash order that favours the same chunks every cycle
+            long[] along = this.candidateIndex.getCandidates();
+            shuffle(along, worldServerIn.rand);
             this.eligibleChunksForSpawning.clear();
-            int i = 0;
 
-            for (EntityPlayer entityplayer : worldServerIn.playerEntities)
+            for (long l : along)
             {
-                if (!entityplayer.isSpectator())
+                if (isEligible(worldServerIn, (int)l, (int)(l >> 32)))
                 {
-                    int j = MathHelper.floor(entityplayer.posX / 16.0D);
-                    int k = MathHelper.floor(entityplayer.posZ / 16.0D);
-                    int l = 8;
-
-                    // Spigot Start
-                    byte b0 = worldServerIn.spigotConfig.mobSpawnRange;
-                    b0 = ( b0 > worldServerIn.spigotConfig.viewDistance ) ? (byte) worldServerIn.spigotConfig.viewDistance : b0;
-                    b0 = ( b0 > 8 ) ? 8 : b0;
-                    for (int i1 = -b0; i1 <= b0; ++i1) {
-                        for (int j1 = -b0; j1 <= b0; ++j1) {
-                            boolean flag = i1 == -b0 || i1 == b0 || j1 == -b0 || j1 == b0;
-                            // Spigot End
-                            ChunkPos chunkpos = new ChunkPos(i1 + j, j1 + k);
-
-                            if (!this.eligibleChunksForSpawning.contains(chunkpos))
-                            {
-                                ++i;
-
-                                if (!flag && worldServerIn.getWorldBorder().contains(chunkpos))
-                                {
-                                    PlayerChunkMapEntry playerchunkmapentry = worldServerIn.getPlayerChunkMap().getEntry(chunkpos.x, chunkpos.z);
-
-                                    if (playerchunkmapentry != null && playerchunkmapentry.isSentToPlayers())
-                                    {
-                                        this.eligibleChunksForSpawning.add(chunkpos);
-                                    }
-                                }
-                            }
-                        }
-                    }
+                    this.eligibleChunksForSpawning.add(l);
                 }
             }
+            // PFServer end
 
             int j4 = 0;
             BlockPos blockpos1 = worldServerIn.getSpawnPoint();
@@ -101,21 +92,7 @@ public final class WorldEntitySpawner
             for (EnumCreatureType enumcreaturetype : EnumCreatureType.values())
             {
                 // CraftBukkit start - Use per-world spawn limits
-                int limit = enumcreaturetype.getMaxNumberOfCreature();
-                switch (enumcreaturetype) {
-                    case MONSTER:
-                        limit = worldServerIn.getWorld().getMonsterSpawnLimit();
-                        break;
-                    case CREATURE:
-                        limit = worldServerIn.getWorld().getAnimalSpawnLimit();
-                        break;
-                    case WATER_CREATURE:
-                        limit = worldServerIn.getWorld().getWaterAnimalSpawnLimit();
-                        break;
-                    case AMBIENT:
-                        limit = worldServerIn.getWorld().getAmbientSpawnLimit();
-                        break;
-                }
+                int limit = getSpawnLimit(worldServerIn, enumcreaturetype); // PFServer
 
                 if (limit == 0) {
                     continue;
@@ -124,114 +101,317 @@ public final class WorldEntitySpawner
                 // CraftBukkit end
                 if ((!enumcreaturetype.getPeacefulCreature() || spawnPeacefulMobs) && (enumcreaturetype.getPeacefulCreature() || spawnHostileMobs) && (!enumcreaturetype.getAnimal() || spawnOnSetTickRate))
                 {
-                    int k4 = worldServerIn.countEntities(enumcreaturetype.getCreatureClass());
-                    int l4 = limit * i / MOB_COUNT_DIV; // CraftBukkit - use per-world limits
+                    // PFServer - the world count and its vanilla cap went unused since Spigot, don't scan the entity list for them
+                    // int k4 = worldServerIn.countEntities(enumcreaturetype.getCreatureClass());
+                    // int l4 = limit * i / MOB_COUNT_DIV; // CraftBukkit - use per-world limits
 
-                    if ((mobcnt = getEntityCount(worldServerIn, enumcreaturetype.getCreatureClass())) <= limit * i / 256)
+                    if ((mobcnt = getEntityCount(worldServerIn, enumcreaturetype)) <= limit * i / 256) // PFServer
                     {
                         BlockPos.MutableBlockPos blockpos$mutableblockpos = new BlockPos.MutableBlockPos();
-                        Iterator<ChunkPos> iterator = this.eligibleChunksForSpawning.iterator();
                         int moblimit = (limit * i / 256) - mobcnt + 1; // Spigot - up to 1 more than limit
-                        label134:
 
-                        while(iterator.hasNext() && (moblimit >0)) // Spigot - while more allowed
+                        // PFServer start
+                        for (int k = 0; k < this.eligibleChunksForSpawning.size() && moblimit > 0; ++k) // Spigot - while more allowed
+                        {
+                            long l = this.eligibleChunksForSpawning.getLong(k);
+                            int j2 = this.spawnInChunk(worldServerIn, enumcreaturetype, (int)l, (int)(l >> 32), blockpos1, moblimit, blockpos$mutableblockpos);
+
+                            if (j2 < 0)
+                            {
+                                return j4;
+                            }
+
+                            moblimit -= j2;
+                            j4 += j2;
+                        }
+                        // PFServer end
+                    }
+                }
+            }
+
+            return j4;
+        }
+    }
+
+    // PFServer start
+    /**
+     * Spawns each creature type around every player in turn, up to a cap on the mobs within that player's spawn range,
+     * so crowded areas only stop spawning near themselves. A chunk near several players is tried once per type.
+     */
+    private int spawnAroundPlayers(WorldServer worldServerIn, boolean spawnHostileMobs, boolean spawnPeacefulMobs, boolean spawnOnSetTickRate)
+    {
+        int i = getMobSpawnRange(worldServerIn);
+
+        if (i == 0)
+        {
+            return 0;
+        }
+
+        int area = (2 * i + 1) * (2 * i + 1);
+        List<EntityPlayer> list = new ArrayList<EntityPlayer>(worldServerIn.playerEntities);
+        Collections.shuffle(list, worldServerIn.rand);
+        // Candidate chunks around a player, tried in a random order for each one
+        int[] aint = new int[(2 * i - 1) * (2 * i - 1)];
+        BlockPos blockpos = worldServerIn.getSpawnPoint();
+        BlockPos.MutableBlockPos blockpos$mutableblockpos = new BlockPos.MutableBlockPos();
+        int j = 0;
+
+        for (EnumCreatureType enumcreaturetype : EnumCreatureType.values())
+        {
+            int k = getSpawnLimit(worldServerIn, enumcreaturetype);
+
+            if (k == 0 || (enumcreaturetype.getPeacefulCreature() && !spawnPeacefulMobs) || (!enumcreaturetype.getPeacefulCreature() && !spawnHostileMobs) || (enumcreaturetype.getAnimal() && !spawnOnSetTickRate))
+            {
+                continue;
+            }
+
+            int l = k * area / 256;
+            this.attemptedChunks.clear();
+
+            for (EntityPlayer entityplayer : list)
+            {
+                if (entityplayer.isSpectator())
+                {
+                    continue;
+                }
+
+                int i1 = MathHelper.floor(entityplayer.posX / 16.0D);
+                int j1 = MathHelper.floor(entityplayer.posZ / 16.0D);
+                int k1 = countAround(worldServerIn, enumcreaturetype, i1, j1, i);
+
+                if (k1 > l)
+                {
+                    continue;
+                }
+
+                int moblimit = l - k1 + 1; // Spigot - up to 1 more than limit
+
+                for (int l1 = 0; l1 < aint.length; ++l1)
+                {
+                    aint[l1] = l1;
+                }
+
+                shuffle(aint, worldServerIn.rand);
+
+                for (int l1 = 0; l1 < aint.length && moblimit > 0; ++l1)
+                {
+                    int i2 = i1 + aint[l1] % (2 * i - 1) - i + 1;
+                    int j2 = j1 + aint[l1] / (2 * i - 1) - i + 1;
+
+                    if (!this.attemptedChunks.add(ChunkPos.asLong(i2, j2)) || !isEligible(worldServerIn, i2, j2))
+                    {
+                        continue;
+                    }
+
+                    int k2 = this.spawnInChunk(worldServerIn, enumcreaturetype, i2, j2, blockpos, moblimit, blockpos$mutableblockpos);
+
+                    if (k2 < 0)
+                    {
+                        return j;
+                    }
+
+                    moblimit -= k2;
+                    j += k2;
+                }
+            }
+        }
+
+        return j;
+    }
+
+    /**
+     * Mobs of the type in the loaded chunks within spawn range of a chunk.
+     */
+    private static int countAround(WorldServer worldServerIn, EnumCreatureType type, int chunkX, int chunkZ, int range)
+    {
+        int i = 0;
+
+        for (int j = chunkX - range; j <= chunkX + range; ++j)
+        {
+            for (int k = chunkZ - range; k <= chunkZ + range; ++k)
+            {
+                Chunk chunk = worldServerIn.getChunkProvider().getLoadedChunk(j, k);
+
+                if (chunk != null)
+                {
+                    i += chunk.creatureCounts.get(type);
+                }
+            }
+        }
+
+        return i;
+    }
+
+    private static boolean isEligible(WorldServer worldServerIn, int chunkX, int chunkZ)
+    {
+        if (!worldServerIn.getWorldBorder().contains(new ChunkPos(chunkX, chunkZ)))
+        {
+            return false;
+        }
+
+        PlayerChunkMapEntry playerchunkmapentry = worldServerIn.getPlayerChunkMap().getEntry(chunkX, chunkZ);
+        return playerchunkmapentry != null && playerchunkmapentry.isSentToPlayers();
+    }
+
+    private static int getMobSpawnRange(WorldServer worldServerIn)
+    {
+        // Spigot Start
+        byte b0 = worldServerIn.spigotConfig.mobSpawnRange;
+        b0 = ( b0 > worldServerIn.spigotConfig.viewDistance ) ? (byte) worldServerIn.spigotConfig.viewDistance : b0;
+        b0 = ( b0 > 8 ) ? 8 : b0;
+        // Spigot End
+        return Math.max(0, b0);
+    }
+
+    private static int getSpawnLimit(WorldServer worldServerIn, EnumCreatureType type)
+    {
+        // CraftBukkit start - Use per-world spawn limits
+        switch (type) {
+            case MONSTER:
+                return worldServerIn.getWorld().getMonsterSpawnLimit();
+            case CREATURE:
+                return worldServerIn.getWorld().getAnimalSpawnLimit();
+            case WATER_CREATURE:
+                return worldServerIn.getWorld().getWaterAnimalSpawnLimit();
+            case AMBIENT:
+                return worldServerIn.getWorld().getAmbientSpawnLimit();
+        }
+        // CraftBukkit end
+        return type.getMaxNumberOfCreature();
+    }
+
+    private static void shuffle(long[] array, Random random)
+    {
+        for (int i = array.length - 1; i > 0; --i)
+        {
+            int j = random.nextInt(i + 1);
+            long k = array[i];
+            array[i] = array[j];
+            array[j] = k;
+        }
+    }
+
+    private static void shuffle(int[] array, Random random)
+    {
+        for (int i = array.length - 1; i > 0; --i)
+        {
+            int j = random.nextInt(i + 1);
+            int k = array[i];
+            array[i] = array[j];
+            array[j] = k;
+        }
+    }
+
+    /**
+     * Spawns up to three packs of the type around a random position of the chunk, returns how many mobs spawned or -1
+     * if a mob couldn't be created.
+     */
+    private int spawnInChunk(WorldServer worldServerIn, EnumCreatureType enumcreaturetype, int chunkX, int chunkZ, BlockPos blockpos1, int moblimit, BlockPos.MutableBlockPos blockpos$mutableblockpos)
+    {
+        BlockPos blockpos = getRandomChunkPosition(worldServerIn, chunkX, chunkZ);
+        int k1 = blockpos.getX();
+        int l1 = blockpos.getY();
+        int i2 = blockpos.getZ();
+        IBlockState iblockstate = worldServerIn.getBlockState(blockpos);
+        int j2 = 0;
+
+        if (!iblockstate.isNormalCube())
+        {
+            for (int k2 = 0; k2 < 3; ++k2)
+            {
+                int l2 = k1;
+                int i3 = l1;
+                int j3 = i2;
+                int k3 = 6;
+                Biome.SpawnListEntry biome$spawnlistentry = null;
+                IEntityLivingData ientitylivingdata = null;
+                int l3 = MathHelper.ceil(Math.random() * 4.0D);
+
+                for (int i4 = 0; i4 < l3; ++i4)
+                {
+                    l2 += worldServerIn.rand.nextInt(6) - worldServerIn.rand.nextInt(6);
+                    i3 += worldServerIn.rand.nextInt(1) - worldServerIn.rand.nextInt(1);
+                    j3 += worldServerIn.rand.nextInt(6) - worldServerIn.rand.nextInt(6);
+                    blockpos$mutableblockpos.setPos(l2, i3, j3);
+                    float f = (float)l2 + 0.5F;
+                    float f1 = (float)j3 + 0.5F;
+
+                    if (!worldServerIn.isAnyPlayerWithinRangeAt((double)f, (double)i3, (double)f1, 24.0D) && blockpos1.distanceSq((double)f, (double)i3, (double)f1) >= 576.0D)
+                    {
+                        if (biome$spawnlistentry == null)
                         {
-                            ChunkPos chunkpos1 = iterator.next();
-                            BlockPos blockpos = getRandomChunkPosition(worldServerIn, chunkpos1.x, chunkpos1.z);
-                            int k1 = blockpos.getX();
-                            int l1 = blockpos.getY();
-                            int i2 = blockpos.getZ();
-                            IBlockState iblockstate = worldServerIn.getBlockState(blockpos);
-
-                            if (!iblockstate.isNormalCube())
+                            biome$spawnlistentry = worldServerIn.getSpawnListEntryForTypeAt(enumcreaturetype, blockpos$mutableblockpos);
+
+                            if (biome$spawnlistentry == null)
                             {
-                                int j2 = 0;
+                                break;
+                            }
+                        }
 
-                                for (int k2 = 0; k2 < 3; ++k2)
+                        ++this.spawnAttempts;
+
+                        if (worldServerIn.canCreatureTypeSpawnHere(enumcreaturetype, biome$spawnlistentry, blockpos$mutableblockpos) && canCreatureTypeSpawnAtLocation(EntitySpawnPlacementRegistry.getPlacementForEntity(biome$spawnlistentry.entityClass), worldServerIn, blockpos$mutableblockpos))
+                        {
+                            EntityLiving entityliving;
+
+                            try
+                            {
+                                entityliving = biome$spawnlistentry.newInstance(worldServerIn);
+                            }
+                            catch (Exception exception)
+                            {
+                                exception.printStackTrace();
+                                return -1;
+                            }
+
+                            entityliving.setLocationAndAngles((double)f, (double)i3, (double)f1, worldServerIn.rand.nextFloat() * 360.0F, 0.0F);
+
+                            net.minecraftforge.fml.common.eventhandler.Event.Result canSpawn = net.minecraftforge.event.ForgeEventFactory.canEntitySpawn(entityliving, worldServerIn, f, i3, f1, false);
+                            if (canSpawn == net.minecraftforge.fml.common.eventhandler.Event.Result.ALLOW || (canSpawn == net.minecraftforge.fml.common.eventhandler.Event.Result.DEFAULT && (entityliving.getCanSpawnHere() && entityliving.isNotColliding())))
+                            {
+                                if (!net.minecraftforge.event.ForgeEventFactory.doSpecialSpawn(entityliving, worldServerIn, f, i3, f1))
+                                ientitylivingdata = entityliving.onInitialSpawn(worldServerIn.getDifficultyForLocation(new BlockPos(entityliving)), ientitylivingdata);
+
+                                if (entityliving.isNotColliding())
                                 {
-                                    int l2 = k1;
-                                    int i3 = l1;
-                                    int j3 = i2;
-                                    int k3 = 6;
-                                    Biome.SpawnListEntry biome$spawnlistentry = null;
-                                    IEntityLivingData ientitylivingdata = null;
-                                    int l3 = MathHelper.ceil(Math.random() * 4.0D);
-
-                                    for (int i4 = 0; i4 < l3; ++i4)
-                                    {
-                                        l2 += worldServerIn.rand.nextInt(6) - worldServerIn.rand.nextInt(6);
-                                        i3 += worldServerIn.rand.nextInt(1) - worldServerIn.rand.nextInt(1);
-                                        j3 += worldServerIn.rand.nextInt(6) - worldServerIn.rand.nextInt(6);
-                                        blockpos$mutableblockpos.setPos(l2, i3, j3);
-                                        float f = (float)l2 + 0.5F;
-                                        float f1 = (float)j3 + 0.5F;
-
-                                        if (!worldServerIn.isAnyPlayerWithinRangeAt((double)f, (double)i3, (double)f1, 24.0D) && blockpos1.distanceSq((double)f, (double)i3, (double)f1) >= 576.0D)
-                                        {
-                                            if (biome$spawnlistentry == null)
-                                            {
-                                                biome$spawnlistentry = worldServerIn.getSpawnListEntryForTypeAt(enumcreaturetype, blockpos$mutableblockpos);
-
-                                                if (biome$spawnlistentry == null)
-                                                {
-                                                    break;
-                                                }
-                                            }
-
-                                            if (worldServerIn.canCreatureTypeSpawnHere(enumcreaturetype, biome$spawnlistentry, blockpos$mutableblockpos) && canCreatureTypeSpawnAtLocation(EntitySpawnPlacementRegistry.getPlacementForEntity(biome$spawnlistentry.entityClass), worldServerIn, blockpos$mutableblockpos))
-                                            {
-                                                EntityLiving entityliving;
-
-                                                try
-                                                {
-                                                    entityliving = biome$spawnlistentry.newInstance(worldServerIn);
-                                                }
-                                                catch (Exception exception)
-                                                {
-                                                    exception.printStackTrace();
-                                                    return j4;
-                                                }
-
-                                                entityliving.setLocationAndAngles((double)f, (double)i3, (double)f1, worldServerIn.rand.nextFloat() * 360.0F, 0.0F);
-
-                                                net.minecraftforge.fml.common.eventhandler.Event.Result canSpawn = net.minecraftforge.event.ForgeEventFactory.canEntitySpawn(entityliving, worldServerIn, f, i3, f1, false);
-                                                if (canSpawn == net.minecraftforge.fml.common.eventhandler.Event.Result.ALLOW || (canSpawn == net.minecraftforge.fml.common.eventhandler.Event.Result.DEFAULT && (entityliving.getCanSpawnHere() && entityliving.isNotColliding())))
-                                                {
-                                                    if (!net.minecraftforge.event.ForgeEventFactory.doSpecialSpawn(entityliving, worldServerIn, f, i3, f1))
-                                                    ientitylivingdata = entityliving.onInitialSpawn(worldServerIn.getDifficultyForLocation(new BlockPos(entityliving)), ientitylivingdata);
-
-                                                    if (entityliving.isNotColliding())
-                                                    {
-                                                        if (worldServerIn.addEntity(entityliving, CreatureSpawnEvent.SpawnReason.NATURAL)) {
-                                                            ++j2;
-                                                            moblimit--; // Spigot
-                                                        }
-                                                    }
-                                                    else
-                                                    {
-                                                        entityliving.setDead();
-                                                    }
-
-                                                    if (moblimit <= 0 || j2 >= net.minecraftforge.event.ForgeEventFactory.getMaxSpawnPackSize(entityliving))
-                                                    {
-                                                        continue label134;
-                                                    }
-                                                }
-
-                                                j4 += j2;
-                                            }
-                                        }
+                                    if (worldServerIn.addEntity(entityliving, CreatureSpawnEvent.SpawnReason.NATURAL)) {
+                                        ++j2;
+                                        ++this.spawnedEntities;
+                                        moblimit--; // Spigot
                                     }
                                 }
+                                else
+                                {
+                                    entityliving.setDead();
+                                }
+
+                                if (moblimit <= 0 || j2 >= net.minecraftforge.event.ForgeEventFactory.getMaxSpawnPackSize(entityliving))
+                                {
+                                    return j2;
+                                }
                             }
                         }
                     }
                 }
             }
-
-            return j4;
         }
+
+        return j2;
+    }
+
+    /**
+     * Mob spawn positions tested against the spawn rules since the server started.
+     */
+    public long getSpawnAttempts()
+    {
+        return this.spawnAttempts;
+    }
+
+    public long getSpawnedEntities()
+    {
+        return this.spawnedEntities;
     }
+    // PFServer end
 
     private static BlockPos getRandomChunkPosition(World worldIn, int x, int z)
     {
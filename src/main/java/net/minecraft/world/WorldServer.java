@@ -1,8 +1,8 @@
 package net.minecraft.world;
 
+import cn.pfcraft.server.world.ScheduledTickQueue;
 import com.google.common.collect.Lists;
 import com.google.common.collect.Maps;
-import com.google.common.collect.Sets;
 import com.google.common.util.concurrent.ListenableFuture;
 import net.minecraft.advancements.AdvancementManager;
 import net.minecraft.advancements.FunctionManager;
@@ -68,8 +68,7 @@ public class WorldServer extends World implements IThreadListener
     private final MinecraftServer mcServer;
     public EntityTracker entityTracker;
     private final PlayerChunkMap playerChunkMap;
-    private final Set<NextTickListEntry> pendingTickListEntriesHashSet = Sets.<NextTickListEntry>newHashSet();
-    private final TreeSet<NextTickListEntry> pendingTickListEntriesTreeSet = new TreeSet<NextTickListEntry>();
+    private final ScheduledTickQueue pendingTickListEntries = new ScheduledTickQueue(); // PFServer - bucketed by time instead of a hash set and tree set pair
     private final Map<UUID, Entity> entitiesByUuid = Maps.<UUID, Entity>newHashMap();
     public boolean disableLevelSaving;
     private boolean allPlayersSleeping;
@@ -696,7 +695,7 @@ public class WorldServer extends World implements IThreadListener
     public boolean isUpdateScheduled(BlockPos pos, Block blk)
     {
         NextTickListEntry nextticklistentry = new NextTickListEntry(pos, blk);
-        return this.pendingTickListEntriesHashSet.contains(nextticklistentry);
+        return this.pendingTickListEntries.contains(nextticklistentry); // PFServer
     }
 
     public void scheduleUpdate(BlockPos pos, Block blockIn, int delay)
@@ -741,11 +740,7 @@ public class WorldServer extends World implements IThreadListener
                 nextticklistentry.setPriority(priority);
             }
 
-            if (!this.pendingTickListEntriesHashSet.contains(nextticklistentry))
-            {
-                this.pendingTickListEntriesHashSet.add(nextticklistentry);
-                this.pendingTickListEntriesTreeSet.add(nextticklistentry);
-            }
+            this.pendingTickListEntries.add(nextticklistentry); // PFServer - skips duplicates itself
         }
     }
 
@@ -761,11 +756,7 @@ public class WorldServer extends World implements IThreadListener
             nextticklistentry.setScheduledTime((long)delay + this.worldInfo.getWorldTotalTime());
         }
 
-        if (!this.pendingTickListEntriesHashSet.contains(nextticklistentry))
-        {
-            this.pendingTickListEntriesHashSet.add(nextticklistentry);
-            this.pendingTickListEntriesTreeSet.add(nextticklistentry);
-        }
+        this.pendingTickListEntries.add(nextticklistentry); // PFServer - skips duplicates itself
     }
 
     public void updateEntities()
@@ -858,23 +849,24 @@ public class WorldServer extends World implements IThreadListener
         }
         else
         {
-            int i = this.pendingTickListEntriesTreeSet.size();
+            int i = this.pendingTickListEntries.size();
 
             // TODO: Check if this condition should be always false(HashTreeSet from CB related)
-            if (i != this.pendingTickListEntriesHashSet.size())
+            if (!this.pendingTickListEntries.isConsistent()) // PFServer
             {
                 throw new IllegalStateException("TickNextTick list out of synch");
             }
             else
             {
-                if (i > 65536)
+                int max = this.pfserverConfig.maxTickUpdates; // PFServer - configurable, 0 for no limit
+                if (max > 0 && i > max)
                 {
                     // i = 65536;
                     // CraftBukkit start - If the server has too much to process over time, try to alleviate that
-                    if (i > 20 * 65536) {
+                    if (i > 20 * max) {
                         i = i / 20;
                     } else {
-                        i = 65536;
+                        i = max;
                     }
                     // CraftBukkit end
                 }
@@ -883,15 +875,15 @@ public class WorldServer extends World implements IThreadListener
 
                 for (int j = 0; j < i; ++j)
                 {
-                    NextTickListEntry nextticklistentry = this.pendingTickListEntriesTreeSet.first();
+                    // PFServer start - only the due ticks are touched
+                    NextTickListEntry nextticklistentry = this.pendingTickListEntries.poll(runAllPending ? Long.MAX_VALUE : this.worldInfo.getWorldTotalTime());
 
-                    if (!runAllPending && nextticklistentry.scheduledTime > this.worldInfo.getWorldTotalTime())
+                    if (nextticklistentry == null)
                     {
                         break;
                     }
+                    // PFServer end
 
-                    this.pendingTickListEntriesTreeSet.remove(nextticklistentry);
-                    this.pendingTickListEntriesHashSet.remove(nextticklistentry);
                     this.pendingTickListEntriesThisTick.add(nextticklistentry);
                 }
 
@@ -935,7 +927,7 @@ public class WorldServer extends World implements IThreadListener
 
                 this.profiler.endSection();
                 this.pendingTickListEntriesThisTick.clear();
-                return !this.pendingTickListEntriesTreeSet.isEmpty();
+                return !this.pendingTickListEntries.isEmpty(); // PFServer
             }
         }
     }
@@ -954,47 +946,38 @@ public class WorldServer extends World implements IThreadListener
     @Nullable
     public List<NextTickListEntry> getPendingBlockUpdates(StructureBoundingBox structureBB, boolean remove)
     {
-        List<NextTickListEntry> list = null;
+        // PFServer start - only look at the chunks the box covers instead of every scheduled tick
+        List<NextTickListEntry> list = this.pendingTickListEntries.collect(structureBB, remove, null);
 
-        for (int i = 0; i < 2; ++i)
+        if (list != null)
         {
-            Iterator<NextTickListEntry> iterator;
+            // Same order the tree set used to hand them out in
+            Collections.sort(list);
+        }
 
-            if (i == 0)
-            {
-                iterator = this.pendingTickListEntriesTreeSet.iterator();
-            }
-            else
-            {
-                iterator = this.pendingTickListEntriesThisTick.iterator();
-            }
+        Iterator<NextTickListEntry> iterator = this.pendingTickListEntriesThisTick.iterator();
 
-            while (iterator.hasNext())
-            {
-                NextTickListEntry nextticklistentry = iterator.next();
-                BlockPos blockpos = nextticklistentry.position;
+        while (iterator.hasNext())
+        {
+            NextTickListEntry nextticklistentry = iterator.next();
+            BlockPos blockpos = nextticklistentry.position;
 
-                if (blockpos.getX() >= structureBB.minX && blockpos.getX() < structureBB.maxX && blockpos.getZ() >= structureBB.minZ && blockpos.getZ() < structureBB.maxZ)
+            if (blockpos.getX() >= structureBB.minX && blockpos.getX() < structureBB.maxX && blockpos.getZ() >= structureBB.minZ && blockpos.getZ() < structureBB.maxZ)
+            {
+                if (remove)
                 {
-                    if (remove)
-                    {
-                        if (i == 0)
-                        {
-                            this.pendingTickListEntriesHashSet.remove(nextticklistentry);
-                        }
-
-                        iterator.remove();
-                    }
-
-                    if (list == null)
-                    {
-                        list = Lists.<NextTickListEntry>newArrayList();
-                    }
+                    iterator.remove();
+                }
 
-                    list.add(nextticklistentry);
+                if (list == null)
+                {
+                    list = Lists.<NextTickListEntry>newArrayList();
                 }
+
+                list.add(nextticklistentry);
             }
         }
+        // PFServer end
 
         return list;
     }
@@ -1241,6 +1224,12 @@ public class WorldServer extends World implements IThreadListener
     }
 
     public void saveAllChunks(boolean all, @Nullable IProgressUpdate progressCallback) throws MinecraftException
+    {
+        this.saveAllChunks(all, progressCallback, false); // PFServer
+    }
+
+    // PFServer - an incremental save only queues the chunks, MinecraftServer saves them over the following ticks
+    public void saveAllChunks(boolean all, @Nullable IProgressUpdate progressCallback, boolean incremental) throws MinecraftException
     {
         ChunkProviderServer chunkproviderserver = this.getChunkProvider();
 
@@ -1259,7 +1248,16 @@ public class WorldServer extends World implements IThreadListener
                 progressCallback.displayLoadingString("Saving chunks");
             }
 
-            chunkproviderserver.saveChunks(all);
+            // PFServer start
+            if (incremental)
+            {
+                chunkproviderserver.queueIncrementalSave();
+            }
+            else
+            {
+                chunkproviderserver.saveChunks(all);
+            }
+            // PFServer end
             net.minecraftforge.common.MinecraftForge.EVENT_BUS.post(new net.minecraftforge.event.world.WorldEvent.Save(this));
 
             for (Chunk chunk : Lists.newArrayList(chunkproviderserver.getLoadedChunks()))
@@ -1557,6 +1555,13 @@ public class WorldServer extends World implements IThreadListener
         return this.playerChunkMap;
     }
 
+    // PFServer start
+    public WorldEntitySpawner getEntitySpawner()
+    {
+        return this.entitySpawner;
+    }
+    // PFServer end
+
     public Teleporter getDefaultTeleporter()
     {
         return this.worldTeleporter;
@@ -156,6 +156,80 @@ public class BlockStateContainer implements IBlockStatePaletteResizer
         return nibblearray;
     }
 
+    // PFServer start
+    /**
+     * Copies the storage and palette so the section can be encoded for saving off the main thread.
+     */
+    public BlockStateContainer.Snapshot snapshot()
+    {
+        IBlockState[] states = null;
+
+        if (this.palette != REGISTRY_BASED_PALETTE)
+        {
+            states = new IBlockState[1 << this.bits];
+
+            for (int i = 0; i < states.length; ++i)
+            {
+                states[i] = this.palette.getBlockState(i);
+            }
+        }
+
+        long[] longs = this.storage.getBackingLongArray();
+        BitArray bitarray = new BitArray(this.bits, this.storage.size());
+        System.arraycopy(longs, 0, bitarray.getBackingLongArray(), 0, longs.length);
+        return new BlockStateContainer.Snapshot(bitarray, states);
+    }
+
+    public static class Snapshot
+    {
+        private final BitArray storage;
+        @Nullable
+        private final IBlockState[] states;
+
+        private Snapshot(BitArray storage, @Nullable IBlockState[] states)
+        {
+            this.storage = storage;
+            this.states = states;
+        }
+
+        private IBlockState get(int index)
+        {
+            int id = this.storage.getAt(index);
+            IBlockState iblockstate = this.states == null ? REGISTRY_BASED_PALETTE.getBlockState(id) : id < this.states.length ? this.states[id] : null;
+            return iblockstate == null ? AIR_BLOCK_STATE : iblockstate;
+        }
+
+        @Nullable
+        public NibbleArray getDataForNBT(byte[] blockIds, NibbleArray data)
+        {
+            NibbleArray nibblearray = null;
+
+            for (int i = 0; i < 4096; ++i)
+            {
+                int j = Block.BLOCK_STATE_IDS.get(this.get(i));
+                int k = i & 15;
+                int l = i >> 8 & 15;
+                int i1 = i >> 4 & 15;
+
+                if ((j >> 12 & 15) != 0)
+                {
+                    if (nibblearray == null)
+                    {
+                        nibblearray = new NibbleArray();
+                    }
+
+                    nibblearray.set(k, l, i1, j >> 12 & 15);
+                }
+
+                blockIds[i] = (byte)(j >> 4 & 255);
+                data.set(k, l, i1, j & 15);
+            }
+
+            return nibblearray;
+        }
+    }
+    // PFServer end
+
     public void setDataFromNBT(byte[] blockIds, NibbleArray data, @Nullable NibbleArray blockIdExtension)
     {
         for (int i = 0; i < 4096; ++i)
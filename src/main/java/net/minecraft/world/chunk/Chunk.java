@@ -11,8 +11,6 @@ import net.minecraft.crash.CrashReport;
 import net.minecraft.crash.CrashReportCategory;
 import net.minecraft.crash.ICrashReportDetail;
 import net.minecraft.entity.Entity;
-import net.minecraft.entity.EntityLiving;
-import net.minecraft.entity.EnumCreatureType;
 import net.minecraft.entity.player.EntityPlayerMP;
 import net.minecraft.init.Biomes;
 import net.minecraft.init.Blocks;
@@ -74,7 +72,9 @@ public class Chunk implements net.minecraftforge.common.capabilities.ICapability
     private int queuedLightChecks;
     private final ConcurrentLinkedQueue<BlockPos> tileEntityPosQueue;
     public boolean unloadQueued;
-    public gnu.trove.map.hash.TObjectIntHashMap<Class> entityCount = new gnu.trove.map.hash.TObjectIntHashMap<Class>(); // Spigot
+    public final cn.pfcraft.server.entity.CreatureCounts creatureCounts = new cn.pfcraft.server.entity.CreatureCounts(); // Spigot // PFServer - CreatureCounts instead of a count per class
+    private final cn.pfcraft.server.entity.SectionEntityGrid[] entityGrids = new cn.pfcraft.server.entity.SectionEntityGrid[16]; // PFServer - grids of the crowded sections
+    public int packetDataVersion; // PFServer - bumped when what a full chunk packet holds changes: blocks, light, tile entities
 
     // CraftBukkit start - Neighbor loaded cache for chunk lighting and entity ticking
     private int neighbors = 0x1 << 12;
@@ -237,6 +237,7 @@ public class Chunk implements net.minecraftforge.common.capabilities.ICapability
         }
 
         this.dirty = true;
+        ++this.packetDataVersion; // PFServer
     }
 
     public void generateSkylightMap()
@@ -304,6 +305,7 @@ public class Chunk implements net.minecraftforge.common.capabilities.ICapability
         }
 
         this.dirty = true;
+        ++this.packetDataVersion; // PFServer
     }
 
     private void propagateSkylightOcclusion(int x, int z)
@@ -381,6 +383,7 @@ public class Chunk implements net.minecraftforge.common.capabilities.ICapability
             }
 
             this.dirty = true;
+            ++this.packetDataVersion; // PFServer
         }
     }
 
@@ -489,6 +492,7 @@ public class Chunk implements net.minecraftforge.common.capabilities.ICapability
             }
 
             this.dirty = true;
+            ++this.packetDataVersion; // PFServer
         }
     }
 
@@ -673,6 +677,7 @@ public class Chunk implements net.minecraftforge.common.capabilities.ICapability
                 }
 
                 this.dirty = true;
+                ++this.packetDataVersion; // PFServer
                 return iblockstate;
             }
         }
@@ -714,6 +719,7 @@ public class Chunk implements net.minecraftforge.common.capabilities.ICapability
         }
 
         this.dirty = true;
+        ++this.packetDataVersion; // PFServer
 
         if (type == EnumSkyBlock.SKY)
         {
@@ -785,22 +791,29 @@ public class Chunk implements net.minecraftforge.common.capabilities.ICapability
         entityIn.chunkCoordZ = this.z;
         this.entityLists[k].add(entityIn);
         this.markDirty(); // Forge - ensure chunks are marked to save after an entity add
-        // Spigot start - increment creature type count
-        // Keep this synced up with World.a(Class)
-        if (entityIn instanceof EntityLiving) {
-            EntityLiving entityinsentient = (EntityLiving) entityIn;
-            if (entityinsentient.canDespawn() && entityinsentient.isNoDespawnRequired()) {
-                return;
-            }
+        entityIn.chunkCreatureMask = this.creatureCounts.add(entityIn, entityIn.chunkCreatureMask); // Spigot - increment creature type count
+        // PFServer start - file the entity in the section's grid, building it once the section is crowded
+        cn.pfcraft.server.entity.SectionEntityGrid grid = this.entityGrids[k];
+
+        if (grid != null)
+        {
+            entityIn.entityGridCell = grid.add(entityIn);
         }
-        for ( EnumCreatureType creatureType : EnumCreatureType.values() )
+        else
         {
-            if ( creatureType.getCreatureClass().isAssignableFrom( entityIn.getClass() ) )
+            entityIn.entityGridCell = cn.pfcraft.server.entity.SectionEntityGrid.NO_CELL;
+
+            if (cn.pfcraft.server.PFSConfig.entityGridThreshold > 0 && this.entityLists[k].size() >= cn.pfcraft.server.PFSConfig.entityGridThreshold)
             {
-                this.entityCount.adjustOrPutValue( creatureType.getCreatureClass(), 1, 1 );
+                grid = this.entityGrids[k] = new cn.pfcraft.server.entity.SectionEntityGrid(this.x, k, this.z);
+
+                for (Entity entity : this.entityLists[k])
+                {
+                    entity.entityGridCell = grid.add(entity);
+                }
             }
         }
-        // Spigot end
+        // PFServer end
     }
 
     public void removeEntity(Entity entityIn)
@@ -820,26 +833,46 @@ public class Chunk implements net.minecraftforge.common.capabilities.ICapability
             index = this.entityLists.length - 1;
         }
 
-        this.entityLists[index].remove(entityIn);
-        this.markDirty(); // Forge - ensure chunks are marked to save after entity removals
-        // Spigot start - decrement creature type count
-        // Keep this synced up with World.a(Class)
-        if (entityIn instanceof EntityLiving) {
-            EntityLiving entityinsentient = (EntityLiving) entityIn;
-            if (entityinsentient.canDespawn() && entityinsentient.isNoDespawnRequired()) {
-                return;
-            }
-        }
-        for ( EnumCreatureType creatureType : EnumCreatureType.values() )
+        // PFServer start - decrement creature type count, only if the entity was in this chunk
+        if (this.entityLists[index].remove(entityIn))
         {
-            if ( creatureType.getCreatureClass().isAssignableFrom( entityIn.getClass() ) )
+            entityIn.chunkCreatureMask = this.creatureCounts.remove(entityIn.chunkCreatureMask); // Spigot
+            cn.pfcraft.server.entity.SectionEntityGrid grid = this.entityGrids[index];
+
+            if (grid != null)
             {
-                this.entityCount.adjustValue( creatureType.getCreatureClass(), -1 );
+                grid.remove(entityIn, entityIn.entityGridCell);
+
+                // Dropped well below the size it was built at, so entities going in and out don't rebuild it each time
+                if (this.entityLists[index].size() < cn.pfcraft.server.PFSConfig.entityGridThreshold / 4)
+                {
+                    this.entityGrids[index] = null;
+
+                    for (Entity entity : this.entityLists[index])
+                    {
+                        entity.entityGridCell = cn.pfcraft.server.entity.SectionEntityGrid.NO_CELL;
+                    }
+                }
             }
+
+            entityIn.entityGridCell = cn.pfcraft.server.entity.SectionEntityGrid.NO_CELL;
         }
-        // Spigot end
+        // PFServer end
+        this.markDirty(); // Forge - ensure chunks are marked to save after entity removals
     }
 
+    // PFServer start - file the entity under its current position after it moved within the section
+    public void moveEntityInGrid(Entity entityIn)
+    {
+        cn.pfcraft.server.entity.SectionEntityGrid grid = this.entityGrids[MathHelper.clamp(entityIn.chunkCoordY, 0, this.entityGrids.length - 1)];
+
+        if (grid != null && entityIn.entityGridCell >= 0)
+        {
+            entityIn.entityGridCell = grid.move(entityIn, entityIn.entityGridCell);
+        }
+    }
+    // PFServer end
+
     public boolean canSeeSky(BlockPos pos)
     {
         int i = pos.getX() & 15;
@@ -911,6 +944,7 @@ public class Chunk implements net.minecraftforge.common.capabilities.ICapability
 
             tileEntityIn.validate();
             this.tileEntities.put(pos, tileEntityIn);
+            ++this.packetDataVersion; // PFServer
         }
     }
 
@@ -923,6 +957,7 @@ public class Chunk implements net.minecraftforge.common.capabilities.ICapability
             if (tileentity != null)
             {
                 tileentity.invalidate();
+                ++this.packetDataVersion; // PFServer
             }
         }
     }
@@ -977,6 +1012,14 @@ public class Chunk implements net.minecraftforge.common.capabilities.ICapability
 
         for (int k = i; k <= j; ++k)
         {
+            // PFServer start - only the cells the box reaches in crowded sections
+            if (this.entityGrids[k] != null)
+            {
+                this.entityGrids[k].getEntities(entityIn, aabb, listToFill, filter);
+                continue;
+            }
+            // PFServer end
+
             if (!this.entityLists[k].isEmpty())
             {
                 for (Entity entity : this.entityLists[k])
@@ -1015,6 +1058,16 @@ public class Chunk implements net.minecraftforge.common.capabilities.ICapability
 
         for (int k = i; k <= j; ++k)
         {
+            // PFServer start - only the cells the box reaches in crowded sections, unless the type is rarer there
+            cn.pfcraft.server.entity.SectionEntityGrid grid = this.entityGrids[k];
+
+            if (grid != null && grid.getCandidates(aabb) < this.entityLists[k].sizeByClass(entityClass))
+            {
+                grid.getEntitiesOfType(entityClass, aabb, listToFill, filter);
+                continue;
+            }
+            // PFServer end
+
             for (T t : this.entityLists[k].getByClass(entityClass))
             {
                 if (t.getEntityBoundingBox().intersects(aabb) && (filter == null || filter.apply(t)))
@@ -1656,6 +1709,13 @@ public class Chunk implements net.minecraftforge.common.capabilities.ICapability
         this.lastSaveTime = saveTime;
     }
 
+    // PFServer start
+    public long getLastSaveTime()
+    {
+        return this.lastSaveTime;
+    }
+    // PFServer end
+
     public int getLowestHeight()
     {
         return this.heightMapMinimum;
@@ -1,6 +1,10 @@
 package net.minecraft.world.chunk.storage;
 
 import cn.pfcraft.server.PFServer;
+import cn.pfcraft.server.chunkio.ChunkSaveStats;
+import cn.pfcraft.server.chunkio.RegionCodec;
+import cn.pfcraft.server.chunkio.RegionCodecs;
+import com.google.common.collect.Lists;
 import com.google.common.collect.Maps;
 import net.minecraft.block.Block;
 import net.minecraft.entity.Entity;
@@ -18,6 +22,7 @@ import net.minecraft.util.math.ChunkPos;
 import net.minecraft.world.MinecraftException;
 import net.minecraft.world.NextTickListEntry;
 import net.minecraft.world.World;
+import net.minecraft.world.chunk.BlockStateContainer;
 import net.minecraft.world.chunk.Chunk;
 import net.minecraft.world.chunk.NibbleArray;
 import net.minecraft.world.storage.IThreadedFileIO;
@@ -31,16 +36,26 @@ import java.io.IOException;
 import java.util.Collections;
 import java.util.List;
 import java.util.Map;
+import java.util.Queue;
 import java.util.Set;
+import java.util.concurrent.ConcurrentLinkedQueue;
+import java.util.zip.Deflater;
 
 public class AnvilChunkLoader implements IChunkLoader, IThreadedFileIO
 {
     private static final Logger LOGGER = LogManager.getLogger();
-    private final Map<ChunkPos, NBTTagCompound> chunksToSave = Maps.<ChunkPos, NBTTagCompound>newConcurrentMap();
+    private final Map<ChunkPos, ChunkSnapshot> chunksToSave = Maps.<ChunkPos, ChunkSnapshot>newConcurrentMap(); // PFServer - may still have to be encoded
     private final Set<ChunkPos> chunksBeingSaved = Collections.<ChunkPos>newSetFromMap(Maps.newConcurrentMap());
     public final File chunkSaveLocation;
     private final DataFixer fixer;
     private boolean flushing;
+    // PFServer start
+    private final Map<Long, RegionWriter> regionWriters = Maps.<Long, RegionWriter>newConcurrentMap();
+    private final Object chunkSavedLock = new Object(); // notified whenever a chunk is done being saved
+    public final ChunkSaveStats saveStats = new ChunkSaveStats();
+    private volatile RegionCodec compression = RegionCodecs.ZLIB;
+    private volatile int compressionLevel = Deflater.DEFAULT_COMPRESSION;
+    // PFServer end
 
     public AnvilChunkLoader(File chunkSaveLocationIn, DataFixer dataFixerIn)
     {
@@ -76,7 +91,8 @@ public class AnvilChunkLoader implements IChunkLoader, IThreadedFileIO
     public Object[] loadChunk__Async(World worldIn, int x, int z) throws IOException
     {
         ChunkPos chunkpos = new ChunkPos(x, z);
-        NBTTagCompound nbttagcompound = this.chunksToSave.get(chunkpos);
+        ChunkSnapshot snapshot = this.chunksToSave.get(chunkpos); // PFServer
+        NBTTagCompound nbttagcompound = snapshot == null ? null : snapshot.build(); // PFServer
 
         if (nbttagcompound == null)
         {
@@ -96,8 +112,8 @@ public class AnvilChunkLoader implements IChunkLoader, IThreadedFileIO
     public boolean isChunkGeneratedAt(int x, int z)
     {
         ChunkPos chunkpos = new ChunkPos(x, z);
-        NBTTagCompound nbttagcompound = this.chunksToSave.get(chunkpos);
-        return nbttagcompound != null ? true : RegionFileCache.chunkExists(this.chunkSaveLocation, x, z);
+        ChunkSnapshot snapshot = this.chunksToSave.get(chunkpos); // PFServer
+        return snapshot != null ? true : RegionFileCache.chunkExists(this.chunkSaveLocation, x, z);
     }
 
     @Nullable
@@ -163,6 +179,10 @@ public class AnvilChunkLoader implements IChunkLoader, IThreadedFileIO
     public void saveChunk(World worldIn, Chunk chunkIn) throws MinecraftException, IOException
     {
         worldIn.checkSessionLock();
+        // PFServer start - follow the world config, it may be reloaded
+        this.compression = worldIn.pfserverConfig.chunkCompression;
+        this.compressionLevel = worldIn.pfserverConfig.chunkCompressionLevel;
+        // PFServer end
 
         try
         {
@@ -171,6 +191,18 @@ public class AnvilChunkLoader implements IChunkLoader, IThreadedFileIO
             nbttagcompound.setTag("Level", nbttagcompound1);
             nbttagcompound.setInteger("DataVersion", 1343);
             net.minecraftforge.fml.common.FMLCommonHandler.instance().getDataFixer().writeVersionData(nbttagcompound);
+
+            // PFServer start - only copy the sections here, the IO workers encode them and post the save event
+            if (worldIn.pfserverConfig.asyncChunkSerialization)
+            {
+                List<SectionSnapshot> sections = Lists.<SectionSnapshot>newArrayList();
+                this.writeChunkToNBT(chunkIn, worldIn, nbttagcompound1, sections);
+                net.minecraftforge.common.ForgeChunkManager.storeChunkNBT(chunkIn, nbttagcompound1);
+                this.addChunkToPending(chunkIn.getPos(), new ChunkSnapshot(nbttagcompound, chunkIn, sections));
+                return;
+            }
+            // PFServer end
+
             this.writeChunkToNBT(chunkIn, worldIn, nbttagcompound1);
             net.minecraftforge.common.ForgeChunkManager.storeChunkNBT(chunkIn, nbttagcompound1);
             net.minecraftforge.common.MinecraftForge.EVENT_BUS.post(new net.minecraftforge.event.world.ChunkDataEvent.Save(chunkIn, nbttagcompound));
@@ -184,13 +216,26 @@ public class AnvilChunkLoader implements IChunkLoader, IThreadedFileIO
 
     protected void addChunkToPending(ChunkPos pos, NBTTagCompound compound)
     {
-        if (!this.chunksBeingSaved.contains(pos))
+        this.addChunkToPending(pos, new ChunkSnapshot(compound)); // PFServer
+    }
+
+    // PFServer start
+    private void addChunkToPending(ChunkPos pos, ChunkSnapshot snapshot)
+    {
+        // Queue the chunk on the writer of its region file, a chunk that is already pending only has its data replaced
+        // Queued under the map's lock on the region, so a writer going idle can't drop out with the chunk
+        if (!this.chunksBeingSaved.contains(pos) && this.chunksToSave.put(pos, snapshot) == null)
         {
-            this.chunksToSave.put(pos, compound);
+            RegionWriter writer = this.regionWriters.compute(ChunkPos.asLong(pos.x >> 5, pos.z >> 5), (region, current) ->
+            {
+                RegionWriter regionwriter = current == null ? new RegionWriter(region) : current;
+                regionwriter.pendingChunks.add(new PendingChunk(pos));
+                return regionwriter;
+            });
+            ThreadedFileIOBase.getThreadedIOInstance().queueIO(writer);
         }
-
-        ThreadedFileIOBase.getThreadedIOInstance().queueIO(this);
     }
+    // PFServer end
 
     public boolean writeNextIO()
     {
@@ -206,42 +251,55 @@ public class AnvilChunkLoader implements IChunkLoader, IThreadedFileIO
         else
         {
             ChunkPos chunkpos = this.chunksToSave.keySet().iterator().next();
-            boolean lvt_3_1_;
+            this.writeQueuedChunk(chunkpos, System.nanoTime()); // PFServer
+            return true;
+        }
+    }
 
-            try
-            {
-                this.chunksBeingSaved.add(chunkpos);
-                NBTTagCompound nbttagcompound = this.chunksToSave.remove(chunkpos);
+    // PFServer start
+    private void writeQueuedChunk(ChunkPos chunkpos, long queuedTime)
+    {
+        if (!this.chunksBeingSaved.add(chunkpos))
+        {
+            // Another worker is writing this chunk and will also pick up anything queued for it
+            return;
+        }
+
+        try
+        {
+            ChunkSnapshot snapshot = this.chunksToSave.remove(chunkpos);
 
-                if (nbttagcompound != null)
+            if (snapshot != null)
+            {
+                try
                 {
-                    try
-                    {
-                        this.writeChunkData(chunkpos, nbttagcompound);
-                    }
-                    catch (Exception exception)
-                    {
-                        LOGGER.error("Failed to save chunk", (Throwable)exception);
-                    }
+                    int bytes = this.writeChunkData(chunkpos, snapshot.build());
+                    this.saveStats.record(bytes, System.nanoTime() - queuedTime);
+                }
+                catch (Exception exception)
+                {
+                    LOGGER.error("Failed to save chunk", (Throwable)exception);
                 }
-
-                lvt_3_1_ = true;
             }
-            finally
+        }
+        finally
+        {
+            this.chunksBeingSaved.remove(chunkpos);
+
+            synchronized (this.chunkSavedLock)
             {
-                this.chunksBeingSaved.remove(chunkpos);
+                this.chunkSavedLock.notifyAll();
             }
-
-            return lvt_3_1_;
         }
     }
+    // PFServer end
 
-    private void writeChunkData(ChunkPos pos, NBTTagCompound compound) throws IOException
+    private int writeChunkData(ChunkPos pos, NBTTagCompound compound) throws IOException
     {
         // DataOutputStream dataoutputstream = RegionFileCache.getChunkOutputStream(this.chunkSaveLocation, pos.x, pos.z);
         // CompressedStreamTools.write(compound, dataoutputstream);
         // dataoutputstream.close();
-        RegionFileCache.getChunkOutputStream(this.chunkSaveLocation, pos.x, pos.z, compound);
+        return RegionFileCache.getChunkOutputStream(this.chunkSaveLocation, pos.x, pos.z, compound, this.compression, this.compressionLevel); // PFServer - return written size, configurable compression
     }
 
     public void saveExtraChunkData(World worldIn, Chunk chunkIn) throws IOException
@@ -258,7 +316,38 @@ public class AnvilChunkLoader implements IChunkLoader, IThreadedFileIO
         {
             this.flushing = true;
 
-            while (this.writeNextIO());
+            // PFServer start - write the queued chunks here, and wait for the ones the IO workers are writing instead of spinning on them
+            while (!this.chunksToSave.isEmpty() || !this.chunksBeingSaved.isEmpty())
+            {
+                boolean wrote = false;
+
+                for (ChunkPos chunkpos : this.chunksToSave.keySet())
+                {
+                    if (!this.chunksBeingSaved.contains(chunkpos))
+                    {
+                        this.writeQueuedChunk(chunkpos, System.nanoTime());
+                        wrote = true;
+                    }
+                }
+
+                if (!wrote)
+                {
+                    synchronized (this.chunkSavedLock)
+                    {
+                        if (!this.chunksBeingSaved.isEmpty())
+                        {
+                            this.chunkSavedLock.wait();
+                        }
+                    }
+                }
+            }
+
+            LOGGER.info("ThreadedAnvilChunkStorage ({}): All chunks are saved", (Object)this.chunkSaveLocation.getName());
+            // PFServer end
+        }
+        catch (InterruptedException interruptedexception)
+        {
+            Thread.currentThread().interrupt();
         }
         finally
         {
@@ -303,11 +392,17 @@ public class AnvilChunkLoader implements IChunkLoader, IThreadedFileIO
     }
 
     private void writeChunkToNBT(Chunk chunkIn, World worldIn, NBTTagCompound compound)
+    {
+        this.writeChunkToNBT(chunkIn, worldIn, compound, null);
+    }
+
+    // PFServer - with a snapshot list the sections are only copied into it and the arrays kept by the compound are copies
+    private void writeChunkToNBT(Chunk chunkIn, World worldIn, NBTTagCompound compound, @Nullable List<SectionSnapshot> snapshots)
     {
         compound.setInteger("xPos", chunkIn.x);
         compound.setInteger("zPos", chunkIn.z);
         compound.setLong("LastUpdate", worldIn.getTotalWorldTime());
-        compound.setIntArray("HeightMap", chunkIn.getHeightMap());
+        compound.setIntArray("HeightMap", snapshots != null ? chunkIn.getHeightMap().clone() : chunkIn.getHeightMap()); // PFServer
         compound.setBoolean("TerrainPopulated", chunkIn.isTerrainPopulated());
         compound.setBoolean("LightPopulated", chunkIn.isLightPopulated());
         compound.setLong("InhabitedTime", chunkIn.getInhabitedTime());
@@ -319,6 +414,14 @@ public class AnvilChunkLoader implements IChunkLoader, IThreadedFileIO
         {
             if (extendedblockstorage != Chunk.NULL_BLOCK_STORAGE)
             {
+                // PFServer start
+                if (snapshots != null)
+                {
+                    snapshots.add(new SectionSnapshot(extendedblockstorage, flag));
+                    continue;
+                }
+                // PFServer end
+
                 NBTTagCompound nbttagcompound = new NBTTagCompound();
                 nbttagcompound.setByte("Y", (byte)(extendedblockstorage.getYLocation() >> 4 & 255));
                 byte[] abyte = new byte[4096];
@@ -348,7 +451,7 @@ public class AnvilChunkLoader implements IChunkLoader, IThreadedFileIO
         }
 
         compound.setTag("Sections", nbttaglist);
-        compound.setByteArray("Biomes", chunkIn.getBiomeArray());
+        compound.setByteArray("Biomes", snapshots != null ? chunkIn.getBiomeArray().clone() : chunkIn.getBiomeArray()); // PFServer
         chunkIn.setHasEntities(false);
         NBTTagList nbttaglist1 = new NBTTagList();
 
@@ -665,4 +768,145 @@ public class AnvilChunkLoader implements IChunkLoader, IThreadedFileIO
     {
         return this.chunksToSave.size();
     }
+
+    // PFServer start
+    public int getPendingRegionCount()
+    {
+        int regions = 0;
+
+        for (RegionWriter writer : this.regionWriters.values())
+        {
+            if (!writer.pendingChunks.isEmpty())
+            {
+                ++regions;
+            }
+        }
+
+        return regions;
+    }
+
+    /**
+     * A chunk waiting to be written. Chunks saved in snapshot mode still have their sections to encode and the save
+     * event to post, which happens on the first thread that needs the compound.
+     */
+    private static class ChunkSnapshot
+    {
+        private final NBTTagCompound compound;
+        @Nullable
+        private Chunk chunk;
+        @Nullable
+        private List<SectionSnapshot> sections;
+
+        private ChunkSnapshot(NBTTagCompound compound)
+        {
+            this.compound = compound;
+        }
+
+        private ChunkSnapshot(NBTTagCompound compound, Chunk chunk, List<SectionSnapshot> sections)
+        {
+            this.compound = compound;
+            this.chunk = chunk;
+            this.sections = sections;
+        }
+
+        private synchronized NBTTagCompound build()
+        {
+            if (this.sections != null)
+            {
+                NBTTagList nbttaglist = new NBTTagList();
+
+                for (SectionSnapshot section : this.sections)
+                {
+                    nbttaglist.appendTag(section.writeToNBT());
+                }
+
+                this.compound.getCompoundTag("Level").setTag("Sections", nbttaglist);
+                this.sections = null;
+                Chunk chunkIn = this.chunk;
+                this.chunk = null;
+                net.minecraftforge.common.MinecraftForge.EVENT_BUS.post(new net.minecraftforge.event.world.ChunkDataEvent.Save(chunkIn, this.compound));
+            }
+
+            return this.compound;
+        }
+    }
+
+    private static class SectionSnapshot
+    {
+        private final int y;
+        private final BlockStateContainer.Snapshot blocks;
+        private final byte[] blockLight;
+        @Nullable
+        private final byte[] skyLight;
+
+        private SectionSnapshot(ExtendedBlockStorage extendedblockstorage, boolean hasSkyLight)
+        {
+            this.y = extendedblockstorage.getYLocation();
+            this.blocks = extendedblockstorage.getData().snapshot();
+            this.blockLight = extendedblockstorage.getBlockLight().getData().clone();
+            this.skyLight = hasSkyLight ? extendedblockstorage.getSkyLight().getData().clone() : null;
+        }
+
+        private NBTTagCompound writeToNBT()
+        {
+            NBTTagCompound nbttagcompound = new NBTTagCompound();
+            nbttagcompound.setByte("Y", (byte)(this.y >> 4 & 255));
+            byte[] abyte = new byte[4096];
+            NibbleArray nibblearray = new NibbleArray();
+            NibbleArray nibblearray1 = this.blocks.getDataForNBT(abyte, nibblearray);
+            nbttagcompound.setByteArray("Blocks", abyte);
+            nbttagcompound.setByteArray("Data", nibblearray.getData());
+
+            if (nibblearray1 != null)
+            {
+                nbttagcompound.setByteArray("Add", nibblearray1.getData());
+            }
+
+            nbttagcompound.setByteArray("BlockLight", this.blockLight);
+            nbttagcompound.setByteArray("SkyLight", this.skyLight != null ? this.skyLight : new byte[this.blockLight.length]);
+            return nbttagcompound;
+        }
+    }
+
+    private static class PendingChunk
+    {
+        private final ChunkPos pos;
+        private final long queuedTime = System.nanoTime();
+
+        private PendingChunk(ChunkPos pos)
+        {
+            this.pos = pos;
+        }
+    }
+
+    /**
+     * Drains the pending chunks of one region file. Every writer is bound to a single IO worker, so different
+     * region files are compressed and written in parallel while one region file is never written concurrently.
+     */
+    private class RegionWriter implements IThreadedFileIO
+    {
+        private final long region;
+        private final Queue<PendingChunk> pendingChunks = new ConcurrentLinkedQueue<PendingChunk>();
+
+        private RegionWriter(long region)
+        {
+            this.region = region;
+        }
+
+        public boolean writeNextIO()
+        {
+            PendingChunk pending = this.pendingChunks.poll();
+
+            if (pending == null)
+            {
+                // Idle, drop out of the map unless a chunk was queued meanwhile. The next chunk of the region gets a new writer
+                AnvilChunkLoader.this.regionWriters.computeIfPresent(this.region, (region, current) -> current == this && this.pendingChunks.isEmpty() ? null : current);
+                return false;
+            }
+
+            AnvilChunkLoader.this.writeQueuedChunk(pending.pos, pending.queuedTime);
+            return true;
+        }
+    }
+    // PFServer end
 }
\ No newline at end of file
@@ -1,22 +1,35 @@
 package net.minecraft.world.chunk.storage;
 
+import cn.pfcraft.server.chunkio.ChunkBuffers;
+import cn.pfcraft.server.chunkio.RegionCodec;
+import cn.pfcraft.server.chunkio.RegionCodecs;
+import cn.pfcraft.server.chunkio.RegionPrefetcher;
 import com.google.common.collect.Lists;
 import net.minecraft.server.MinecraftServer;
+import org.apache.logging.log4j.LogManager;
+import org.apache.logging.log4j.Logger;
 
 import javax.annotation.Nullable;
 import java.io.*;
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
 import java.util.List;
+import java.util.concurrent.atomic.AtomicIntegerArray;
 import java.util.zip.DeflaterOutputStream;
 import java.util.zip.GZIPInputStream;
 import java.util.zip.InflaterInputStream;
 
 public class RegionFile
 {
+    private static final Logger LOGGER = LogManager.getLogger(); // PFServer
     private static final byte[] EMPTY_SECTOR = new byte[4096];
     private final File fileName;
     private RandomAccessFile dataFile;
-    private final int[] offsets = new int[1024];
-    private final int[] chunkTimestamps = new int[1024];
+    // PFServer start - header kept in atomic arrays so chunkExists / isChunkSaved don't need the region lock
+    private final AtomicIntegerArray offsets = new AtomicIntegerArray(1024);
+    private final AtomicIntegerArray chunkTimestamps = new AtomicIntegerArray(1024);
+    private volatile boolean closed;
+    // PFServer end
     private List<Boolean> sectorFree;
     private int sizeDelta;
     private long lastModified;
@@ -65,7 +78,7 @@ public class RegionFile
             for (int j1 = 0; j1 < 1024; ++j1)
             {
                 int k = this.dataFile.readInt();
-                this.offsets[j1] = k;
+                this.offsets.set(j1, k);
 
                 if (k != 0 && (k >> 8) + (k & 255) <= this.sectorFree.size())
                 {
@@ -79,7 +92,7 @@ public class RegionFile
             for (int k1 = 0; k1 < 1024; ++k1)
             {
                 int l1 = this.dataFile.readInt();
-                this.chunkTimestamps[k1] = l1;
+                this.chunkTimestamps.set(k1, l1);
             }
         }
         catch (IOException ioexception)
@@ -89,7 +102,7 @@ public class RegionFile
     }
 
     @Deprecated // TODO: remove (1.13)
-    public synchronized boolean chunkExists(int x, int z)
+    public boolean chunkExists(int x, int z)
     {
         return isChunkSaved(x, z);
     }
@@ -150,10 +163,24 @@ public class RegionFile
                                 this.dataFile.read(abyte);
                                 return new DataInputStream(new BufferedInputStream(new InflaterInputStream(new ByteArrayInputStream(abyte))));
                             }
+                            // PFServer start
                             else
                             {
-                                return null;
+                                RegionCodec codec = RegionCodecs.byId(b0);
+
+                                if (codec == null)
+                                {
+                                    return null;
+                                }
+
+                                byte[] abyte2 = new byte[l - 1];
+                                this.dataFile.read(abyte2);
+                                ByteBuffer bytebuffer = codec.decompress(ChunkBuffers.get(), abyte2, 0, abyte2.length);
+                                byte[] abyte3 = new byte[bytebuffer.remaining()];
+                                bytebuffer.get(abyte3);
+                                return new DataInputStream(new ByteArrayInputStream(abyte3));
                             }
+                            // PFServer end
                         }
                     }
                 }
@@ -165,6 +192,52 @@ public class RegionFile
         }
     }
 
+    // PFServer start - positional reads into the per thread buffers, the first byte of the result is the compression type
+    @Nullable
+    public synchronized ByteBuffer readChunkData(int x, int z, ChunkBuffers buffers) throws IOException
+    {
+        if (this.outOfBounds(x, z))
+        {
+            return null;
+        }
+
+        int i = this.getOffset(x, z);
+        int j = i >> 8;
+        int k = i & 255;
+
+        if (i == 0 || j + k > this.sectorFree.size())
+        {
+            return null;
+        }
+
+        FileChannel channel = this.dataFile.getChannel();
+        ByteBuffer header = buffers.header();
+        header.limit(4);
+        readFully(channel, header, (long)j * 4096L);
+        int l = header.getInt(0);
+
+        if (l > 4096 * k || l <= 0)
+        {
+            return null;
+        }
+
+        ByteBuffer data = buffers.compressed(l);
+        readFully(channel, data, (long)j * 4096L + 4L);
+        return data;
+    }
+
+    private static void readFully(FileChannel channel, ByteBuffer buffer, long position) throws IOException
+    {
+        while (buffer.hasRemaining())
+        {
+            if (channel.read(buffer, position + buffer.position()) < 0)
+            {
+                throw new EOFException();
+            }
+        }
+    }
+    // PFServer end
+
     @Nullable
     public DataOutputStream getChunkDataOutputStream(int x, int z)
     {
@@ -173,6 +246,14 @@ public class RegionFile
 
     protected synchronized void write(int x, int z, byte[] data, int length)
     {
+        this.write(x, z, data, length, RegionCodecs.ZLIB.getId()); // PFServer
+    }
+
+    // PFServer - compression type of the data is stored with it
+    protected synchronized void write(int x, int z, byte[] data, int length, int compression)
+    {
+        RegionPrefetcher.invalidate(this, x, z); // PFServer
+
         try
         {
             int i = this.getOffset(x, z);
@@ -182,12 +263,13 @@ public class RegionFile
 
             if (l >= 256)
             {
+                LOGGER.warn("Chunk {},{} in {} is {} bytes after compression, which doesn't fit into a region file, it won't be saved", x, z, this.fileName, length); // PFServer
                 return;
             }
 
             if (j != 0 && k == l)
             {
-                this.write(j, data, length);
+                this.write(j, data, length, compression);
             }
             else
             {
@@ -237,7 +319,7 @@ public class RegionFile
                         this.sectorFree.set(j + j2, Boolean.valueOf(false));
                     }
 
-                    this.write(j, data, length);
+                    this.write(j, data, length, compression);
                 }
                 else
                 {
@@ -251,7 +333,7 @@ public class RegionFile
                     }
 
                     this.sizeDelta += 4096 * l;
-                    this.write(j, data, length);
+                    this.write(j, data, length, compression);
                     this.setOffset(x, z, j << 8 | l);
                 }
             }
@@ -264,12 +346,25 @@ public class RegionFile
         }
     }
 
-    private void write(int sectorNumber, byte[] data, int length) throws IOException
+    private void write(int sectorNumber, byte[] data, int length, int compression) throws IOException
     {
-        this.dataFile.seek((long)(sectorNumber * 4096));
-        this.dataFile.writeInt(length + 1);
-        this.dataFile.writeByte(2);
-        this.dataFile.write(data, 0, length);
+        // PFServer start - positional writes instead of seeking and writing the header field by field
+        ByteBuffer header = ByteBuffer.allocate(5);
+        header.putInt(length + 1).put((byte)compression).flip();
+        ByteBuffer payload = ByteBuffer.wrap(data, 0, length);
+        FileChannel channel = this.dataFile.getChannel();
+        long position = (long)sectorNumber * 4096L;
+
+        while (header.hasRemaining())
+        {
+            position += channel.write(header, position);
+        }
+
+        while (payload.hasRemaining())
+        {
+            position += channel.write(payload, position);
+        }
+        // PFServer end
     }
 
     private boolean outOfBounds(int x, int z)
@@ -279,7 +374,7 @@ public class RegionFile
 
     private int getOffset(int x, int z)
     {
-        return this.offsets[x + z * 32];
+        return this.offsets.get(x + z * 32);
     }
 
     public boolean isChunkSaved(int x, int z)
@@ -289,20 +384,35 @@ public class RegionFile
 
     private void setOffset(int x, int z, int offset) throws IOException
     {
-        this.offsets[x + z * 32] = offset;
+        this.offsets.set(x + z * 32, offset);
         this.dataFile.seek((long)((x + z * 32) * 4));
         this.dataFile.writeInt(offset);
     }
 
     private void setChunkTimestamp(int x, int z, int timestamp) throws IOException
     {
-        this.chunkTimestamps[x + z * 32] = timestamp;
+        this.chunkTimestamps.set(x + z * 32, timestamp);
         this.dataFile.seek((long)(4096 + (x + z * 32) * 4));
         this.dataFile.writeInt(timestamp);
     }
 
-    public void close() throws IOException
+    // PFServer start
+    public boolean isClosed()
+    {
+        return this.closed;
+    }
+
+    public int getSectorOffset(int x, int z)
     {
+        return this.outOfBounds(x, z) ? 0 : this.getOffset(x, z) >> 8;
+    }
+    // PFServer end
+
+    public synchronized void close() throws IOException
+    {
+        this.closed = true; // PFServer
+        RegionPrefetcher.invalidate(this); // PFServer
+
         if (this.dataFile != null)
         {
             this.dataFile.close();
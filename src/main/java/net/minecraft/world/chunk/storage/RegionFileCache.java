@@ -1,6 +1,10 @@
 package net.minecraft.world.chunk.storage;
 
-import com.google.common.collect.Maps;
+import cn.pfcraft.server.PFSConfig;
+import cn.pfcraft.server.chunkio.ChunkBuffers;
+import cn.pfcraft.server.chunkio.RegionCodec;
+import cn.pfcraft.server.chunkio.RegionCodecs;
+import cn.pfcraft.server.chunkio.RegionPrefetcher;
 import net.minecraft.nbt.CompressedStreamTools;
 import net.minecraft.nbt.NBTTagCompound;
 
@@ -9,104 +13,218 @@ import java.io.DataInputStream;
 import java.io.DataOutputStream;
 import java.io.File;
 import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.util.Iterator;
+import java.util.LinkedHashMap;
 import java.util.Map;
+import java.util.zip.Deflater;
 
 public class RegionFileCache
 {
-    private static final Map<File, RegionFile> REGIONS_BY_FILE = Maps.<File, RegionFile>newHashMap();
+    // PFServer start - striped LRU cache instead of one class wide lock over a map that is emptied when it gets full
+    private static final int STRIPE_COUNT = 16;
+    private static final Stripe[] STRIPES = new Stripe[STRIPE_COUNT];
 
-    public static synchronized RegionFile createOrLoadRegionFile(File worldDir, int chunkX, int chunkZ)
+    static
     {
-        File file1 = new File(worldDir, "region");
-        File file2 = new File(file1, "r." + (chunkX >> 5) + "." + (chunkZ >> 5) + ".mca");
-        RegionFile regionfile = REGIONS_BY_FILE.get(file2);
+        for (int i = 0; i < STRIPE_COUNT; ++i)
+        {
+            STRIPES[i] = new Stripe();
+        }
+    }
 
-        if (regionfile != null)
+    private static Stripe getStripe(File file)
+    {
+        int hash = file.hashCode();
+        return STRIPES[(hash ^ hash >>> 16) & (STRIPE_COUNT - 1)];
+    }
+
+    private static void closeRegionFile(@Nullable RegionFile regionfile)
+    {
+        try
         {
-            return regionfile;
+            if (regionfile != null)
+            {
+                regionfile.close();
+            }
         }
-        else
+        catch (IOException ioexception)
         {
-            if (!file1.exists())
+            ioexception.printStackTrace();
+        }
+    }
+    // PFServer end
+
+    public static RegionFile createOrLoadRegionFile(File worldDir, int chunkX, int chunkZ)
+    {
+        File file1 = new File(worldDir, "region");
+        File file2 = new File(file1, "r." + (chunkX >> 5) + "." + (chunkZ >> 5) + ".mca");
+        Stripe stripe = getStripe(file2);
+
+        synchronized (stripe)
+        {
+            RegionFile regionfile = stripe.regionsByFile.get(file2);
+
+            if (regionfile != null)
             {
-                file1.mkdirs();
+                return regionfile;
             }
 
-            if (REGIONS_BY_FILE.size() >= 256)
+            if (!file1.exists())
             {
-                clearRegionFileReferences();
+                file1.mkdirs();
             }
 
+            // Closed while holding the stripe so the same file can't be reopened before its last write is done
+            closeRegionFile(stripe.evictEldest());
             RegionFile regionfile1 = new RegionFile(file2);
-            REGIONS_BY_FILE.put(file2, regionfile1);
+            stripe.regionsByFile.put(file2, regionfile1);
             return regionfile1;
         }
     }
 
-    public static synchronized RegionFile getRegionFileIfExists(File worldDir, int chunkX, int chunkZ)
+    @Nullable
+    public static RegionFile getRegionFileIfExists(File worldDir, int chunkX, int chunkZ)
     {
         File file1 = new File(worldDir, "region");
         File file2 = new File(file1, "r." + (chunkX >> 5) + "." + (chunkZ >> 5) + ".mca");
-        RegionFile regionfile = REGIONS_BY_FILE.get(file2);
+        Stripe stripe = getStripe(file2);
 
-        if (regionfile != null)
-        {
-            return regionfile;
-        }
-        else if (file1.exists() && file2.exists())
+        synchronized (stripe)
         {
-            if (REGIONS_BY_FILE.size() >= 256)
+            RegionFile regionfile = stripe.regionsByFile.get(file2);
+
+            if (regionfile != null)
+            {
+                return regionfile;
+            }
+            else if (!file1.exists() || !file2.exists())
             {
-                clearRegionFileReferences();
+                return null;
             }
 
+            // Closed while holding the stripe so the same file can't be reopened before its last write is done
+            closeRegionFile(stripe.evictEldest());
             RegionFile regionfile1 = new RegionFile(file2);
-            REGIONS_BY_FILE.put(file2, regionfile1);
+            stripe.regionsByFile.put(file2, regionfile1);
             return regionfile1;
         }
-        else
+    }
+
+    // PFServer start
+    /**
+     * The region file for a speculative read: an open one without counting the read as a use, or a newly opened one
+     * only while its stripe has room, so prefetching never closes a region file the server is using.
+     */
+    @Nullable
+    public static RegionFile getRegionFileForPrefetch(File worldDir, int chunkX, int chunkZ)
+    {
+        File file1 = new File(worldDir, "region");
+        File file2 = new File(file1, "r." + (chunkX >> 5) + "." + (chunkZ >> 5) + ".mca");
+        Stripe stripe = getStripe(file2);
+
+        synchronized (stripe)
         {
-            return null;
+            // Not get, it would move the file up the access order
+            for (Map.Entry<File, RegionFile> entry : stripe.regionsByFile.entrySet())
+            {
+                if (entry.getKey().equals(file2))
+                {
+                    return entry.getValue();
+                }
+            }
+
+            if (stripe.isFull() || !file2.exists())
+            {
+                return null;
+            }
+
+            RegionFile regionfile = new RegionFile(file2);
+            stripe.regionsByFile.put(file2, regionfile);
+            return regionfile;
         }
     }
+    // PFServer end
 
-    public static synchronized void clearRegionFileReferences()
+    public static void clearRegionFileReferences()
     {
-        for (RegionFile regionfile : REGIONS_BY_FILE.values())
+        for (Stripe stripe : STRIPES)
         {
-            try
+            synchronized (stripe)
             {
-                if (regionfile != null)
+                for (RegionFile regionfile : stripe.regionsByFile.values())
                 {
-                    regionfile.close();
+                    closeRegionFile(regionfile);
                 }
+
+                stripe.regionsByFile.clear();
             }
-            catch (IOException ioexception)
+        }
+    }
+
+    // PFServer start
+    public static int getOpenRegionCount()
+    {
+        int count = 0;
+
+        for (Stripe stripe : STRIPES)
+        {
+            synchronized (stripe)
             {
-                ioexception.printStackTrace();
+                count += stripe.regionsByFile.size();
             }
         }
 
-        REGIONS_BY_FILE.clear();
+        return count;
     }
+    // PFServer end
 
     public static DataInputStream getChunkInputStream(File worldDir, int chunkX, int chunkZ)
     {
-        RegionFile regionfile = createOrLoadRegionFile(worldDir, chunkX, chunkZ);
-        return regionfile.getChunkDataInputStream(chunkX & 31, chunkZ & 31);
+        while (true)
+        {
+            RegionFile regionfile = createOrLoadRegionFile(worldDir, chunkX, chunkZ);
+
+            synchronized (regionfile)
+            {
+                // Evicted between the lookup and the read, fetch it again
+                if (!regionfile.isClosed())
+                {
+                    return regionfile.getChunkDataInputStream(chunkX & 31, chunkZ & 31);
+                }
+            }
+        }
     }
 
     @Nullable
-    public static synchronized NBTTagCompound getChunkInputStreamCB(File worldDir, int chunkX, int chunkZ) throws IOException
+    public static NBTTagCompound getChunkInputStreamCB(File worldDir, int chunkX, int chunkZ) throws IOException
     {
-        RegionFile regionfile = createOrLoadRegionFile(worldDir, chunkX, chunkZ);
-        DataInputStream datainputstream = regionfile.getChunkDataInputStream(chunkX & 31, chunkZ & 31);
+        // PFServer start - only the sector read happens under the region lock, the chunk is inflated from the per thread buffers
+        ChunkBuffers buffers = ChunkBuffers.get();
+        ByteBuffer data;
+
+        while (true)
+        {
+            RegionFile regionfile = createOrLoadRegionFile(worldDir, chunkX, chunkZ);
+
+            synchronized (regionfile)
+            {
+                if (!regionfile.isClosed())
+                {
+                    data = RegionPrefetcher.take(regionfile, chunkX & 31, chunkZ & 31);
+
+                    if (data == null)
+                    {
+                        data = regionfile.readChunkData(chunkX & 31, chunkZ & 31, buffers);
+                    }
 
-        if (datainputstream == null) {
-            return null;
+                    break;
+                }
+            }
         }
 
-        return CompressedStreamTools.read(datainputstream);
+        return data == null ? null : buffers.readCompound(data);
+        // PFServer end
     }
 
     public static DataOutputStream getChunkOutputStream(File worldDir, int chunkX, int chunkZ)
@@ -115,17 +233,69 @@ public class RegionFileCache
         return regionfile.getChunkDataOutputStream(chunkX & 31, chunkZ & 31);
     }
 
-    public static synchronized void getChunkOutputStream(File worldDir, int chunkX, int chunkZ, NBTTagCompound nbttagcompound) throws IOException
+    // PFServer start - deflate outside of the region lock so the IO workers can compress in parallel
+    public static int getChunkOutputStream(File worldDir, int chunkX, int chunkZ, NBTTagCompound nbttagcompound) throws IOException
     {
-        RegionFile regionfile = createOrLoadRegionFile(worldDir, chunkX, chunkZ);
-        DataOutputStream dataoutputstream = regionfile.getChunkDataOutputStream(chunkX & 31, chunkZ & 31);
-        CompressedStreamTools.write(nbttagcompound, dataoutputstream);
-        dataoutputstream.close();
+        return getChunkOutputStream(worldDir, chunkX, chunkZ, nbttagcompound, RegionCodecs.ZLIB, Deflater.DEFAULT_COMPRESSION);
     }
 
+    public static int getChunkOutputStream(File worldDir, int chunkX, int chunkZ, NBTTagCompound nbttagcompound, RegionCodec codec, int level) throws IOException
+    {
+        ChunkBuffers buffers = ChunkBuffers.get();
+        int length = buffers.writeCompound(nbttagcompound, codec, level);
+
+        try
+        {
+            while (true)
+            {
+                RegionFile regionfile = createOrLoadRegionFile(worldDir, chunkX, chunkZ);
+
+                synchronized (regionfile)
+                {
+                    if (!regionfile.isClosed())
+                    {
+                        regionfile.write(chunkX & 31, chunkZ & 31, buffers.compressedArray(), length, codec.getId());
+                        return length;
+                    }
+                }
+            }
+        }
+        finally
+        {
+            buffers.trim();
+        }
+    }
+    // PFServer end
+
     public static boolean chunkExists(File worldDir, int chunkX, int chunkZ)
     {
         RegionFile regionfile = getRegionFileIfExists(worldDir, chunkX, chunkZ);
         return regionfile != null ? regionfile.isChunkSaved(chunkX & 31, chunkZ & 31) : false;
     }
-}
\ No newline at end of file
+
+    // PFServer start
+    private static class Stripe
+    {
+        private final LinkedHashMap<File, RegionFile> regionsByFile = new LinkedHashMap<File, RegionFile>(16, 0.75F, true);
+
+        private boolean isFull()
+        {
+            return this.regionsByFile.size() >= Math.max(1, (PFSConfig.regionFileCacheSize + STRIPE_COUNT - 1) / STRIPE_COUNT);
+        }
+
+        @Nullable
+        private RegionFile evictEldest()
+        {
+            if (!this.isFull())
+            {
+                return null;
+            }
+
+            Iterator<RegionFile> iterator = this.regionsByFile.values().iterator();
+            RegionFile eldest = iterator.next();
+            iterator.remove();
+            return eldest;
+        }
+    }
+    // PFServer end
+}
@@ -25,7 +25,9 @@ import org.bukkit.event.world.ChunkUnloadEvent;
 
 import javax.annotation.Nullable;
 import java.io.IOException;
+import java.util.ArrayDeque;
 import java.util.Collection;
+import java.util.Comparator;
 import java.util.Iterator;
 import java.util.List;
 import java.util.Set;
@@ -60,6 +62,10 @@ public class ChunkProviderServer implements IChunkProvider
     // Paper end
     public final WorldServer world;
     private final Set<Long> loadingChunks = com.google.common.collect.Sets.newHashSet();
+    // PFServer start
+    private final ArrayDeque<Chunk> incrementalSaveQueue = new ArrayDeque<Chunk>();
+    private int incrementalSaveTotal;
+    // PFServer end
 
     public ChunkProviderServer(WorldServer worldObjIn, IChunkLoader chunkLoaderIn, IChunkGenerator chunkGeneratorIn)
     {
@@ -272,6 +278,65 @@ public class ChunkProviderServer implements IChunkProvider
         return true;
     }
 
+    // PFServer start - rolling autosave
+    /**
+     * Queues every chunk that needs saving, least recently saved first, replacing what is left of the previous pass.
+     */
+    public void queueIncrementalSave()
+    {
+        List<Chunk> list = Lists.newArrayList();
+
+        for (Chunk chunk : this.id2ChunkMap.values())
+        {
+            if (chunk.needsSaving(true))
+            {
+                list.add(chunk);
+            }
+        }
+
+        list.sort(Comparator.comparingLong(Chunk::getLastSaveTime));
+        this.incrementalSaveQueue.clear();
+        this.incrementalSaveQueue.addAll(list);
+        this.incrementalSaveTotal = list.size();
+    }
+
+    /**
+     * Saves queued chunks until either limit is reached, returning the number of chunks saved.
+     */
+    public int saveChunksIncrementally(int maxChunks, long deadline)
+    {
+        int saved = 0;
+
+        while (saved < maxChunks && !this.incrementalSaveQueue.isEmpty() && deadline - System.nanoTime() > 0L)
+        {
+            Chunk chunk = this.incrementalSaveQueue.poll();
+
+            // Unloading saved it already, or it was saved some other way since it was queued
+            if (this.id2ChunkMap.get(ChunkPos.asLong(chunk.x, chunk.z)) != chunk || !chunk.needsSaving(true))
+            {
+                continue;
+            }
+
+            this.saveChunkExtraData(chunk);
+            this.saveChunkData(chunk);
+            chunk.setModified(false);
+            ++saved;
+        }
+
+        return saved;
+    }
+
+    public int getIncrementalSaveBacklog()
+    {
+        return this.incrementalSaveQueue.size();
+    }
+
+    public int getIncrementalSaveTotal()
+    {
+        return this.incrementalSaveTotal;
+    }
+    // PFServer end
+
     public void flushToDisk()
     {
         this.chunkLoader.flush();
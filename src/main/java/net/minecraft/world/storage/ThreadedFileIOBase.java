@@ -1,92 +1,154 @@
 package net.minecraft.world.storage;
 
+import cn.pfcraft.server.PFSConfig;
 import com.google.common.collect.Lists;
+import com.google.common.collect.Sets;
 
 import java.util.Collections;
 import java.util.List;
+import java.util.Set;
+import java.util.concurrent.atomic.AtomicLong;
 
-public class ThreadedFileIOBase implements Runnable
+public class ThreadedFileIOBase
 {
     private static final ThreadedFileIOBase INSTANCE = new ThreadedFileIOBase();
-    private final List<IThreadedFileIO> threadedIOQueue = Collections.<IThreadedFileIO>synchronizedList(Lists.newArrayList());
-    private volatile long writeQueuedCounter;
-    private volatile long savedIOCounter;
+    // PFServer start - multiple writer queues, every IThreadedFileIO sticks to one worker
+    private final IOWorker[] workers;
+    private final AtomicLong writeQueuedCounter = new AtomicLong();
+    private final AtomicLong savedIOCounter = new AtomicLong();
     private volatile boolean isThreadWaiting;
 
     private ThreadedFileIOBase()
     {
-        Thread thread = new Thread(this, "File IO Thread");
-        thread.setPriority(1);
-        thread.start();
+        this.workers = new IOWorker[PFSConfig.chunkSaveThreads];
+
+        for (int i = 0; i < this.workers.length; ++i)
+        {
+            this.workers[i] = new IOWorker(this.workers.length == 1 ? "File IO Thread" : "File IO Thread #" + i);
+            this.workers[i].start();
+        }
     }
+    // PFServer end
 
     public static ThreadedFileIOBase getThreadedIOInstance()
     {
         return INSTANCE;
     }
 
-    public void run()
+    public void queueIO(IThreadedFileIO fileIo)
     {
-        while (true)
-        {
-            this.processQueue();
-        }
-    }
+        // PFServer start
+        IOWorker worker = this.workers[(fileIo.hashCode() & Integer.MAX_VALUE) % this.workers.length];
 
-    private void processQueue()
-    {
-        for (int i = 0; i < this.threadedIOQueue.size(); ++i)
+        synchronized (worker.threadedIOQueue)
         {
-            IThreadedFileIO ithreadedfileio = this.threadedIOQueue.get(i);
-            boolean flag = ithreadedfileio.writeNextIO();
-
-            if (!flag)
-            {
-                this.threadedIOQueue.remove(i--);
-                ++this.savedIOCounter;
-            }
-
-            try
+            if (!worker.threadedIOQueue.contains(fileIo))
             {
-                Thread.sleep(this.isThreadWaiting ? 0L : 10L);
+                this.writeQueuedCounter.incrementAndGet();
+                worker.threadedIOQueue.add(fileIo);
             }
-            catch (InterruptedException interruptedexception1)
+            else
             {
-                interruptedexception1.printStackTrace();
+                // It may just have reported that it ran dry, make the worker poll it once more
+                worker.requeuedIO.add(fileIo);
             }
         }
+        // PFServer end
+    }
+
+    public void waitForFinish() throws InterruptedException
+    {
+        this.isThreadWaiting = true;
 
-        if (this.threadedIOQueue.isEmpty())
+        while (this.writeQueuedCounter.get() != this.savedIOCounter.get())
         {
-            try
-            {
-                Thread.sleep(25L);
-            }
-            catch (InterruptedException interruptedexception)
-            {
-                interruptedexception.printStackTrace();
-            }
+            Thread.sleep(10L);
         }
+
+        this.isThreadWaiting = false;
     }
 
-    public void queueIO(IThreadedFileIO fileIo)
+    // PFServer start
+    public int getWorkerCount()
+    {
+        return this.workers.length;
+    }
+
+    public int getQueueDepth()
     {
-        if (!this.threadedIOQueue.contains(fileIo))
+        int depth = 0;
+
+        for (IOWorker worker : this.workers)
         {
-            ++this.writeQueuedCounter;
-            this.threadedIOQueue.add(fileIo);
+            depth += worker.threadedIOQueue.size();
         }
+
+        return depth;
     }
 
-    public void waitForFinish() throws InterruptedException
+    private class IOWorker extends Thread
     {
-        this.isThreadWaiting = true;
+        private final List<IThreadedFileIO> threadedIOQueue = Collections.<IThreadedFileIO>synchronizedList(Lists.newArrayList());
+        private final Set<IThreadedFileIO> requeuedIO = Sets.<IThreadedFileIO>newHashSet(); // guarded by threadedIOQueue
 
-        while (this.writeQueuedCounter != this.savedIOCounter)
+        private IOWorker(String name)
         {
-            Thread.sleep(10L);
+            super(name);
+            this.setPriority(1);
         }
 
-        this.isThreadWaiting = false;
+        public void run()
+        {
+            while (true)
+            {
+                this.processQueue();
+            }
+        }
+
+        private void processQueue()
+        {
+            for (int i = 0; i < this.threadedIOQueue.size(); ++i)
+            {
+                IThreadedFileIO ithreadedfileio = this.threadedIOQueue.get(i);
+                boolean flag = ithreadedfileio.writeNextIO();
+
+                if (!flag)
+                {
+                    synchronized (this.threadedIOQueue)
+                    {
+                        if (!this.requeuedIO.remove(ithreadedfileio))
+                        {
+                            this.threadedIOQueue.remove(i--);
+                            ThreadedFileIOBase.this.savedIOCounter.incrementAndGet();
+                        }
+                    }
+                }
+
+                if (!ThreadedFileIOBase.this.isThreadWaiting && PFSConfig.chunkSaveDelay > 0)
+                {
+                    try
+                    {
+                        Thread.sleep(PFSConfig.chunkSaveDelay);
+                    }
+                    catch (InterruptedException interruptedexception1)
+                    {
+                        interruptedexception1.printStackTrace();
+                    }
+                }
+            }
+
+            if (this.threadedIOQueue.isEmpty())
+            {
+                try
+                {
+                    Thread.sleep(25L);
+                }
+                catch (InterruptedException interruptedexception)
+                {
+                    interruptedexception.printStackTrace();
+                }
+            }
+        }
     }
-}
\ No newline at end of file
+    // PFServer end
+}
@@ -20,15 +20,20 @@
 package net.minecraftforge.common.chunkio;
 
 import cn.pfcraft.server.PFServer;
+import cn.pfcraft.server.chunkio.ChunkLoadStats;
+import com.google.common.collect.Lists;
 import com.google.common.collect.Maps;
+import net.minecraft.entity.player.EntityPlayer;
+import net.minecraft.util.math.MathHelper;
 import net.minecraft.world.World;
 import net.minecraft.world.chunk.Chunk;
 import net.minecraft.world.chunk.storage.AnvilChunkLoader;
 import net.minecraft.world.gen.ChunkProviderServer;
 
 import java.util.Iterator;
+import java.util.List;
 import java.util.Map;
-import java.util.concurrent.LinkedBlockingQueue;
+import java.util.concurrent.PriorityBlockingQueue;
 import java.util.concurrent.ThreadFactory;
 import java.util.concurrent.ThreadPoolExecutor;
 import java.util.concurrent.TimeUnit;
@@ -38,10 +43,18 @@ public class ChunkIOExecutor
 {
     private static final int BASE_THREADS = 1;
     private static final int PLAYERS_PER_THREAD = 50;
+    // PFServer start
+    private static final int REPRIORITIZE_INTERVAL = 5;
+    // How much closer a chunk straight ahead of a player counts compared to one beside them, and further one behind
+    private static final double HEADING_WEIGHT = 0.5D;
+    private static final ChunkLoadStats stats = new ChunkLoadStats();
+    private static final PriorityBlockingQueue<Runnable> queue = new PriorityBlockingQueue<Runnable>(64, (a, b) -> ((ChunkIOProvider)a).compareTo((ChunkIOProvider)b));
+    private static int ticks;
+    // PFServer end
 
     private static final Map<QueuedChunk, ChunkIOProvider> tasks = Maps.newConcurrentMap();
     private static final ThreadPoolExecutor pool = new ChunkIOThreadPoolExecutor(BASE_THREADS, Integer.MAX_VALUE, 60L, TimeUnit.SECONDS,
-            new LinkedBlockingQueue<Runnable>(),
+            queue, // PFServer - closest chunks first instead of first in first out
             new ThreadFactory()
             {
              private AtomicInteger count = new AtomicInteger(1);
@@ -103,6 +116,7 @@ public class ChunkIOExecutor
         {
             task = new ChunkIOProvider(key, loader, provider);
             task.addCallback(runnable); // Add before calling execute for thread safety
+            task.setPriority(getPriority(key)); // PFServer
             tasks.put(key, task);
             pool.execute(task);
         }
@@ -128,10 +142,91 @@ public class ChunkIOExecutor
         if (!task.hasCallback())
         {
             tasks.remove(key);
-            pool.remove(task);
+
+            if (pool.remove(task))
+            {
+                stats.recordCancel(); // PFServer
+            }
+        }
+    }
+
+    // PFServer start
+    /**
+     * Distance in blocks from the nearest player, shortened for chunks the player is facing and lengthened for
+     * chunks behind them so flying players get the chunks in front of them first.
+     */
+    private static double getPriority(QueuedChunk chunk)
+    {
+        double priority = Double.MAX_VALUE;
+
+        for (EntityPlayer player : chunk.world.playerEntities)
+        {
+            double dx = (chunk.x << 4) + 8 - player.posX;
+            double dz = (chunk.z << 4) + 8 - player.posZ;
+            double distance = Math.sqrt(dx * dx + dz * dz);
+            double facing = 1.0D;
+
+            if (distance > 0.0D)
+            {
+                float yaw = player.rotationYaw * 0.017453292F;
+                facing = (dx * -MathHelper.sin(yaw) + dz * MathHelper.cos(yaw)) / distance;
+            }
+
+            priority = Math.min(priority, distance * (1.0D - HEADING_WEIGHT * facing));
+        }
+
+        return priority;
+    }
+
+    /**
+     * Scores the queued loads again as players move, dropping the ones nothing waits on anymore.
+     */
+    private static void reprioritize()
+    {
+        List<Runnable> queued = Lists.newArrayList();
+        queue.drainTo(queued);
+
+        for (Runnable runnable : queued)
+        {
+            ChunkIOProvider task = (ChunkIOProvider)runnable;
+
+            if (!task.hasCallback())
+            {
+                tasks.remove(task.getChunkInfo(), task);
+                stats.recordCancel();
+                continue;
+            }
+
+            task.setPriority(getPriority(task.getChunkInfo()));
+        }
+
+        for (Runnable runnable : queued)
+        {
+            ChunkIOProvider task = (ChunkIOProvider)runnable;
+
+            if (task.hasCallback())
+            {
+                queue.add(task);
+            }
         }
     }
 
+    public static int getQueueDepth()
+    {
+        return queue.size();
+    }
+
+    public static int getActiveCount()
+    {
+        return pool.getActiveCount();
+    }
+
+    public static ChunkLoadStats getStats()
+    {
+        return stats;
+    }
+    // PFServer end
+
     public static void adjustPoolSize(int players)
     {
         pool.setCorePoolSize(Math.max(BASE_THREADS, players / PLAYERS_PER_THREAD));
@@ -139,6 +234,13 @@ public class ChunkIOExecutor
 
     public static void tick()
     {
+        // PFServer start
+        if (++ticks % REPRIORITIZE_INTERVAL == 0 && !queue.isEmpty())
+        {
+            reprioritize();
+        }
+        // PFServer end
+
         Iterator<ChunkIOProvider> itr = tasks.values().iterator();
         while (itr.hasNext())
         {
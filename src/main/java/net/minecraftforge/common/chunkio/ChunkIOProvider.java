@@ -29,9 +29,16 @@ import net.minecraftforge.event.world.ChunkDataEvent;
 
 import java.io.IOException;
 import java.util.concurrent.ConcurrentLinkedQueue;
+import java.util.concurrent.atomic.AtomicLong;
 
-class ChunkIOProvider implements Runnable
+class ChunkIOProvider implements Runnable, Comparable<ChunkIOProvider> // PFServer
 {
+    // PFServer start
+    private static final AtomicLong nextSequence = new AtomicLong();
+    private final long sequence = nextSequence.getAndIncrement();
+    private final long queuedTime = System.nanoTime();
+    private double priority;
+    // PFServer end
     private final QueuedChunk chunkInfo;
     private final AnvilChunkLoader loader;
     private final ChunkProviderServer provider;
@@ -141,4 +148,23 @@ class ChunkIOProvider implements Runnable
     {
         return chunkInfo;
     }
+
+    // PFServer start - only changed while the task is out of the queue
+    long getQueuedTime()
+    {
+        return this.queuedTime;
+    }
+
+    void setPriority(double priority)
+    {
+        this.priority = priority;
+    }
+
+    @Override
+    public int compareTo(ChunkIOProvider other)
+    {
+        int result = Double.compare(this.priority, other.priority);
+        return result != 0 ? result : Long.compare(this.sequence, other.sequence);
+    }
+    // PFServer end
 }
@@ -37,6 +37,8 @@ class ChunkIOThreadPoolExecutor extends ThreadPoolExecutor {
     @Override
     protected void afterExecute(Runnable r, Throwable t)
     {
+        ChunkIOExecutor.getStats().recordLoad(System.nanoTime() - ((ChunkIOProvider) r).getQueuedTime()); // PFServer
+
         if (t != null)
         {
             try
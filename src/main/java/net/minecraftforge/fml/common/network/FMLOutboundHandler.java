@@ -379,6 +379,12 @@ public class FMLOutboundHandler extends ChannelOutboundHandlerAdapter {
             ctx.write(msg, promise);
             return;
         }
+        // PFServer start - split, serialized and compressed once for all of the connections
+        if (dispatchers.size() > 1)
+        {
+            pkt.setShared();
+        }
+        // PFServer end
         for (NetworkDispatcher targetDispatcher : dispatchers)
         {
             pkt.payload().retain();
@@ -20,6 +20,7 @@
 package net.minecraftforge.fml.common.network.handshake;
 
 import cn.pfcraft.server.PFServer;
+import io.netty.buffer.CompositeByteBuf;
 import io.netty.buffer.Unpooled;
 import io.netty.channel.ChannelHandlerContext;
 import io.netty.channel.ChannelOutboundHandler;
@@ -391,6 +392,12 @@ import java.util.Map;
         catch (IOException e)
         {
             this.kickWithMessage(e.getMessage());
+            // PFServer start
+            if (multipart != null)
+            {
+                multipart.discard();
+            }
+            // PFServer end
             multipart = null;
             return true;
         }
@@ -597,6 +604,13 @@ import java.util.Map;
     //they do not hold references to the world and cause it to leak.
     private void cleanAttributes(ChannelHandlerContext ctx)
     {
+        // PFServer start - parts of an incomplete multipart packet
+        if (multipart != null)
+        {
+            multipart.discard();
+            multipart = null;
+        }
+        // PFServer end
         ctx.channel().attr(FMLOutboundHandler.FML_MESSAGETARGETARGS).set(null);
         ctx.channel().attr(NetworkRegistry.NET_HANDLER).set(null);
         ctx.channel().attr(NetworkDispatcher.FML_DISPATCHER).set(null);
@@ -618,11 +632,13 @@ import java.util.Map;
     private class MultiPartCustomPayload extends SPacketCustomPayload
     {
         private String channel;
-        private byte[] data;
+        // PFServer - the parts themselves, retained instead of copied into one array
+        private CompositeByteBuf data;
         private PacketBuffer data_buf = null;
         private int part_count = 0;
         private int part_expected = 0;
         private int offset = 0;
+        private int length; // PFServer
 
         private MultiPartCustomPayload(PacketBuffer preamble) throws IOException
         {
@@ -633,8 +649,11 @@ import java.util.Map;
             {
                 throw new IOException("The received FML MultiPart packet outside of valid length bounds, Max: " + FMLProxyPacket.MAX_LENGTH + ", Received: " + length);
             }
-            data = new byte[length];
-            data_buf = new PacketBuffer(Unpooled.wrappedBuffer(data));
+            // PFServer start
+            this.length = length;
+            data = Unpooled.compositeBuffer(Math.max(part_count, 2));
+            data_buf = new PacketBuffer(data);
+            // PFServer end
         }
 
         public void processPart(PacketBuffer input) throws IOException
@@ -645,11 +664,25 @@ import java.util.Map;
                 throw new IOException("Received FML MultiPart packet out of order, Expected " + part_expected + " Got " + part);
             }
             int len = input.readableBytes();
-            input.readBytes(data, offset, len);
+            // PFServer start
+            if (offset + len > length || part_expected == part_count - 1 && offset + len != length)
+            {
+                throw new IOException("Received FML MultiPart packet of the wrong length, Expected " + length + " Got " + (offset + len));
+            }
+            // Retained as the part is released once handled
+            data.addComponent(true, input.retain());
+            // PFServer end
             part_expected++;
             offset += len;
         }
 
+        // PFServer start
+        private void discard()
+        {
+            data.release();
+        }
+        // PFServer end
+
         public boolean isComplete()
         {
             return part_expected == part_count;
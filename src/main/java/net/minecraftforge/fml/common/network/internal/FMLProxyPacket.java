@@ -53,6 +53,10 @@ public class FMLProxyPacket implements Packet<INetHandler> {
     private NetworkDispatcher dispatcher;
     private static Multiset<String> badPackets = ConcurrentHashMultiset.create();
     private static int packetCountWarning = Integer.parseInt(System.getProperty("fml.badPacketCounter", "100"));
+    // PFServer start
+    private boolean shared;
+    private List<Packet<INetHandlerPlayClient>> parts;
+    // PFServer end
 
     public FMLProxyPacket(SPacketCustomPayload original)
     {
@@ -143,17 +147,49 @@ public class FMLProxyPacket implements Packet<INetHandler> {
     // FIXME int overflow
     public static final int MAX_LENGTH = PART_SIZE * 255;
     public List<Packet<INetHandlerPlayClient>> toS3FPackets() throws IOException
+    {
+        // PFServer start - the parts are slices of the payload instead of copies, split once for all connections when shared
+        if (this.shared)
+        {
+            synchronized (this)
+            {
+                if (this.parts == null)
+                {
+                    this.parts = this.split();
+
+                    for (Packet<INetHandlerPlayClient> packet : this.parts)
+                    {
+                        ((SPacketCustomPayload)packet).setShared();
+                    }
+                }
+
+                return this.parts;
+            }
+        }
+
+        return this.split();
+    }
+
+    /**
+     * Marks the packet as sent to several connections, its parts are then serialized and compressed once.
+     */
+    public void setShared()
+    {
+        this.shared = true;
+    }
+
+    private List<Packet<INetHandlerPlayClient>> split()
     {
         List<Packet<INetHandlerPlayClient>> ret = Lists.newArrayList();
-        byte[] data = payload.array();
+        int length = payload.readableBytes();
 
-        if (data.length < PART_SIZE)
+        if (length < PART_SIZE)
         {
             ret.add(new SPacketCustomPayload(channel, new PacketBuffer(payload.duplicate())));
         }
         else
         {
-            int parts = (int)Math.ceil(data.length / (double)(PART_SIZE - 1)); //We add a byte header so -1
+            int parts = (int)Math.ceil(length / (double)(PART_SIZE - 1)); //We add a byte header so -1
             if (parts > 255)
             {
                 throw new IllegalArgumentException("Payload may not be larger than " + MAX_LENGTH + " bytes");
@@ -161,22 +197,22 @@ public class FMLProxyPacket implements Packet<INetHandler> {
             PacketBuffer preamble = new PacketBuffer(Unpooled.buffer());
             preamble.writeString(channel);
             preamble.writeByte(parts);
-            preamble.writeInt(data.length);
+            preamble.writeInt(length);
             ret.add(new SPacketCustomPayload("FML|MP", preamble));
 
+            int index = payload.readerIndex();
             int offset = 0;
             for (int x = 0; x < parts; x++)
             {
-                int length = Math.min(PART_SIZE, data.length - offset + 1);
-                byte[] tmp = new byte[length];
-                tmp[0] = (byte)(x & 0xFF);
-                System.arraycopy(data, offset, tmp, 1, tmp.length - 1);
-                offset += tmp.length - 1;
-                ret.add(new SPacketCustomPayload("FML|MP", new PacketBuffer(Unpooled.wrappedBuffer(tmp))));
+                int partLength = Math.min(PART_SIZE - 1, length - offset);
+                ByteBuf header = Unpooled.wrappedBuffer(new byte[] { (byte)(x & 0xFF) });
+                ret.add(new SPacketCustomPayload("FML|MP", new PacketBuffer(Unpooled.wrappedBuffer(header, payload.slice(index + offset, partLength)))));
+                offset += partLength;
             }
         }
         return ret;
     }
+    // PFServer end
 
     public void setTarget(Side target)
     {
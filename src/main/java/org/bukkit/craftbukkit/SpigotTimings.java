@@ -139,6 +139,7 @@ public class SpigotTimings {
         public final CustomTimingsHandler syncChunkLoadTileEntitiesTimer;
         public final CustomTimingsHandler syncChunkLoadTileTicksTimer;
         public final CustomTimingsHandler syncChunkLoadPostTimer;
+        public final CustomTimingsHandler incrementalSave; // PFServer
 
         public WorldTimingsHandler(World server) {
             String name = server.worldInfo.getWorldName() +" - ";
@@ -163,6 +164,7 @@ public class SpigotTimings {
             syncChunkLoadTileEntitiesTimer = new CustomTimingsHandler("** " + name + "chunkLoad - TileEntities");
             syncChunkLoadTileTicksTimer = new CustomTimingsHandler("** " + name + "chunkLoad - TileTicks");
             syncChunkLoadPostTimer = new CustomTimingsHandler("** " + name + "chunkLoad - Post");
+            incrementalSave = new CustomTimingsHandler("** " + name + "incrementalSave"); // PFServer
 
 
             tracker = new CustomTimingsHandler(name + "tracker");
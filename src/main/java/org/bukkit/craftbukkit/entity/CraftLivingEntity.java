@@ -358,7 +358,7 @@ public class CraftLivingEntity extends CraftEntity implements LivingEntity {
 
     public void setRemoveWhenFarAway(boolean remove) {
         if (getHandle() instanceof EntityLiving) {
-            ((EntityLiving) getHandle()).persistenceRequired = !remove;
+            ((EntityLiving) getHandle()).setPersistenceRequired(!remove); // PFServer
         }
     }
 
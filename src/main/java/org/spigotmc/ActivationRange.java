@@ -106,6 +106,14 @@ public class ActivationRange
     public static void activateEntities(World world)
     {
         SpigotTimings.entityActivationCheckTimer.startTiming();
+        // PFServer start - entities are scored as they tick instead
+        if ( world.pfserverConfig.dynamicActivation )
+        {
+            world.dynamicActivation.startTick();
+            SpigotTimings.entityActivationCheckTimer.stopTiming();
+            return;
+        }
+        // PFServer end
         final int miscActivationRange = world.spigotConfig.miscActivationRange;
         final int animalActivationRange = world.spigotConfig.animalActivationRange;
         final int monsterActivationRange = world.spigotConfig.monsterActivationRange;
@@ -257,7 +265,17 @@ public class ActivationRange
         SpigotTimings.checkIfActiveTimer.startTiming();
         // Never safe to skip fireworks or entities not yet added to chunk
         // PAIL: inChunk
+        // PFServer start
+        if ( entity.world.pfserverConfig.dynamicActivation )
+        {
+            boolean active = entity.world.dynamicActivation.isActive( entity );
+            cn.pfcraft.server.entity.ActivationStats.record( entity, active );
+            SpigotTimings.checkIfActiveTimer.stopTiming();
+            return active;
+        }
+        // PFServer end
         if ( !entity.addedToChunk || entity instanceof EntityFireworkRocket ) {
+            cn.pfcraft.server.entity.ActivationStats.record( entity, true ); // PFServer
             SpigotTimings.checkIfActiveTimer.stopTiming();
             return true;
         }
@@ -290,6 +308,7 @@ public class ActivationRange
         {
             isActive = false;
         }
+        cn.pfcraft.server.entity.ActivationStats.record( entity, isActive ); // PFServer
         SpigotTimings.checkIfActiveTimer.stopTiming();
         return isActive;
     }
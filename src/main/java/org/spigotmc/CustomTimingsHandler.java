@@ -67,6 +67,36 @@ public class CustomTimingsHandler
         }
         printStream.println( "# Entities " + entities );
         printStream.println( "# LivingEntities " + livingEntities );
+        // PFServer start
+        if ( cn.pfcraft.server.PFSConfig.incrementalAutosave )
+        {
+            int backlog = 0;
+            int queued = 0;
+            for ( World world : Bukkit.getWorlds() )
+            {
+                net.minecraft.world.gen.ChunkProviderServer provider = ( (org.bukkit.craftbukkit.CraftWorld) world ).getHandle().getChunkProvider();
+                backlog += provider.getIncrementalSaveBacklog();
+                queued += provider.getIncrementalSaveTotal();
+            }
+            printStream.println( "# AutosaveBacklog " + backlog );
+            printStream.println( "# AutosaveQueued " + queued );
+        }
+        printStream.println( "# FlushesPerConnectionTick " + String.format( "%.2f", cn.pfcraft.server.network.OutboundStats.getFlushesPerConnectionTick() ) );
+        printStream.println( "# BytesPerFlush " + String.format( "%.0f", cn.pfcraft.server.network.OutboundStats.getBytesPerFlush() ) );
+        printStream.println( "# BlockChangeLists " + cn.pfcraft.server.network.ChunkUpdateStats.getBlockLists() );
+        printStream.println( "# SectionResends " + cn.pfcraft.server.network.ChunkUpdateStats.getSectionResends() );
+        printStream.println( "# TileEntityUpdatesSkipped " + cn.pfcraft.server.network.ChunkUpdateStats.getSkippedTileEntities() );
+        printStream.println( "# ChunkUpdateBytesSaved " + cn.pfcraft.server.network.ChunkUpdateStats.getBytesSaved() );
+        printStream.println( "# ActivationRangeScale " + String.format( "%.2f", cn.pfcraft.server.entity.DynamicActivation.getScale() ) );
+        for ( cn.pfcraft.server.entity.ActivationStats.Counts counts : cn.pfcraft.server.entity.ActivationStats.getCounts() )
+        {
+            printStream.println( "# Activation " + counts.getName() + " Active: " + counts.getActive() + " Inactive: " + counts.getInactive() );
+        }
+        for ( cn.pfcraft.server.entity.GoalTimings.Timing timing : cn.pfcraft.server.entity.GoalTimings.getTop( 20 ) )
+        {
+            printStream.println( "# Goal " + timing.getName() + " Selects: " + timing.getSelects() + " SelectTime: " + timing.getSelectNanos() + " Ticks: " + timing.getTicks() + " TickTime: " + timing.getTickNanos() );
+        }
+        // PFServer end
     }
 
     /**
@@ -81,6 +111,10 @@ public class CustomTimingsHandler
                 timings.reset();
             }
         }
+        cn.pfcraft.server.network.OutboundStats.reset(); // PFServer
+        cn.pfcraft.server.network.ChunkUpdateStats.reset(); // PFServer
+        cn.pfcraft.server.entity.ActivationStats.reset(); // PFServer
+        cn.pfcraft.server.entity.GoalTimings.reset(); // PFServer
         TimingsCommand.timingStart = System.nanoTime();
     }
 
@@ -90,6 +124,7 @@ public class CustomTimingsHandler
      */
     public static void tick()
     {
+        cn.pfcraft.server.entity.GoalTimings.setEnabled( Bukkit.getPluginManager().useTimings() ); // PFServer
         if ( Bukkit.getPluginManager().useTimings() )
         {
             for ( CustomTimingsHandler timings : HANDLERS )
@@ -0,0 +1,81 @@
+package net.minecraft.network;
+
+import cn.pfcraft.server.PFSConfig;
+import io.netty.bootstrap.Bootstrap;
+import io.netty.bootstrap.ServerBootstrap;
+import io.netty.buffer.ByteBuf;
+import io.netty.buffer.Unpooled;
+import io.netty.channel.Channel;
+import io.netty.channel.ChannelHandlerContext;
+import io.netty.channel.ChannelInboundHandlerAdapter;
+import io.netty.channel.ChannelInitializer;
+import io.netty.channel.DefaultEventLoopGroup;
+import io.netty.channel.local.LocalAddress;
+import io.netty.channel.local.LocalChannel;
+import io.netty.channel.local.LocalServerChannel;
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Test;
+
+import java.util.concurrent.BlockingQueue;
+import java.util.concurrent.LinkedBlockingQueue;
+import java.util.concurrent.TimeUnit;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertNotNull;
+
+public class NettyCompressionEncoderTest {
+    private int compressionThreads;
+    private int compressionOffloadSize;
+    private DefaultEventLoopGroup group;
+
+    @Before
+    public void setUp() {
+        compressionThreads = PFSConfig.compressionThreads;
+        compressionOffloadSize = PFSConfig.compressionOffloadSize;
+        PFSConfig.compressionThreads = 1;
+        PFSConfig.compressionOffloadSize = 256;
+        group = new DefaultEventLoopGroup(1);
+    }
+
+    @After
+    public void tearDown() {
+        PFSConfig.compressionThreads = compressionThreads;
+        PFSConfig.compressionOffloadSize = compressionOffloadSize;
+        group.shutdownGracefully(0, 1, TimeUnit.SECONDS);
+    }
+
+    @Test
+    public void offloadedPacketIsWrittenByTheTickFlush() throws Exception {
+        LocalAddress address = new LocalAddress("NettyCompressionEncoderTest");
+        BlockingQueue<ByteBuf> received = new LinkedBlockingQueue<>();
+        new ServerBootstrap().group(group).channel(LocalServerChannel.class).childHandler(new ChannelInboundHandlerAdapter() {
+            @Override
+            public void channelRead(ChannelHandlerContext ctx, Object msg) {
+                received.add((ByteBuf) msg);
+            }
+        }).bind(address).sync();
+
+        NetworkManager networkManager = new NetworkManager(EnumPacketDirection.CLIENTBOUND);
+        Channel channel = new Bootstrap().group(group).channel(LocalChannel.class).handler(new ChannelInitializer<Channel>() {
+            @Override
+            protected void initChannel(Channel ch) {
+                ch.pipeline().addLast("compress", new NettyCompressionEncoder(64)).addLast("packet_handler", networkManager);
+            }
+        }).connect(address).sync().channel();
+        channel.eventLoop().submit(() -> {}).sync();
+
+        // Large enough to be compressed by a worker, and the only write, so nothing is in the outbound buffer yet
+        channel.write(Unpooled.wrappedBuffer(new byte[1024]));
+        networkManager.flushOutbound();
+
+        ByteBuf written = received.poll(5, TimeUnit.SECONDS);
+        assertNotNull("offloaded packet was not flushed", written);
+        try {
+            assertEquals(1024, new PacketBuffer(written).readVarInt());
+        } finally {
+            written.release();
+            channel.close().sync();
+        }
+    }
+}